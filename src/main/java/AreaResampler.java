@@ -0,0 +1,134 @@
+/**
+ * Down-sampling by an arbitrary factor with area averaging.
+ *
+ * Every output pixel is the mean of the source area it covers, with fractional weights for the
+ * source pixels on its border. Output tiles only need the source region returned by
+ * {@link #getSourceStart(int)} and {@link #getSourceEnd(int, int)}, so a plane can be resampled
+ * tile by tile without ever holding the whole source plane.
+ */
+class AreaResampler {
+
+    /** Number of source pixels per output pixel */
+    private final double scale;
+
+
+    /**
+     * @param scale number of source pixels per output pixel (at least 1)
+     */
+    AreaResampler(double scale) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("Up-sampling is not supported (scale " + scale + ")");
+        }
+        this.scale = scale;
+    }
+
+    double getScale() {
+        return scale;
+    }
+
+    /**
+     * @param sourceSize source image dimension
+     * @return output image dimension
+     */
+    int getOutputSize(int sourceSize) {
+        return Math.max(1, (int) Math.floor(sourceSize / scale));
+    }
+
+    /**
+     * @param outStart first output coordinate
+     * @return first source coordinate needed
+     */
+    int getSourceStart(int outStart) {
+        return (int) Math.floor(outStart * scale);
+    }
+
+    /**
+     * @param outEnd output coordinate after the last one
+     * @param sourceSize source image dimension
+     * @return source coordinate after the last one needed
+     */
+    int getSourceEnd(int outEnd, int sourceSize) {
+        return Math.min(sourceSize, (int) Math.ceil(outEnd * scale));
+    }
+
+    /**
+     * Resample a source region into an output tile
+     *
+     * @param src source region, as returned by the region reader
+     * @param srcX source region origin x
+     * @param srcY source region origin y
+     * @param srcW source region width
+     * @param srcH source region height
+     * @param dst output tile buffer
+     * @param dstX output tile origin x
+     * @param dstY output tile origin y
+     * @param dstW output tile width
+     * @param dstH output tile height
+     * @param sourceWidth width of the source image
+     * @param sourceHeight height of the source image
+     */
+    void resample(byte[] src, int srcX, int srcY, int srcW, int srcH,
+                  byte[] dst, int dstX, int dstY, int dstW, int dstH,
+                  int sourceWidth, int sourceHeight) {
+        Weights wx = new Weights(dstX, dstW, srcX, srcW, sourceWidth);
+        Weights wy = new Weights(dstY, dstH, srcY, srcH, sourceHeight);
+
+        // Horizontal pass on every source row of the region
+        float[] rows = new float[srcH * dstW];
+        for (int y = 0; y < srcH; y++) {
+            int line = y * srcW;
+            for (int i = 0; i < dstW; i++) {
+                float sum = 0;
+                int start = wx.starts[i];
+                float[] weights = wx.weights[i];
+                for (int k = 0; k < weights.length; k++) {
+                    sum += weights[k] * (src[line + start + k] & 0xFF);
+                }
+                rows[y * dstW + i] = sum;
+            }
+        }
+
+        // Vertical pass
+        for (int j = 0; j < dstH; j++) {
+            int start = wy.starts[j];
+            float[] weights = wy.weights[j];
+            for (int i = 0; i < dstW; i++) {
+                float sum = 0;
+                for (int k = 0; k < weights.length; k++) {
+                    sum += weights[k] * rows[(start + k) * dstW + i];
+                }
+                dst[j * dstW + i] = (byte) Math.min(255, Math.round(sum));
+            }
+        }
+    }
+
+
+    /**
+     * Normalized overlap weights of the source pixels for each output pixel along one axis
+     */
+    private class Weights {
+        final int[] starts;
+        final float[][] weights;
+
+        Weights(int dstStart, int dstSize, int srcStart, int srcSize, int sourceSize) {
+            starts = new int[dstSize];
+            weights = new float[dstSize][];
+
+            for (int i = 0; i < dstSize; i++) {
+                double a = (dstStart + i) * scale;
+                double b = Math.min((dstStart + i + 1) * scale, sourceSize);
+
+                int first = (int) Math.floor(a);
+                int last = Math.min(srcStart + srcSize, (int) Math.ceil(b)) - 1;
+                first = Math.max(first, srcStart);
+
+                starts[i] = first - srcStart;
+                weights[i] = new float[Math.max(1, last - first + 1)];
+                for (int k = first; k <= last; k++) {
+                    double overlap = Math.min(b, k + 1) - Math.max(a, k);
+                    weights[i][k - first] = (float) (Math.max(0, overlap) / (b - a));
+                }
+            }
+        }
+    }
+}
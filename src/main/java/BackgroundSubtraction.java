@@ -0,0 +1,127 @@
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.process.ByteProcessor;
+
+import java.util.Locale;
+
+
+/**
+ * Rolling-ball background subtraction of 8-bit tiles, applied while streaming.
+ *
+ * ImageJ's rolling ball needs the whole image, which is impossible for full resolution planes.
+ * The background of a pixel however only depends on the pixels the ball can touch while it covers
+ * that pixel, i.e. those within the ball diameter. Each output tile is therefore read with a halo
+ * of that reach (plus the margin of ImageJ's shrinking and interpolation), processed on its own
+ * and cropped back, which gives the result of processing the whole plane. The halo is aligned to
+ * the shrink grid of ImageJ, so that every tile is shrunk with the same block boundaries as the
+ * whole plane would be. The corner correction of ImageJ is not applied, as it only concerns the
+ * corners of the plane.
+ */
+class BackgroundSubtraction {
+
+    private final double radius;
+    private final int shrinkFactor;
+    private final int halo;
+
+
+    /**
+     * @param radius rolling ball radius in output pixels
+     */
+    BackgroundSubtraction(double radius) {
+        if (!(radius > 0)) {
+            throw new IllegalArgumentException("Invalid rolling ball radius: " + radius);
+        }
+        this.radius = radius;
+
+        // Shrink factor of ImageJ's rolling ball for this radius
+        shrinkFactor = (radius <= 10) ? 1 : (radius <= 30) ? 2 : (radius <= 100) ? 4 : 8;
+        halo = (int) Math.ceil(2 * radius) + 3 * shrinkFactor + 1;
+    }
+
+    /**
+     * @return rolling ball radius in output pixels
+     */
+    double getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return number of pixels read around a tile on each side
+     */
+    int getHalo() {
+        return halo;
+    }
+
+    /**
+     * Region to read for an output tile: the tile with its halo, clipped to the plane, with the
+     * origin aligned to the shrink grid
+     *
+     * @param x tile origin x
+     * @param y tile origin y
+     * @param w tile width
+     * @param h tile height
+     * @param sizeX plane width
+     * @param sizeY plane height
+     * @return origin x, origin y, width and height of the region
+     */
+    int[] getRegion(int x, int y, int w, int h, int sizeX, int sizeY) {
+        int x0 = Math.max(0, x - halo) / shrinkFactor * shrinkFactor;
+        int y0 = Math.max(0, y - halo) / shrinkFactor * shrinkFactor;
+        int x1 = Math.min(sizeX, x + w + halo);
+        int y1 = Math.min(sizeY, y + h + halo);
+
+        return new int[]{x0, y0, x1 - x0, y1 - y0};
+    }
+
+    /**
+     * Subtract the background of a region and crop the tile from it
+     *
+     * @param data region pixels, modified
+     * @param region region as returned by {@link #getRegion(int, int, int, int, int, int)}
+     * @param x tile origin x
+     * @param y tile origin y
+     * @param w tile width
+     * @param h tile height
+     * @return tile of w * h bytes
+     */
+    byte[] apply(byte[] data, int[] region, int x, int y, int w, int h) {
+        // A subtracter per call, its state is not shared between threads
+        ByteProcessor processor = new ByteProcessor(region[2], region[3], data);
+        new BackgroundSubtracter().rollingBallBackground(processor, radius, false, false, false, true, false);
+
+        if (region[0] == x && region[1] == y && region[2] == w && region[3] == h) {
+            return data;
+        }
+
+        byte[] tile = new byte[w * h];
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(data, (y - region[1] + row) * region[2] + (x - region[0]), tile, row * w, w);
+        }
+
+        return tile;
+    }
+
+    /**
+     * Parse a radius entered by the user
+     *
+     * @param text radius in pixels, empty or "None" for no subtraction
+     * @return subtraction or null
+     * @throws IllegalArgumentException if the radius is invalid
+     */
+    static BackgroundSubtraction parse(String text) {
+        text = text.trim();
+        if (text.isEmpty() || text.equalsIgnoreCase("None")) {
+            return null;
+        }
+
+        try {
+            return new BackgroundSubtraction(Double.parseDouble(text));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid rolling ball radius: " + text);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "rolling ball %.1f px", radius);
+    }
+}
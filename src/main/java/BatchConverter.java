@@ -12,9 +12,12 @@ import org.scijava.plugin.Plugin;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 
 
 @Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > Batch OME-TIF Converter")
@@ -43,10 +46,37 @@ public class BatchConverter implements Command {
         File directory = dialog.getSelectedDirectory();
         List<HTplusFluo.Channel> channelNames = dialog.getSelectedChannels();
         int seriesIndex = dialog.getSelectedSeries();
+        String compression = dialog.getSelectedCompression();
+        double pixelSize = dialog.getTargetPixelSize();
+        boolean force = dialog.isForced();
+        boolean hashInputs = dialog.isHashingInputs();
+        long readAhead = dialog.getReadAheadBudget();
+        HTplusFluo.Channel focus = dialog.getFocusChannel();
+        ConversionOptions options;
+        try {
+            options = ConversionOptions.of(compression, pixelSize)
+                    .withShading(dialog.getShadingSettings())
+                    .withStains(dialog.getStainSeparation())
+                    .withFocus(focus)
+                    .withBackground(dialog.getBackgroundSubtraction())
+                    .withUnmixing(dialog.getSpectralUnmixing())
+                    .withRegistration(dialog.isRegisteringChannels());
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return;
+        }
+        if (focus != null && !channelNames.contains(focus)) {
+            log.error("The focus channel " + focus.getName() + " is not among the selected channels");
+            return;
+        }
+        if (focus != null && compression.equals(NdpiJpegPassthrough.COMPRESSION)) {
+            log.error("JPEG passthrough does not decode the tiles and cannot rate the focus");
+            return;
+        }
         HashMap<HTplusFluo.Channel, List<File>> allFiles = NdpiUtils.getFiles(directory);
 
-        // Select channel subset and sort
-        HashMap<HTplusFluo.Channel, List<File>> files = new HashMap<>();
+        // Select channel subset (in the selected order) and sort
+        HashMap<HTplusFluo.Channel, List<File>> files = new LinkedHashMap<>();
         for (HTplusFluo.Channel channel : channelNames) {
             files.put(channel, allFiles.get(channel));
             Collections.sort(files.get(channel));
@@ -57,55 +87,194 @@ public class BatchConverter implements Command {
             return;
         }
 
-        // Convert
-        int N = files.get(files.keySet().iterator().next()).size();
-        int n = 0;
-        while (true) {
-            status.showStatus(n++, N, "Converting files...");
-
-            HashMap<HTplusFluo.Channel, String> pathSet = popPathSet(files);
-            if (pathSet.isEmpty()) {
-                break;
+        // Pick the nearest finer series for the target pixel size
+        if (pixelSize > 0) {
+            try {
+                File first = files.get(files.keySet().iterator().next()).get(0);
+                seriesIndex = NdpiUtils.getSeriesForPixelSize(NdpiUtils.getSeriesPixelSizeValues(first), pixelSize);
+            } catch (IOException | FormatException e) {
+                log.error(e);
+                return;
             }
 
-            String outputPath = generateOutputPath(pathSet, seriesIndex);
-            if (new File(outputPath).exists()) {
-                log.warn("File already exists: " + outputPath);
-                log.warn("... Skipping conversion");
-                continue;
+            if (seriesIndex < 0) {
+                log.error("The target pixel size " + pixelSize + " is finer than the full resolution");
+                return;
             }
+            log.info("Resampling series " + (seriesIndex + 1) + " to " + pixelSize + " \u00b5m");
+        }
 
-            log.info("Converting: ");
-            for (HTplusFluo.Channel channel : pathSet.keySet()) {
-                log.info("\t    " + pathSet.get(channel));
+        // Workload from the file headers
+        List<File> inputs = new ArrayList<>();
+        for (List<File> list : files.values()) {
+            inputs.addAll(list);
+        }
+        long pixels = NdpiUtils.estimatePixelCount(inputs, seriesIndex, pixelSize);
+        if (pixels >= 0) {
+            log.info(String.format(Locale.US, "Scheduled %d files, about %.1f gigapixels", inputs.size(), pixels / 1e9));
+        }
+
+        // Calibrate the tile size on the first file
+        if (dialog.isCalibratingTiles()) {
+            File first = files.get(files.keySet().iterator().next()).get(0);
+            try (NdpiRegionReader reader = new NdpiRegionReader(first.getAbsolutePath(), seriesIndex, null)) {
+                int[] tileSize = TileGeometry.calibrate(reader);
+                log.info("Calibrated tile size for " + TileGeometry.getFormatKey(reader) + ": " +
+                        tileSize[0] + "x" + tileSize[1]);
+            } catch (IOException | FormatException e) {
+                log.warn("Tile size calibration failed: " + e.getMessage());
             }
-            log.info("\tto: " + outputPath);
+        }
 
-            try {
-                NdpiUtils.convert(pathSet, seriesIndex, outputPath, "None");
-            } catch (IOException |
-                    FormatException |
-                    DependencyException |
-                    ServiceException |
-                    EnumerationException e) {
-                e.printStackTrace();
+        // Convert, reading the next channel set ahead
+        SlidePrefetcher prefetcher = (readAhead > 0) ? new SlidePrefetcher(readAhead) : null;
+        HashMap<File, ConversionManifest> manifests = new HashMap<>();
+        int N = files.get(files.keySet().iterator().next()).size();
+        int n = 0;
+        try {
+            while (true) {
+                status.showStatus(n++, N, "Converting files...");
+
+                HashMap<HTplusFluo.Channel, String> pathSet = popPathSet(files);
+                if (pathSet.isEmpty()) {
+                    break;
+                }
+
+                String outputPath = generateOutputPath(pathSet, seriesIndex, pixelSize);
+                File outputFile = new File(outputPath);
+                String fingerprint;
+                ConversionManifest manifest;
+                try {
+                    manifest = getManifest(manifests, outputFile.getParentFile());
+                    fingerprint = ConversionManifest.fingerprint(pathSet, seriesIndex, compression, pixelSize,
+                            options.getProcessing(), hashInputs);
+                } catch (IOException e) {
+                    log.error(e);
+                    continue;
+                }
+
+                if (!force && manifest.isUpToDate(outputFile, fingerprint)) {
+                    log.info("Up to date: " + outputPath);
+                    continue;
+                }
+                if (outputFile.exists()) {
+                    if (!force && !manifest.contains(outputFile)) {
+                        log.warn("File already exists: " + outputPath);
+                        log.warn("... Skipping conversion (select 'Reconvert all' to replace it)");
+                        continue;
+                    }
+
+                    log.info("Outdated: " + outputPath);
+                    if (!outputFile.delete()) {
+                        log.error("Cannot delete " + outputPath);
+                        continue;
+                    }
+                }
+
+                log.info("Converting: ");
+                for (HTplusFluo.Channel channel : pathSet.keySet()) {
+                    log.info("\t    " + pathSet.get(channel));
+                }
+                log.info("\tto: " + outputPath);
+
+                HashMap<HTplusFluo.Channel, String> next = peekPathSet(files);
+                if (prefetcher != null && !next.isEmpty()) {
+                    prefetcher.prefetch(next.values(), seriesIndex);
+                }
+
+                PartialOutput partial = null;
+                try {
+                    manifest.remove(outputFile);
+                    partial = new PartialOutput(outputPath);
+                    String used = convert(pathSet, seriesIndex, partial.getPath(), options, log);
+                    partial.commit();
+                    if (!used.equals(compression)) {
+                        fingerprint = ConversionManifest.withFallback(fingerprint, used);
+                    }
+                    manifest.record(outputFile, fingerprint);
+                } catch (IOException |
+                        FormatException |
+                        DependencyException |
+                        ServiceException |
+                        EnumerationException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (partial != null) {
+                        partial.discard(log);
+                    }
+                }
+            }
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.close();
             }
         }
         status.showStatus(N, N, "Conversions done.");
         log.info("Done.");
     }
 
-    private String generateOutputPath(HashMap<HTplusFluo.Channel, String> hash, Integer series) {
+    /**
+     * Convert a channel set, falling back to an uncompressed conversion if the JPEG passthrough
+     * is not possible
+     *
+     * @return compression name of the output
+     */
+    static String convert(HashMap<HTplusFluo.Channel, String> pathSet, int series, String outputPath,
+                          ConversionOptions options, LogService log)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        try {
+            NdpiUtils.convert(pathSet, series, outputPath, options);
+            return options.getCompression();
+        } catch (FormatException e) {
+            if (!options.getCompression().equals(NdpiJpegPassthrough.COMPRESSION)) {
+                throw e;
+            }
+            log.warn(e.getMessage());
+            log.warn("... Falling back to uncompressed conversion");
+            if (new File(outputPath).exists() && !new File(outputPath).delete()) {
+                throw new IOException("Cannot delete the failed output " + outputPath);
+            }
+            NdpiUtils.convert(pathSet, series, outputPath, options.withCompression("None"));
+            return "None";
+        }
+    }
+
+    private static ConversionManifest getManifest(HashMap<File, ConversionManifest> manifests, File directory)
+            throws IOException {
+        ConversionManifest manifest = manifests.get(directory);
+        if (manifest == null) {
+            manifest = ConversionManifest.load(directory);
+            manifests.put(directory, manifest);
+        }
+
+        return manifest;
+    }
+
+    static String generateOutputPath(HashMap<HTplusFluo.Channel, String> hash, Integer series, double pixelSize) {
         HTplusFluo.Channel channel = hash.keySet().iterator().next();
         String path = hash.get(channel);
-        path = path.replace("." + HTplusFluo.FILE_EXTENSION, "_series-" + (series + 1) +  ".ome.tif");
+        String suffix = (pixelSize > 0) ? String.format(Locale.US, "_%.3fum", pixelSize) : "_series-" + (series + 1);
+        path = path.replace("." + HTplusFluo.FILE_EXTENSION, suffix +  ".ome.tif");
         path = path.replaceAll(channel.getName() + "[_-]?", "");
 
         return path;
     }
 
-    private HashMap<HTplusFluo.Channel, String> popPathSet(HashMap<HTplusFluo.Channel, List<File>> hash) {
-        HashMap<HTplusFluo.Channel, String> pair = new HashMap<>();
+    static HashMap<HTplusFluo.Channel, String> popPathSet(HashMap<HTplusFluo.Channel, List<File>> hash) {
+        HashMap<HTplusFluo.Channel, String> pair = peekPathSet(hash);
+
+        for (HTplusFluo.Channel channel : pair.keySet()) {
+            hash.get(channel).remove(0);
+        }
+
+        return pair;
+    }
+
+    /**
+     * Get the next channel set without removing it
+     */
+    static HashMap<HTplusFluo.Channel, String> peekPathSet(HashMap<HTplusFluo.Channel, List<File>> hash) {
+        HashMap<HTplusFluo.Channel, String> pair = new LinkedHashMap<>();
 
         for (HTplusFluo.Channel channel : hash.keySet()) {
             List<File> files = hash.get(channel);
@@ -113,9 +282,7 @@ public class BatchConverter implements Command {
                 break;
             }
 
-            File file = files.get(0);
-            pair.put(channel, file.getAbsolutePath());
-            files.remove(file);
+            pair.put(channel, files.get(0).getAbsolutePath());
         }
 
         return pair;
@@ -1,3 +1,5 @@
+import loci.formats.FormatException;
+
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
@@ -5,8 +7,12 @@ import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Dialog to make a ordered selection among listed items.
@@ -28,6 +34,61 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
     /** Series combobox */
     private final JComboBox<String> seriesChooser;
 
+    /** Target pixel size field */
+    private final JTextField pixelSizeField;
+
+    /** Compression combobox */
+    private final JComboBox<String> compressionChooser;
+
+    /** Shading correction combobox */
+    private final JComboBox<String> shadingChooser;
+
+    /** Shading correction profile size or reference directory */
+    private final JTextField shadingField;
+
+    /** Label of the shading field */
+    private final JLabel shadingLabel;
+
+    /** Stain separation combobox, editable for custom stain vectors */
+    private final JComboBox<String> stainChooser;
+
+    /** Focus QC channel combobox */
+    private final JComboBox<String> focusChooser;
+
+    /** Rolling ball radius field */
+    private final JTextField backgroundField;
+
+    /** Mixing matrix field */
+    private final JTextField unmixingField;
+
+    /** Reconvert up to date files checkbox */
+    private final JCheckBox forceBox;
+
+    /** Hash input files checkbox */
+    private final JCheckBox hashBox;
+
+    /** Tile size calibration checkbox */
+    private final JCheckBox calibrateBox;
+
+    /** Read-ahead budget field */
+    private final JTextField readAheadField;
+
+    /** Register channels checkbox */
+    private final JCheckBox registerBox;
+
+    /** Background thread reading the metadata of the selected directory */
+    private final ExecutorService prober = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ndpi-dialog-probe");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Incremented for each selected directory, outdated probes stop when it changes */
+    private volatile int probeGeneration = 0;
+
     /** Flag to check if the dialog was cancelled */
     private boolean cancelled = false;
 
@@ -46,6 +107,48 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
     /** Series combobox name */
     private static final String SERIES_CHOOSER_NAME = "Pixel Size";
 
+    /** Target pixel size field label */
+    private static final String PIXEL_SIZE_FIELD_NAME = " or target [\u00b5m]";
+
+    /** Compression combobox name */
+    private static final String COMPRESSION_CHOOSER_NAME = "Compression";
+
+    /** Shading correction combobox name */
+    private static final String SHADING_CHOOSER_NAME = "Shading";
+
+    /** Shading correction choices */
+    private static final String[] SHADING_CHOICES = {"None", "Estimate from slide", "Reference images"};
+
+    /** Stain separation combobox name */
+    private static final String STAIN_CHOOSER_NAME = "  Stains";
+
+    /** Focus QC combobox name */
+    private static final String FOCUS_CHOOSER_NAME = "  Focus QC";
+
+    /** Background subtraction field label */
+    private static final String BACKGROUND_FIELD_NAME = "  Rolling ball [px]";
+
+    /** Unmixing field label */
+    private static final String UNMIXING_FIELD_NAME = "  Unmixing";
+
+    /** Registration checkbox name */
+    private static final String REGISTER_BOX_NAME = "Register";
+
+    /** Read-ahead budget field label */
+    private static final String READ_AHEAD_FIELD_NAME = "  Read-ahead [MiB]";
+
+    /** Default read-ahead budget in MiB */
+    private static final int DEFAULT_READ_AHEAD = 256;
+
+    /** Reconvert checkbox name */
+    private static final String FORCE_BOX_NAME = "Reconvert all";
+
+    /** Hash checkbox name */
+    private static final String HASH_BOX_NAME = "Hash inputs";
+
+    /** Calibration checkbox name */
+    private static final String CALIBRATE_BOX_NAME = "Calibrate tiles";
+
     /** Column names of the selection table */
     private static final String[] COLUMN_NAMES = {"Order", "Channel"};
 
@@ -77,6 +180,96 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
         seriesChooser = new JComboBox<>();
         seriesChooser.setName(SERIES_CHOOSER_NAME);
         magPanel.add(seriesChooser);
+        magPanel.add(new JLabel(PIXEL_SIZE_FIELD_NAME));
+        pixelSizeField = new JTextField(6);
+        pixelSizeField.setToolTipText("Resample the nearest finer series to this pixel size. Leave empty to use the series.");
+        magPanel.add(pixelSizeField);
+
+        // Compression combobox
+        JPanel compressionPanel = new JPanel();
+        compressionPanel.setLayout(new FlowLayout(FlowLayout.LEFT, 0, 5));
+        compressionPanel.add(new JLabel(COMPRESSION_CHOOSER_NAME));
+        compressionChooser = new JComboBox<>(NdpiUtils.COMPRESSIONS);
+        compressionChooser.setName(COMPRESSION_CHOOSER_NAME);
+        compressionChooser.setToolTipText("The JPEG passthrough copies the compressed data of bright-field files.");
+        compressionPanel.add(compressionChooser);
+        forceBox = new JCheckBox(FORCE_BOX_NAME);
+        forceBox.setToolTipText("Reconvert even the files that are up to date.");
+        compressionPanel.add(forceBox);
+        hashBox = new JCheckBox(HASH_BOX_NAME);
+        hashBox.setToolTipText("Detect changed inputs by content, not only by size and modification time.");
+        compressionPanel.add(hashBox);
+        calibrateBox = new JCheckBox(CALIBRATE_BOX_NAME);
+        calibrateBox.setToolTipText("Time a few tile sizes on the first file and remember the fastest one " +
+                "for its scanner format.");
+        compressionPanel.add(calibrateBox);
+        compressionPanel.add(new JLabel(READ_AHEAD_FIELD_NAME));
+        readAheadField = new JTextField(String.valueOf(DEFAULT_READ_AHEAD), 4);
+        readAheadField.setToolTipText("While a slide converts, open the files of the next slide and read the " +
+                "beginning of its image data, up to this amount. 0 to disable.");
+        compressionPanel.add(readAheadField);
+
+        // Shading correction
+        JPanel shadingPanel = new JPanel();
+        shadingPanel.setLayout(new FlowLayout(FlowLayout.LEFT, 0, 5));
+        shadingPanel.add(new JLabel(SHADING_CHOOSER_NAME));
+        shadingChooser = new JComboBox<>(SHADING_CHOICES);
+        shadingChooser.setName(SHADING_CHOOSER_NAME);
+        shadingPanel.add(shadingChooser);
+        shadingLabel = new JLabel();
+        shadingPanel.add(shadingLabel);
+        shadingField = new JTextField(14);
+        shadingPanel.add(shadingField);
+        shadingChooser.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent e) {
+                updateShadingField();
+            }
+        });
+        updateShadingField();
+
+        // Stain separation of bright-field files
+        shadingPanel.add(new JLabel(STAIN_CHOOSER_NAME));
+        stainChooser = new JComboBox<>();
+        stainChooser.addItem("None");
+        for (String preset : StainSeparation.PRESETS.keySet()) {
+            stainChooser.addItem(preset);
+        }
+        stainChooser.setEditable(true);
+        stainChooser.setName(STAIN_CHOOSER_NAME);
+        stainChooser.setToolTipText("Write one channel per stain for RGB files. " +
+                "Custom stain vectors in optical density: r g b; r g b[; r g b]");
+        shadingPanel.add(stainChooser);
+
+        // Focus rating of one channel
+        shadingPanel.add(new JLabel(FOCUS_CHOOSER_NAME));
+        focusChooser = new JComboBox<>();
+        focusChooser.addItem("None");
+        for (String name : HTplusFluo.Channel.getNames()) {
+            focusChooser.addItem(name);
+        }
+        focusChooser.setName(FOCUS_CHOOSER_NAME);
+        focusChooser.setToolTipText("Rate the sharpness of every tile of this channel and write a focus map " +
+                "and summary next to the output.");
+        shadingPanel.add(focusChooser);
+
+        // Background subtraction of fluorescence channels
+        shadingPanel.add(new JLabel(BACKGROUND_FIELD_NAME));
+        backgroundField = new JTextField(4);
+        backgroundField.setToolTipText("Subtract the background of the fluorescence channels with a rolling ball " +
+                "of this radius, in pixels of the output. Leave empty for none.");
+        shadingPanel.add(backgroundField);
+
+        // Unmixing of the bleed-through between fluorescence channels
+        shadingPanel.add(new JLabel(UNMIXING_FIELD_NAME));
+        unmixingField = new JTextField(10);
+        unmixingField.setToolTipText("Mixing matrix of the selected channels, in their order: the fraction of each " +
+                "dye (column) measured in each channel (row), e.g. 1 0.1; 0.2 1, or a file with one row per line.");
+        shadingPanel.add(unmixingField);
+        registerBox = new JCheckBox(REGISTER_BOX_NAME);
+        registerBox.setToolTipText("Align the fluorescence channels to the first one by phase correlation " +
+                "on a low resolution level.");
+        shadingPanel.add(registerBox);
 
         // Create the table
         DefaultTableModel model = new DefaultTableModel(new String[5][2], COLUMN_NAMES);
@@ -123,10 +316,14 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
         this.add(filePanel, constraints);
         constraints.gridy = 1;
         this.add(magPanel, constraints);
-        constraints.weighty = 1;
         constraints.gridy = 2;
-        this.add(tablePanel, constraints);
+        this.add(compressionPanel, constraints);
         constraints.gridy = 3;
+        this.add(shadingPanel, constraints);
+        constraints.weighty = 1;
+        constraints.gridy = 4;
+        this.add(tablePanel, constraints);
+        constraints.gridy = 5;
         constraints.weighty = 0;
         this.add(buttonPanel, constraints);
 
@@ -179,6 +376,142 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
         return seriesChooser.getSelectedIndex();
     }
 
+    /**
+     * @return target pixel size in micrometer, 0 if none was entered
+     */
+    double getTargetPixelSize() {
+        String text = pixelSizeField.getText().trim();
+        if (text.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0, Double.parseDouble(text));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    String getSelectedCompression() {
+        return (String) compressionChooser.getSelectedItem();
+    }
+
+    private void updateShadingField() {
+        int choice = shadingChooser.getSelectedIndex();
+        shadingField.setEnabled(choice > 0);
+        if (choice == 2) {
+            shadingLabel.setText(" directory ");
+            shadingField.setToolTipText("Directory with <channel>_flat.tif and optionally <channel>_dark.tif, " +
+                    "at the resolution of the converted series.");
+        } else {
+            shadingLabel.setText(" profile [px] ");
+            shadingField.setToolTipText("Size of the repeating shading profile (camera field or scan lane) " +
+                    "in pixels of the converted series, e.g. 2048x1.");
+        }
+    }
+
+    /**
+     * @return shading correction settings or null if the channels are not corrected
+     * @throws IllegalArgumentException if the profile size or directory is invalid
+     */
+    ShadingCorrection.Settings getShadingSettings() {
+        String text = shadingField.getText().trim();
+        switch (shadingChooser.getSelectedIndex()) {
+            case 1:
+                String[] size = text.toLowerCase().split("x");
+                try {
+                    return ShadingCorrection.Settings.estimated(Integer.parseInt(size[0].trim()),
+                            (size.length > 1) ? Integer.parseInt(size[1].trim()) : 1, 0);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid shading profile size: " + text);
+                }
+            case 2:
+                File directory = new File(text);
+                if (!directory.isDirectory()) {
+                    throw new IllegalArgumentException("Not a directory: " + text);
+                }
+                return ShadingCorrection.Settings.fromReferences(directory);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return stain separation of the RGB files or null to write the color planes
+     * @throws IllegalArgumentException if the stain vectors are invalid
+     */
+    StainSeparation getStainSeparation() {
+        String text = String.valueOf(stainChooser.getSelectedItem()).trim();
+        if (text.isEmpty() || text.equals("None")) {
+            return null;
+        }
+
+        return StainSeparation.parse(text);
+    }
+
+    /**
+     * @return background subtraction of the channels or null
+     * @throws IllegalArgumentException if the radius is invalid
+     */
+    BackgroundSubtraction getBackgroundSubtraction() {
+        return BackgroundSubtraction.parse(backgroundField.getText());
+    }
+
+    /**
+     * @return unmixing of the channels or null
+     * @throws IllegalArgumentException if the matrix is invalid
+     */
+    SpectralUnmixing getSpectralUnmixing() {
+        return SpectralUnmixing.parse(unmixingField.getText());
+    }
+
+    /**
+     * @return channel of which the focus is rated or null
+     */
+    HTplusFluo.Channel getFocusChannel() {
+        String name = (String) focusChooser.getSelectedItem();
+        return (name == null || name.equals("None")) ? null : HTplusFluo.Channel.get(name);
+    }
+
+    /**
+     * @return true if the channel files should be aligned to the first one
+     */
+    boolean isRegisteringChannels() {
+        return registerBox.isSelected();
+    }
+
+    /**
+     * @return true if the tile size should be calibrated before the conversion
+     */
+    boolean isCalibratingTiles() {
+        return calibrateBox.isSelected();
+    }
+
+    /**
+     * @return number of bytes read ahead of the next slide, 0 if nothing is read ahead
+     */
+    long getReadAheadBudget() {
+        try {
+            return Math.max(0, Long.parseLong(readAheadField.getText().trim())) << 20;
+        } catch (NumberFormatException e) {
+            return (long) DEFAULT_READ_AHEAD << 20;
+        }
+    }
+
+    /**
+     * @return true if up to date outputs should be converted again
+     */
+    boolean isForced() {
+        return forceBox.isSelected();
+    }
+
+    /**
+     * @return true if the input fingerprints should include a partial content hash
+     */
+    boolean isHashingInputs() {
+        return hashBox.isSelected();
+    }
+
     private void selectAll() {
         for (int i = 0; i < table.getRowCount(); i++) {
             table.setValueAt(Integer.toString(i), i, 0);
@@ -200,13 +533,106 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
         }
     }
 
+    /**
+     * Start probing a newly selected directory. The scan runs in the background, the table and the
+     * series list are filled as the results arrive.
+     */
     private void updateContent() {
-        pathField.setText(fileChooser.getSelectedFile().getAbsolutePath());
+        final File directory = fileChooser.getSelectedFile();
+        pathField.setText(directory.getAbsolutePath());
 
-        // Channels
+        final int generation = ++probeGeneration;
+        setChannels(new ArrayList<HTplusFluo.Channel>());
+        seriesChooser.removeAllItems();
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+        prober.submit(new Runnable() {
+            @Override
+            public void run() {
+                probe(directory, generation);
+            }
+        });
+    }
+
+    /**
+     * Scan a directory once, read the series of the first file and then prefetch the metadata of
+     * the other files. Runs on the probing thread and gives up as soon as another directory is
+     * selected.
+     */
+    private void probe(File directory, final int generation) {
+        try {
+            final HashMap<HTplusFluo.Channel, List<File>> files = NdpiUtils.getFiles(directory);
+            final List<HTplusFluo.Channel> channels = new ArrayList<>(files.keySet());
+            publish(generation, new Runnable() {
+                @Override
+                public void run() {
+                    setChannels(channels);
+                    if (files.isEmpty()) {
+                        setCursor(Cursor.getDefaultCursor());
+                        JOptionPane.showMessageDialog(BatchConverterDialog.this,
+                                "There are no NDPI files in the selected directory.\nTry another one.");
+                    }
+                }
+            });
+            if (files.isEmpty()) {
+                return;
+            }
+
+            // Series
+            File first = files.get(channels.get(0)).get(0);
+            final List<String> pixelSizes = NdpiUtils.getSeriesPixelSizes(first);
+            publish(generation, new Runnable() {
+                @Override
+                public void run() {
+                    seriesChooser.removeAllItems();
+                    for (String item : pixelSizes) {
+                        seriesChooser.addItem(item);
+                    }
+                    setCursor(Cursor.getDefaultCursor());
+                }
+            });
+
+            // Prefetch the metadata of the remaining files for the conversion run, from the file
+            // headers only, files without pixel size tags are left to the conversion
+            for (List<File> list : files.values()) {
+                for (File file : list) {
+                    if (generation != probeGeneration) {
+                        return;
+                    }
+                    NdpiUtils.prefetchSeriesPixelSizes(file);
+                }
+            }
+        } catch (IOException | FormatException e) {
+            final String message = e.getMessage();
+            publish(generation, new Runnable() {
+                @Override
+                public void run() {
+                    setCursor(Cursor.getDefaultCursor());
+                    JOptionPane.showMessageDialog(BatchConverterDialog.this,
+                            "Cannot read the series of the selected directory:\n" + message,
+                            "NDPI Converter", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Run an update on the EDT unless the probe it belongs to is outdated
+     */
+    private void publish(final int generation, final Runnable update) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == probeGeneration) {
+                    update.run();
+                }
+            }
+        });
+    }
+
+    private void setChannels(List<HTplusFluo.Channel> channels) {
         ListSelectionModel selectionModel = table.getSelectionModel();
         selectionModel.removeListSelectionListener(this);
-        List<HTplusFluo.Channel> channels = NdpiUtils.getChannelList(fileChooser.getSelectedFile());
 
         int nRows = channels.size();
 
@@ -221,26 +647,14 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
         selectionModel.addListSelectionListener(this);
         selectAll();
         updateSelection();
+    }
 
-        // Series
-        try {
-//            File file = NdpiUtils.getFirstFile(fileChooser.getSelectedFile());
-            HashMap<HTplusFluo.Channel, List<File>> files = NdpiUtils.getFiles(fileChooser.getSelectedFile());
-            if (files.isEmpty()) {
-                JOptionPane.showMessageDialog(this,
-                        "There are no NDPI files in the selected directory.\nTry another one.");
-                return;
-            }
-
-            File file = files.get(files.keySet().iterator().next()).get(0);
-            List<String> pixelSizes = NdpiUtils.getSeriesPixelSizes(file);
-            seriesChooser.removeAllItems();
-            for (String item : pixelSizes) {
-                seriesChooser.addItem(item);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /** {@inheritDoc} */
+    @Override
+    public void dispose() {
+        probeGeneration++;
+        prober.shutdown();
+        super.dispose();
     }
 
     /** {@inheritDoc} */
@@ -351,6 +765,9 @@ public class BatchConverterDialog extends JDialog implements ActionListener, Lis
             System.out.println("\t" + channel);
         }
         System.out.println("Series index: " + dialog.getSelectedSeries());
+        System.out.println("Target pixel size: " + dialog.getTargetPixelSize());
+        System.out.println("Compression: " + dialog.getSelectedCompression());
+        System.out.println("Reconvert all: " + dialog.isForced());
         System.exit(0);
     }
 }
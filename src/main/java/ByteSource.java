@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Positional reads of a file, shared by the threads that decode its restart intervals. The bytes
+ * come from the memory mapping of a registered file (see {@link MappedFileHandle#getSource(String)})
+ * or from a file channel.
+ */
+abstract class ByteSource {
+
+    /**
+     * Read bytes at an absolute position, without moving a file pointer
+     *
+     * @param target buffer filled from its position up to its limit
+     * @param position file position of the first byte
+     * @return number of bytes read, -1 at the end of the file
+     * @throws IOException if the file cannot be read
+     */
+    abstract int read(ByteBuffer target, long position) throws IOException;
+
+    /**
+     * @param channel open file channel
+     * @return source reading from the channel
+     */
+    static ByteSource of(final FileChannel channel) {
+        return new ByteSource() {
+            @Override
+            int read(ByteBuffer target, long position) throws IOException {
+                return channel.read(target, position);
+            }
+        };
+    }
+}
@@ -0,0 +1,263 @@
+import loci.formats.FormatException;
+import loci.formats.ImageWriter;
+import loci.formats.meta.MetadataStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Merge the channel files of a slide into one multichannel output.
+ *
+ * Every channel file gets its own reader and thread. For each output tile the channels are read
+ * concurrently, and while the tiles of one region are written the next region is already read.
+ * A merge therefore takes about as long as reading the slowest channel.
+ */
+class ChannelMerger implements Closeable {
+
+    private final List<NdpiRegionReader> readers;
+    private final ExecutorService executor;
+
+
+    /**
+     * Open the channel files concurrently
+     *
+     * @param ids file path of each channel, in output order
+     * @param series series index
+     * @param store metadata store populated with the metadata of the first file, or null
+     * @throws IOException if a file cannot be read
+     * @throws FormatException if a file format is not supported
+     */
+    ChannelMerger(List<String> ids, final int series, final MetadataStore store) throws IOException, FormatException {
+        executor = Executors.newFixedThreadPool(ids.size());
+
+        List<Future<NdpiRegionReader>> opened = new ArrayList<>(ids.size());
+        for (int c = 0; c < ids.size(); c++) {
+            final String id = ids.get(c);
+            final MetadataStore channelStore = (c == 0) ? store : null;
+            opened.add(executor.submit(new Callable<NdpiRegionReader>() {
+                @Override
+                public NdpiRegionReader call() throws IOException, FormatException {
+                    return new NdpiRegionReader(id, series, channelStore);
+                }
+            }));
+        }
+
+        readers = new ArrayList<>(ids.size());
+        try {
+            for (Future<NdpiRegionReader> reader : opened) {
+                readers.add(get(reader));
+            }
+        } catch (IOException | FormatException e) {
+            close();
+            throw e;
+        }
+    }
+
+    int getChannelCount() {
+        return readers.size();
+    }
+
+    NdpiRegionReader getReader(int channel) {
+        return readers.get(channel);
+    }
+
+    /**
+     * Write all the channels tile by tile. The output planes are numbered channel after channel,
+     * in the order of the readers and of their input planes. The reads of a channel are serialized
+     * on its reader; the tiles of a channel are read at the output position plus its offset, the
+     * parts outside of the channel file are black. The background subtraction runs on a pool of
+     * all processors, with as many regions in flight as it takes to keep the pool busy. The tiles
+     * of all channels of a region are unmixed together after the shading correction and
+     * background subtraction, plane by plane.
+     *
+     * @param writer output writer
+     * @param planes input planes (channel separated) of each channel
+     * @param resampler resampler or null
+     * @param corrections shading correction of each channel (null entries for none)
+     * @param background background subtraction of all channels or null
+     * @param unmixing unmixing of the channels or null
+     * @param offsets offset x and y of each channel in output pixels (see {@link ChannelRegistration}) or null
+     * @param statistics statistics of the written tiles or null
+     * @param focusMap focus map of the written tiles or null
+     * @throws IOException if reading or writing fails
+     * @throws FormatException if a tile cannot be decoded or encoded
+     */
+    void write(ImageWriter writer, List<int[]> planes, AreaResampler resampler, List<ShadingCorrection> corrections,
+               BackgroundSubtraction background, SpectralUnmixing unmixing, int[][] offsets,
+               ChannelStatistics statistics, FocusMap focusMap) throws IOException, FormatException {
+        int tileWidth = writer.getTileSizeX();
+        int tileHeight = writer.getTileSizeY();
+        int sizeX = readers.get(0).getSizeX();
+        int sizeY = readers.get(0).getSizeY();
+        int outSizeX = (resampler == null) ? sizeX : resampler.getOutputSize(sizeX);
+        int outSizeY = (resampler == null) ? sizeY : resampler.getOutputSize(sizeY);
+
+        List<int[]> regions = new ArrayList<>();
+        for (int y = 0; y < outSizeY; y += tileHeight) {
+            for (int x = 0; x < outSizeX; x += tileWidth) {
+                regions.add(new int[]{x, y, Math.min(tileWidth, outSizeX - x), Math.min(tileHeight, outSizeY - y)});
+            }
+        }
+
+        // Read ahead by one region, or by enough regions to occupy the processors with the subtraction
+        int ahead = 1;
+        ExecutorService pool = executor;
+        if (background != null) {
+            ahead = Math.max(1, Runtime.getRuntime().availableProcessors() / readers.size());
+            pool = Executors.newFixedThreadPool(readers.size() * ahead);
+        }
+
+        try {
+            Deque<List<Future<byte[][]>>> pending = new ArrayDeque<>();
+            int next = 0;
+            for (int r = 0; r < regions.size(); r++) {
+                for (; next < regions.size() && next <= r + ahead; next++) {
+                    pending.add(read(pool, regions.get(next), planes, resampler, corrections, background, offsets,
+                            outSizeX, outSizeY));
+                }
+
+                int[] region = regions.get(r);
+                List<Future<byte[][]>> channels = pending.poll();
+                byte[][][] data = new byte[channels.size()][][];
+                for (int c = 0; c < data.length; c++) {
+                    data[c] = get(channels.get(c));
+                }
+                if (unmixing != null) {
+                    unmix(unmixing, data, region[2] * region[3]);
+                }
+
+                int outPlane = 0;
+                for (byte[][] channel : data) {
+                    for (byte[] tile : channel) {
+                        if (statistics != null) {
+                            statistics.add(outPlane, tile, region[2] * region[3]);
+                        }
+                        if (focusMap != null) {
+                            focusMap.add(outPlane, tile, region[0], region[1], region[2], region[3]);
+                        }
+                        writer.saveBytes(outPlane++, tile, region[0], region[1], region[2], region[3]);
+                    }
+                }
+            }
+        } finally {
+            if (pool != executor) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private List<Future<byte[][]>> read(ExecutorService pool, final int[] region, List<int[]> planes,
+                                        final AreaResampler resampler, List<ShadingCorrection> corrections,
+                                        final BackgroundSubtraction background, int[][] offsets,
+                                        final int outSizeX, final int outSizeY) {
+        List<Future<byte[][]>> tiles = new ArrayList<>(readers.size());
+        for (int c = 0; c < readers.size(); c++) {
+            final NdpiRegionReader reader = readers.get(c);
+            final int[] channelPlanes = planes.get(c);
+            final ShadingCorrection correction = corrections.get(c);
+            final int[] offset = (offsets == null) ? null : offsets[c];
+            tiles.add(pool.submit(new Callable<byte[][]>() {
+                @Override
+                public byte[][] call() throws IOException, FormatException {
+                    int[] source = (background == null) ? region : background.getRegion(
+                            region[0], region[1], region[2], region[3], outSizeX, outSizeY);
+
+                    // A reader is used by one thread at a time
+                    byte[][] data = new byte[channelPlanes.length][];
+                    synchronized (reader) {
+                        for (int p = 0; p < channelPlanes.length; p++) {
+                            data[p] = (offset == null) ? NdpiUtils.readTile(reader, channelPlanes[p],
+                                    source[0], source[1], source[2], source[3], resampler, correction) :
+                                    readShifted(reader, channelPlanes[p], source, offset, outSizeX, outSizeY,
+                                            resampler, correction);
+                        }
+                    }
+
+                    for (int p = 0; background != null && p < data.length; p++) {
+                        data[p] = background.apply(data[p], source, region[0], region[1], region[2], region[3]);
+                    }
+                    return data;
+                }
+            }));
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Read a tile at an offset, with black where the shifted tile leaves the plane
+     */
+    private static byte[] readShifted(NdpiRegionReader reader, int plane, int[] region, int[] offset,
+                                      int outSizeX, int outSizeY, AreaResampler resampler,
+                                      ShadingCorrection correction) throws IOException, FormatException {
+        int x = region[0] + offset[0];
+        int y = region[1] + offset[1];
+        int w = region[2];
+        int h = region[3];
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = Math.min(outSizeX, x + w);
+        int y1 = Math.min(outSizeY, y + h);
+        if (x0 == x && y0 == y && x1 == x + w && y1 == y + h) {
+            return NdpiUtils.readTile(reader, plane, x, y, w, h, resampler, correction);
+        }
+
+        byte[] tile = new byte[w * h];
+        if (x1 > x0 && y1 > y0) {
+            byte[] part = NdpiUtils.readTile(reader, plane, x0, y0, x1 - x0, y1 - y0, resampler, correction);
+            for (int row = 0; row < y1 - y0; row++) {
+                System.arraycopy(part, row * (x1 - x0), tile, (y0 - y + row) * w + (x0 - x), x1 - x0);
+            }
+        }
+
+        return tile;
+    }
+
+    /**
+     * Unmix the tiles of the channels plane by plane, in place
+     */
+    private static void unmix(SpectralUnmixing unmixing, byte[][][] data, int n) {
+        byte[][] tiles = new byte[data.length][];
+        for (int p = 0; p < data[0].length; p++) {
+            for (int c = 0; c < data.length; c++) {
+                tiles[c] = data[c][p];
+            }
+            unmixing.unmix(tiles, tiles, n);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, FormatException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the channels", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof FormatException) {
+                throw (FormatException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        for (NdpiRegionReader reader : readers) {
+            reader.close();
+        }
+    }
+}
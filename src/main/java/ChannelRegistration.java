@@ -0,0 +1,328 @@
+import loci.formats.FormatException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Translation between the channel files of a slide, estimated by phase correlation.
+ *
+ * The channels are compared on the finest pyramid level that fits a small FFT, so the estimation
+ * costs the decoding of a few hundred kilopixels per channel. Each plane is mean-subtracted and
+ * Hann-windowed, the normalized cross-power spectrum with the first channel is transformed back
+ * and the position of its peak, refined with a parabola, is the offset. The offsets are scaled to
+ * the output resolution and applied while the full resolution tiles are read (see
+ * {@link ChannelMerger}).
+ */
+class ChannelRegistration {
+
+    /** Largest edge of the plane the offsets are estimated on */
+    private static final int SIZE = 1024;
+
+    /** Offsets beyond this fraction of the plane are considered failed estimations */
+    private static final double MAX_SHIFT = 0.25;
+
+    private final String[] names;
+    private final double[][] shifts;
+    private final double[] peaks;
+    private final int[][] offsets;
+    private final int level;
+
+
+    private ChannelRegistration(String[] names, double[][] shifts, double[] peaks, int[][] offsets, int level) {
+        this.names = names;
+        this.shifts = shifts;
+        this.peaks = peaks;
+        this.offsets = offsets;
+        this.level = level;
+    }
+
+    /**
+     * Estimate the offsets of the channels relative to the first channel
+     *
+     * @param ids file path of each channel, in output order
+     * @param channels channel of each file
+     * @param series converted series index
+     * @param planes input planes (channel separated) of each channel
+     * @param outSizeX output width
+     * @param outSizeY output height
+     * @return registration
+     * @throws IOException if a file cannot be read
+     * @throws FormatException if a file has no pyramid to estimate the offsets on
+     */
+    static ChannelRegistration estimate(List<String> ids, List<HTplusFluo.Channel> channels, int series,
+                                        List<int[]> planes, int outSizeX, int outSizeY)
+            throws IOException, FormatException {
+        int level = getLevel(new File(ids.get(0)), series);
+        String[] names = new String[ids.size()];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = channels.get(c).getName();
+        }
+
+        double[][] shifts = new double[ids.size()][2];
+        double[] peaks = new double[ids.size()];
+        int[][] offsets = new int[ids.size()][2];
+        double[][] reference = null;
+        int n = 0;
+        int width = 0;
+        int height = 0;
+        double scaleX = 1;
+        double scaleY = 1;
+        for (int c = 0; c < ids.size(); c++) {
+            try (NdpiRegionReader reader = new NdpiRegionReader(ids.get(c), level, null)) {
+                int z = Math.min(NdpiHeader.getFocalPlane(new File(ids.get(c)), level), planes.get(c).length - 1);
+                int plane = planes.get(c)[z];
+                int sizeX = reader.getSizeX();
+                int sizeY = reader.getSizeY();
+                byte[] pixels = reader.openRegion(plane, new byte[sizeX * sizeY], 0, 0, sizeX, sizeY);
+
+                // Bin planes that are larger than the transform
+                int bin = (Math.max(sizeX, sizeY) + SIZE - 1) / SIZE;
+                int w = sizeX / bin;
+                int h = sizeY / bin;
+                if (c == 0) {
+                    n = Math.max(2, Integer.highestOneBit(Math.max(w, h) - 1) << 1);
+                    width = sizeX;
+                    height = sizeY;
+                    scaleX = bin * outSizeX / (double) sizeX;
+                    scaleY = bin * outSizeY / (double) sizeY;
+                } else if (sizeX != width || sizeY != height) {
+                    throw new FormatException("The channel files differ in size, " + ids.get(c) + " has " +
+                            sizeX + "x" + sizeY + " pixels at level " + level + " instead of " + width + "x" + height);
+                }
+
+                double[][] spectrum = transform(window(pixels, sizeX, bin, w, h, n), n);
+                if (c == 0) {
+                    reference = spectrum;
+                    peaks[0] = 1;
+                    continue;
+                }
+
+                double[] peak = correlate(spectrum, reference, n);
+                shifts[c][0] = peak[0];
+                shifts[c][1] = peak[1];
+                peaks[c] = peak[2];
+                if (Math.abs(peak[0]) <= MAX_SHIFT * w && Math.abs(peak[1]) <= MAX_SHIFT * h) {
+                    offsets[c][0] = (int) Math.round(peak[0] * scaleX);
+                    offsets[c][1] = (int) Math.round(peak[1] * scaleY);
+                }
+            }
+        }
+
+        return new ChannelRegistration(names, shifts, peaks, offsets, level);
+    }
+
+    /**
+     * Finest pyramid level of a file that fits the transform, at most binned by two
+     */
+    private static int getLevel(File file, int series) throws IOException, FormatException {
+        NdpiHeader header = NdpiHeader.read(file);
+        int count = header.getLevelCount();
+        if (!header.isNdpi() || count == 0) {
+            throw new FormatException("Channel registration needs the pyramid of a NDPI file: " + file.getName());
+        }
+
+        for (int level = series; level < count; level++) {
+            NdpiHeader.Directory directory = header.getLevel(level).get(0);
+            if (Math.max(directory.getWidth(), directory.getHeight()) <= 2 * SIZE) {
+                return level;
+            }
+        }
+
+        return count - 1;
+    }
+
+    /**
+     * Binned, mean-subtracted and Hann-windowed plane in the top left corner of a n x n array
+     */
+    private static double[][] window(byte[] pixels, int sizeX, int bin, int w, int h, int n) {
+        double[] values = new double[w * h];
+        double mean = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                double sum = 0;
+                for (int by = 0; by < bin; by++) {
+                    int row = (y * bin + by) * sizeX + x * bin;
+                    for (int bx = 0; bx < bin; bx++) {
+                        sum += pixels[row + bx] & 0xFF;
+                    }
+                }
+                values[y * w + x] = sum;
+                mean += sum;
+            }
+        }
+        mean /= values.length;
+
+        double[][] data = new double[2][n * n];
+        for (int y = 0; y < h; y++) {
+            double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * (y + 0.5) / h);
+            for (int x = 0; x < w; x++) {
+                double wx = 0.5 - 0.5 * Math.cos(2 * Math.PI * (x + 0.5) / w);
+                data[0][y * n + x] = (values[y * w + x] - mean) * wx * wy;
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Peak of the phase correlation of a moving and a reference spectrum
+     *
+     * @return shift x and y of the moving plane and the peak height (1 for identical planes)
+     */
+    private static double[] correlate(double[][] moving, double[][] reference, int n) {
+        double[][] cross = new double[2][n * n];
+        for (int i = 0; i < n * n; i++) {
+            double re = moving[0][i] * reference[0][i] + moving[1][i] * reference[1][i];
+            double im = moving[1][i] * reference[0][i] - moving[0][i] * reference[1][i];
+            double magnitude = Math.hypot(re, im);
+            if (magnitude > 1e-12) {
+                cross[0][i] = re / magnitude;
+                cross[1][i] = im / magnitude;
+            }
+        }
+        inverse(cross, n);
+
+        double[] correlation = cross[0];
+        int best = 0;
+        for (int i = 1; i < correlation.length; i++) {
+            if (correlation[i] > correlation[best]) {
+                best = i;
+            }
+        }
+        int px = best % n;
+        int py = best / n;
+
+        // Sub-pixel refinement along each axis
+        double dx = refine(correlation[py * n + (px + n - 1) % n], correlation[best], correlation[py * n + (px + 1) % n]);
+        double dy = refine(correlation[((py + n - 1) % n) * n + px], correlation[best], correlation[((py + 1) % n) * n + px]);
+
+        return new double[]{wrap(px, n) + dx, wrap(py, n) + dy, correlation[best] / (n * n)};
+    }
+
+    private static double refine(double left, double center, double right) {
+        double denominator = left - 2 * center + right;
+        return (denominator < 0) ? Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denominator)) : 0;
+    }
+
+    private static int wrap(int index, int n) {
+        return (index < n / 2) ? index : index - n;
+    }
+
+    private static double[][] transform(double[][] data, int n) {
+        fft2d(data, n, false);
+        return data;
+    }
+
+    private static void inverse(double[][] data, int n) {
+        fft2d(data, n, true);
+    }
+
+    /**
+     * Unnormalized 2D FFT of a n x n complex array, in place
+     */
+    private static void fft2d(double[][] data, int n, boolean inverse) {
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int y = 0; y < n; y++) {
+            System.arraycopy(data[0], y * n, re, 0, n);
+            System.arraycopy(data[1], y * n, im, 0, n);
+            fft(re, im, inverse);
+            System.arraycopy(re, 0, data[0], y * n, n);
+            System.arraycopy(im, 0, data[1], y * n, n);
+        }
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                re[y] = data[0][y * n + x];
+                im[y] = data[1][y * n + x];
+            }
+            fft(re, im, inverse);
+            for (int y = 0; y < n; y++) {
+                data[0][y * n + x] = re[y];
+                data[1][y * n + x] = im[y];
+            }
+        }
+    }
+
+    /**
+     * Iterative radix-2 FFT of a power of two length, in place
+     */
+    private static void fft(double[] re, double[] im, boolean inverse) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+            double stepRe = Math.cos(angle);
+            double stepIm = Math.sin(angle);
+            for (int start = 0; start < n; start += length) {
+                double wRe = 1;
+                double wIm = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    int a = start + k;
+                    int b = a + length / 2;
+                    double tRe = re[b] * wRe - im[b] * wIm;
+                    double tIm = re[b] * wIm + im[b] * wRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    double next = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return offset x and y of each channel in output pixels, the position in the channel file of
+     * the output pixel (0, 0)
+     */
+    int[][] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * Write the estimated offsets
+     *
+     * @param file output JSON file
+     * @throws IOException if the file cannot be written
+     */
+    void writeJson(File file) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"level\": ").append(level).append(",\n  \"channels\": [");
+        for (int c = 0; c < names.length; c++) {
+            json.append((c > 0) ? ",\n" : "\n").append("    {");
+            json.append("\"name\": \"").append(names[c].replace("\\", "\\\\").replace("\"", "\\\""));
+            json.append("\", \"offset\": [").append(offsets[c][0]).append(", ").append(offsets[c][1]).append("], ");
+            json.append(String.format(Locale.US, "\"shift\": [%.2f, %.2f], \"peak\": %.3f}",
+                    shifts[c][0], shifts[c][1], peaks[c]));
+        }
+        json.append("\n  ]\n}\n");
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+}
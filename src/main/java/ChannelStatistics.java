@@ -0,0 +1,253 @@
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.MapPair;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Per-channel histograms of 8-bit output planes, accumulated while the tiles are written.
+ *
+ * Minimum, maximum, mean and percentiles are derived from the histograms, so a viewer or a QC
+ * script gets the display range of a channel from the OME-XML annotations or from the sidecar
+ * JSON file without reading the pixels again.
+ */
+class ChannelStatistics {
+
+    /** Namespace of the map annotations */
+    static final String NAMESPACE = "ndpi-converter/channel-statistics";
+
+    /** Reported percentiles */
+    private static final double[] PERCENTILES = {0.1, 1, 5, 50, 95, 99, 99.9};
+
+    private final String[] names;
+    private final int[] planeChannels;
+    private final long[][] histograms;
+
+
+    /**
+     * @param names output channel names (null entries get a generic name)
+     * @param planeChannels output channel of each output plane
+     */
+    ChannelStatistics(String[] names, int[] planeChannels) {
+        this.names = new String[names.length];
+        for (int c = 0; c < names.length; c++) {
+            this.names[c] = (names[c] == null) ? "Channel " + c : names[c];
+        }
+        for (int channel : planeChannels) {
+            if (channel < 0 || channel >= names.length) {
+                throw new IllegalArgumentException("Output channel " + channel + " of " + names.length);
+            }
+        }
+        this.planeChannels = planeChannels.clone();
+        this.histograms = new long[names.length][256];
+    }
+
+    /**
+     * Output channels of planes written channel after channel, all z-planes of a channel in a row
+     *
+     * @param sizeC number of output channels
+     * @param sizeZ number of z-planes per channel
+     * @return output channel of each output plane
+     */
+    static int[] getPlaneChannels(int sizeC, int sizeZ) {
+        int[] channels = new int[sizeC * sizeZ];
+        for (int p = 0; p < channels.length; p++) {
+            channels[p] = p / sizeZ;
+        }
+        return channels;
+    }
+
+    /**
+     * Output channels of planes written file after file, each with its input planes in order, as
+     * {@link ChannelMerger#write} numbers them. A bright-field file has three output channels, its
+     * channel separated planes are ordered color component before z-plane.
+     *
+     * @param channels channel of each file
+     * @param planes input planes of each file
+     * @return output channel of each output plane
+     */
+    static int[] getMergedPlaneChannels(List<HTplusFluo.Channel> channels, List<int[]> planes) {
+        List<Integer> planeChannels = new ArrayList<>();
+        int first = 0;
+        for (int c = 0; c < planes.size(); c++) {
+            boolean rgb = channels.get(c).equals(HTplusFluo.Channel.RGB);
+            for (int plane : planes.get(c)) {
+                planeChannels.add(rgb ? first + plane % 3 : first);
+            }
+            first += rgb ? 3 : 1;
+        }
+
+        int[] result = new int[planeChannels.size()];
+        for (int p = 0; p < result.length; p++) {
+            result[p] = planeChannels.get(p);
+        }
+        return result;
+    }
+
+    /**
+     * Add a written tile
+     *
+     * @param outPlane output plane index
+     * @param tile tile data
+     * @param n number of pixels of the tile
+     * @throws IllegalArgumentException if the plane is not an output plane
+     */
+    void add(int outPlane, byte[] tile, int n) {
+        if (outPlane < 0 || outPlane >= planeChannels.length) {
+            throw new IllegalArgumentException("Output plane " + outPlane + " of " + planeChannels.length);
+        }
+        long[] histogram = histograms[planeChannels[outPlane]];
+        for (int i = 0; i < n; i++) {
+            histogram[tile[i] & 0xFF]++;
+        }
+    }
+
+    int getChannelCount() {
+        return names.length;
+    }
+
+    long getPixelCount(int channel) {
+        long n = 0;
+        for (long count : histograms[channel]) {
+            n += count;
+        }
+        return n;
+    }
+
+    int getMin(int channel) {
+        long[] histogram = histograms[channel];
+        for (int v = 0; v < histogram.length; v++) {
+            if (histogram[v] > 0) {
+                return v;
+            }
+        }
+        return 0;
+    }
+
+    int getMax(int channel) {
+        long[] histogram = histograms[channel];
+        for (int v = histogram.length - 1; v >= 0; v--) {
+            if (histogram[v] > 0) {
+                return v;
+            }
+        }
+        return 0;
+    }
+
+    double getMean(int channel) {
+        long[] histogram = histograms[channel];
+        double sum = 0;
+        for (int v = 0; v < histogram.length; v++) {
+            sum += (double) v * histogram[v];
+        }
+        long n = getPixelCount(channel);
+        return (n > 0) ? sum / n : 0;
+    }
+
+    /**
+     * @param channel channel index
+     * @param percentile percentile in [0, 100]
+     * @return smallest value of which at least the given percentage of the pixels is smaller or equal
+     */
+    int getPercentile(int channel, double percentile) {
+        long[] histogram = histograms[channel];
+        double target = getPixelCount(channel) * percentile / 100;
+        long cumulative = 0;
+        for (int v = 0; v < histogram.length; v++) {
+            cumulative += histogram[v];
+            if (cumulative > 0 && cumulative >= target) {
+                return v;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    /**
+     * Add one map annotation per channel to the first image of the output metadata. The writer
+     * serializes the metadata when it is closed, so this has to be called before.
+     *
+     * @param meta output metadata
+     */
+    void store(OMEXMLMetadata meta) {
+        int annotation = meta.getMapAnnotationCount();
+        int ref = meta.getImageAnnotationRefCount(0);
+
+        for (int c = 0; c < names.length; c++) {
+            List<MapPair> values = new ArrayList<>();
+            values.add(new MapPair("Channel", names[c]));
+            values.add(new MapPair("Pixels", String.valueOf(getPixelCount(c))));
+            values.add(new MapPair("Min", String.valueOf(getMin(c))));
+            values.add(new MapPair("Max", String.valueOf(getMax(c))));
+            values.add(new MapPair("Mean", String.format(Locale.US, "%.3f", getMean(c))));
+            for (double percentile : PERCENTILES) {
+                values.add(new MapPair("P" + format(percentile), String.valueOf(getPercentile(c, percentile))));
+            }
+            values.add(new MapPair("Histogram", join(histograms[c])));
+
+            String id = MetadataTools.createLSID("Annotation", annotation);
+            meta.setMapAnnotationID(id, annotation);
+            meta.setMapAnnotationNamespace(NAMESPACE, annotation);
+            meta.setMapAnnotationDescription("Statistics of channel " + names[c], annotation);
+            meta.setMapAnnotationValue(values, annotation);
+            meta.setImageAnnotationRef(id, 0, ref++);
+            annotation++;
+        }
+    }
+
+    /**
+     * Write the statistics as JSON
+     *
+     * @param file sidecar file
+     * @throws IOException if the file cannot be written
+     */
+    void writeJson(File file) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"channels\": [");
+        for (int c = 0; c < names.length; c++) {
+            json.append((c > 0) ? ",\n" : "\n").append("    {\n");
+            json.append("      \"name\": \"").append(escape(names[c])).append("\",\n");
+            json.append("      \"pixels\": ").append(getPixelCount(c)).append(",\n");
+            json.append("      \"min\": ").append(getMin(c)).append(",\n");
+            json.append("      \"max\": ").append(getMax(c)).append(",\n");
+            json.append("      \"mean\": ").append(String.format(Locale.US, "%.3f", getMean(c))).append(",\n");
+            json.append("      \"percentiles\": {");
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                json.append((p > 0) ? ", " : "").append('"').append(format(PERCENTILES[p])).append("\": ");
+                json.append(getPercentile(c, PERCENTILES[p]));
+            }
+            json.append("},\n");
+            json.append("      \"histogram\": [").append(join(histograms[c])).append("]\n");
+            json.append("    }");
+        }
+        json.append("\n  ]\n}\n");
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+
+    private static String format(double percentile) {
+        return (percentile == Math.rint(percentile)) ? String.valueOf((int) percentile) : String.valueOf(percentile);
+    }
+
+    private static String join(long[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            builder.append((i > 0) ? "," : "").append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
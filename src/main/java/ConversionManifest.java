@@ -0,0 +1,173 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * Record of the conversions of an output directory.
+ *
+ * For every output file the manifest keeps a fingerprint of its inputs (path, size, modification
+ * time and optionally a hash of the beginning and end of the file) together with the conversion
+ * parameters. An output is up to date if its fingerprint did not change, which can be decided
+ * without opening any of the input files.
+ */
+class ConversionManifest {
+
+    /** Name of the manifest file in the output directory */
+    static final String FILE_NAME = ".ndpi-conversions.properties";
+
+    /** Suffix of the fingerprint of a conversion that fell back to another compression */
+    private static final String FALLBACK = ";fallback=";
+
+    /** Number of bytes hashed at the beginning and at the end of an input file */
+    private static final int HASH_BYTES = 1 << 20;
+
+    private final File file;
+    private final Properties entries = new Properties();
+
+
+    private ConversionManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the manifest of a directory
+     *
+     * @param directory output directory
+     * @return the manifest, empty if there is none yet
+     * @throws IOException if the manifest cannot be read
+     */
+    static ConversionManifest load(File directory) throws IOException {
+        ConversionManifest manifest = new ConversionManifest(new File(directory, FILE_NAME));
+        if (manifest.file.exists()) {
+            try (InputStream in = new FileInputStream(manifest.file)) {
+                manifest.entries.load(in);
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Fingerprint of a conversion
+     *
+     * @param inputs input file path for each channel, in output order
+     * @param series series index
+     * @param compression compression name
+     * @param pixelSize target pixel size in micrometer or 0
+     * @param options further options that change the output (e.g. the shading correction)
+     * @param hash whether to include a hash of the beginning and end of each input file
+     * @return fingerprint of inputs and parameters
+     * @throws IOException if an input file cannot be hashed
+     */
+    static String fingerprint(Map<HTplusFluo.Channel, String> inputs, int series, String compression,
+                              double pixelSize, String options, boolean hash) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append("series=").append(series);
+        builder.append(";compression=").append(compression);
+        builder.append(";pixelSize=").append(String.format(Locale.US, "%.6f", pixelSize));
+        builder.append(";options=").append(options);
+
+        for (HTplusFluo.Channel channel : inputs.keySet()) {
+            File input = new File(inputs.get(channel));
+            builder.append(';').append(channel.getName()).append('=').append(input.getAbsolutePath());
+            builder.append('|').append(input.length()).append('|').append(input.lastModified());
+            if (hash) {
+                builder.append('|').append(hash(input));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private static String hash(File input) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(input, "r")) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[(int) Math.min(HASH_BYTES, raf.length())];
+
+            raf.readFully(buffer);
+            digest.update(buffer);
+            raf.seek(raf.length() - buffer.length);
+            raf.readFully(buffer);
+            digest.update(buffer);
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param output output file
+     * @return true if the manifest has a record of the output
+     */
+    synchronized boolean contains(File output) {
+        return entries.containsKey(output.getName());
+    }
+
+    /**
+     * Mark a fingerprint as converted with another compression than the requested one. The
+     * fingerprint of the requested conversion still matches, so the output is not converted again.
+     *
+     * @param fingerprint fingerprint of the requested conversion
+     * @param compression compression name of the output
+     * @return fingerprint with the fallback
+     */
+    static String withFallback(String fingerprint, String compression) {
+        return fingerprint + FALLBACK + compression;
+    }
+
+    /**
+     * @param output output file
+     * @param fingerprint fingerprint of the planned conversion
+     * @return true if the output exists and was converted with the same inputs and parameters
+     */
+    synchronized boolean isUpToDate(File output, String fingerprint) {
+        String recorded = entries.getProperty(output.getName());
+        return output.exists() && recorded != null &&
+                (recorded.equals(fingerprint) || recorded.startsWith(fingerprint + FALLBACK));
+    }
+
+    /**
+     * Record a finished conversion and save the manifest
+     */
+    synchronized void record(File output, String fingerprint) throws IOException {
+        entries.setProperty(output.getName(), fingerprint);
+        save();
+    }
+
+    /**
+     * Forget an output and save the manifest
+     */
+    synchronized void remove(File output) throws IOException {
+        if (entries.remove(output.getName()) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Write to a temporary file first, so an interrupted batch never leaves a truncated manifest
+     */
+    private void save() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            entries.store(out, "NDPI conversions: output file = parameters and input fingerprints");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
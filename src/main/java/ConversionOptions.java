@@ -0,0 +1,142 @@
+/**
+ * What a conversion does besides copying the planes: compression, resampling and the optional
+ * processing steps. Options are immutable, each {@code with} method returns a modified copy.
+ *
+ *     ConversionOptions.of("LZW", 0).withShading(shading).withRegistration(true)
+ */
+class ConversionOptions {
+
+    private final String compression;
+    private final double pixelSize;
+    private final ShadingCorrection.Settings shading;
+    private final StainSeparation stains;
+    private final HTplusFluo.Channel focus;
+    private final BackgroundSubtraction background;
+    private final SpectralUnmixing unmixing;
+    private final boolean register;
+
+
+    private ConversionOptions(String compression, double pixelSize, ShadingCorrection.Settings shading,
+                              StainSeparation stains, HTplusFluo.Channel focus, BackgroundSubtraction background,
+                              SpectralUnmixing unmixing, boolean register) {
+        this.compression = compression;
+        this.pixelSize = pixelSize;
+        this.shading = shading;
+        this.stains = stains;
+        this.focus = focus;
+        this.background = background;
+        this.unmixing = unmixing;
+        this.register = register;
+    }
+
+    /**
+     * @param compression compression name
+     * @param pixelSize target pixel size in micrometer, 0 to keep the resolution of the series
+     * @return options without any processing
+     */
+    static ConversionOptions of(String compression, double pixelSize) {
+        return new ConversionOptions(compression, pixelSize, null, null, null, null, null, false);
+    }
+
+    ConversionOptions withCompression(String compression) {
+        return new ConversionOptions(compression, pixelSize, shading, stains, focus, background, unmixing, register);
+    }
+
+    /**
+     * @param shading source of the per-channel shading corrections or null
+     */
+    ConversionOptions withShading(ShadingCorrection.Settings shading) {
+        return new ConversionOptions(compression, pixelSize, shading, stains, focus, background, unmixing, register);
+    }
+
+    /**
+     * @param stains stain separation of a bright-field (RGB) file or null to write the color planes
+     */
+    ConversionOptions withStains(StainSeparation stains) {
+        return new ConversionOptions(compression, pixelSize, shading, stains, focus, background, unmixing, register);
+    }
+
+    /**
+     * @param focus channel of which the focus of the tiles is rated (see {@link FocusMap}) or null
+     */
+    ConversionOptions withFocus(HTplusFluo.Channel focus) {
+        return new ConversionOptions(compression, pixelSize, shading, stains, focus, background, unmixing, register);
+    }
+
+    /**
+     * @param background rolling-ball background subtraction of every fluorescence channel or null
+     */
+    ConversionOptions withBackground(BackgroundSubtraction background) {
+        return new ConversionOptions(compression, pixelSize, shading, stains, focus, background, unmixing, register);
+    }
+
+    /**
+     * @param unmixing unmixing of the fluorescence channels, in the order of the input files, or null
+     */
+    ConversionOptions withUnmixing(SpectralUnmixing unmixing) {
+        return new ConversionOptions(compression, pixelSize, shading, stains, focus, background, unmixing, register);
+    }
+
+    /**
+     * @param register whether to align the fluorescence channels to the first one (see {@link ChannelRegistration})
+     */
+    ConversionOptions withRegistration(boolean register) {
+        return new ConversionOptions(compression, pixelSize, shading, stains, focus, background, unmixing, register);
+    }
+
+    String getCompression() {
+        return compression;
+    }
+
+    double getPixelSize() {
+        return pixelSize;
+    }
+
+    ShadingCorrection.Settings getShading() {
+        return shading;
+    }
+
+    StainSeparation getStains() {
+        return stains;
+    }
+
+    HTplusFluo.Channel getFocus() {
+        return focus;
+    }
+
+    BackgroundSubtraction getBackground() {
+        return background;
+    }
+
+    SpectralUnmixing getUnmixing() {
+        return unmixing;
+    }
+
+    boolean isRegistering() {
+        return register;
+    }
+
+    /**
+     * @return the processing options that change the outputs, for the conversion manifest
+     */
+    String getProcessing() {
+        String options = String.valueOf(shading);
+        if (stains != null) {
+            options += ";stains=" + stains;
+        }
+        if (focus != null) {
+            options += ";focus=" + focus;
+        }
+        if (background != null) {
+            options += ";background=" + background;
+        }
+        if (unmixing != null) {
+            options += ";unmixing=" + unmixing;
+        }
+        if (register) {
+            options += ";register";
+        }
+
+        return options;
+    }
+}
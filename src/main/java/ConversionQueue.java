@@ -0,0 +1,463 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+
+/**
+ * Work queue of conversion jobs in a directory on a shared filesystem.
+ *
+ * Each job is a properties file that moves between the sub-directories pending, claimed, done and
+ * failed by hard links that fail if the target exists, so exactly one worker wins a claim without
+ * any lock server. A worker keeps its claim alive by touching the claimed file; claims whose file
+ * has not been touched for the lease timeout are moved back to pending and picked up by another
+ * worker, up to {@link #MAX_ATTEMPTS} times, after which the job is moved to failed (a job that
+ * kills every worker that claims it would be claimed forever otherwise). The clocks of the hosts
+ * sharing the queue have to agree to well within the lease timeout.
+ */
+class ConversionQueue {
+
+    /** Default time after which a claim without heartbeat is considered abandoned */
+    static final long LEASE_TIMEOUT = 5 * 60 * 1000;
+
+    /** Number of expired claims after which a job is failed instead of queued again */
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final String PENDING = "pending";
+    private static final String CLAIMED = "claimed";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+    private static final String SUFFIX = ".properties";
+    private static final String RECOVERING = ".recovering";
+
+    private final File pending;
+    private final File claimed;
+    private final File done;
+    private final File failed;
+    private final long leaseTimeout;
+
+
+    /**
+     * @param directory queue directory, created if necessary
+     * @param leaseTimeout time in milliseconds after which a claim without heartbeat expires
+     * @throws IOException if the directory cannot be created
+     */
+    ConversionQueue(File directory, long leaseTimeout) throws IOException {
+        this.pending = mkdir(new File(directory, PENDING));
+        this.claimed = mkdir(new File(directory, CLAIMED));
+        this.done = mkdir(new File(directory, DONE));
+        this.failed = mkdir(new File(directory, FAILED));
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    private static File mkdir(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the queue directory " + directory.getAbsolutePath());
+        }
+
+        return directory;
+    }
+
+    /**
+     * Add a job for every channel set of a directory (as picked by the batch converter)
+     *
+     * @param files channel files, see {@link NdpiUtils#getFiles(File)}; the lists are consumed
+     * @param channels channels to merge, in output order
+     * @param series series index
+     * @param compression compression name
+     * @param pixelSize target pixel size in micrometer or 0
+     * @return number of jobs added
+     */
+    int enqueue(HashMap<HTplusFluo.Channel, List<File>> files, List<HTplusFluo.Channel> channels, int series,
+                String compression, double pixelSize) throws IOException {
+        int count = 0;
+        while (true) {
+            HashMap<HTplusFluo.Channel, String> pathSet = BatchConverter.popPathSet(files);
+            if (pathSet.isEmpty()) {
+                return count;
+            }
+
+            LinkedHashMap<HTplusFluo.Channel, String> inputs = new LinkedHashMap<>();
+            for (HTplusFluo.Channel channel : channels) {
+                if (pathSet.containsKey(channel)) {
+                    inputs.put(channel, pathSet.get(channel));
+                }
+            }
+
+            String outputPath = BatchConverter.generateOutputPath(pathSet, series, pixelSize);
+            if (add(new Job(new File(outputPath).getName(), inputs, series, compression, pixelSize, outputPath))) {
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Publish a job in the pending directory
+     *
+     * @return false if the same job is already queued
+     */
+    boolean add(Job job) throws IOException {
+        File tmp = new File(pending, "." + job.getName() + SUFFIX + ".tmp");
+        store(job.toProperties(), tmp);
+        try {
+            move(tmp, new File(pending, job.getName() + SUFFIX));
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            Files.delete(tmp.toPath());
+            return false;
+        }
+    }
+
+    /**
+     * Claim the next pending job. Expired claims are returned to pending first.
+     *
+     * @param worker worker identifier recorded with the claim
+     * @return the claimed job or null if there is none pending
+     */
+    Job claim(String worker) throws IOException {
+        recoverExpired();
+
+        String[] names = pending.list();
+        if (names == null) {
+            return null;
+        }
+        Arrays.sort(names);
+
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX) || name.startsWith(".")) {
+                continue;
+            }
+
+            // Renames keep the modification time, touch the job so that the claim starts fresh
+            File source = new File(pending, name);
+            source.setLastModified(System.currentTimeMillis());
+
+            File target = new File(claimed, name);
+            try {
+                move(source, target);
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                continue; // Another worker was faster
+            }
+
+            Properties properties = load(target);
+            properties.setProperty("worker", worker);
+            store(properties, target);
+
+            return Job.fromProperties(name.substring(0, name.length() - SUFFIX.length()), properties);
+        }
+
+        return null;
+    }
+
+    /**
+     * Renew the lease of a claimed job
+     *
+     * @return false if the claim has been lost (expired and taken over)
+     */
+    boolean heartbeat(Job job) throws IOException {
+        return owns(job) && getClaimedFile(job).setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Mark a claimed job as done
+     *
+     * @return false if the claim had been lost in the meantime
+     */
+    boolean complete(Job job) throws IOException {
+        return finish(job, done, null);
+    }
+
+    /**
+     * Mark a claimed job as failed
+     *
+     * @return false if the claim had been lost in the meantime
+     */
+    boolean fail(Job job, Throwable error) throws IOException {
+        return finish(job, failed, error);
+    }
+
+    private boolean finish(Job job, File directory, Throwable error) throws IOException {
+        if (!owns(job)) {
+            return false;
+        }
+
+        File file = getClaimedFile(job);
+        if (error != null) {
+            Properties properties = load(file);
+            properties.setProperty("error", String.valueOf(error));
+            store(properties, file);
+        }
+
+        try {
+            Files.deleteIfExists(new File(directory, file.getName()).toPath()); // From an earlier run
+            move(file, new File(directory, file.getName()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if there are no pending and no claimed jobs left
+     */
+    boolean isDrained() {
+        return countJobs(pending) == 0 && countJobs(claimed) == 0;
+    }
+
+    private static int countJobs(File directory) {
+        String[] names = directory.list();
+        int count = 0;
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].endsWith(SUFFIX) && !names[i].startsWith(".")) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Move the claims without heartbeat back to pending, or to failed once they have been
+     * abandoned {@link #MAX_ATTEMPTS} times, and count the attempt
+     */
+    private void recoverExpired() throws IOException {
+        File[] files = claimed.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long expiry = System.currentTimeMillis() - leaseTimeout;
+        for (File file : files) {
+            if (file.lastModified() == 0 || file.lastModified() > expiry) {
+                continue;
+            }
+
+            // A worker died while recovering a claim
+            if (file.getName().endsWith(RECOVERING)) {
+                String name = file.getName().substring(1, file.getName().length() - RECOVERING.length());
+                try {
+                    requeue(file, name, load(file));
+                } catch (NoSuchFileException | FileNotFoundException | FileAlreadyExistsException e) {
+                    // Recovered by another worker
+                }
+                continue;
+            }
+
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+
+            // Take the claim over before rewriting it, so only one worker recovers it
+            File recovering = new File(claimed, "." + file.getName() + RECOVERING);
+            try {
+                move(file, recovering);
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                continue;
+            }
+
+            Properties properties = load(recovering);
+            int attempts = getAttempts(properties) + 1;
+            properties.setProperty("attempts", String.valueOf(attempts));
+            properties.remove("worker");
+            if (attempts >= MAX_ATTEMPTS) {
+                properties.setProperty("error", "Abandoned by " + attempts + " workers");
+            }
+            store(properties, recovering);
+            requeue(recovering, file.getName(), properties);
+        }
+    }
+
+    /**
+     * Move a recovered claim to pending, or to failed if it has run out of attempts
+     */
+    private void requeue(File recovering, String name, Properties properties) throws IOException {
+        if (getAttempts(properties) < MAX_ATTEMPTS) {
+            move(recovering, new File(pending, name));
+        } else {
+            Files.deleteIfExists(new File(failed, name).toPath()); // From an earlier run
+            move(recovering, new File(failed, name));
+        }
+    }
+
+    private static int getAttempts(Properties properties) {
+        try {
+            return Integer.parseInt(properties.getProperty("attempts", "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The claim may have expired and been claimed again by another worker
+     */
+    private boolean owns(Job job) throws IOException {
+        try {
+            return job.getWorker().equals(load(getClaimedFile(job)).getProperty("worker"));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    private File getClaimedFile(Job job) {
+        return new File(claimed, job.getName() + SUFFIX);
+    }
+
+    /**
+     * Atomic rename that fails if the target exists. A rename replaces an existing target, so the
+     * file is hard linked to the target, which fails atomically if the target exists (also on
+     * NFS), and the source is removed afterwards.
+     *
+     * @throws FileAlreadyExistsException if the target exists
+     * @throws NoSuchFileException if the source does not exist (any more)
+     */
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("The queue directory has to support hard links", e);
+        }
+
+        Files.delete(source.toPath());
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+
+        return properties;
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "NDPI conversion job");
+        }
+    }
+
+
+    /**
+     * Conversion of one channel set to one output file
+     */
+    static class Job {
+        private final String name;
+        private final LinkedHashMap<HTplusFluo.Channel, String> inputs;
+        private final int series;
+        private final String compression;
+        private final double pixelSize;
+        private final String outputPath;
+        private final int attempts;
+        private final String worker;
+
+        Job(String name, LinkedHashMap<HTplusFluo.Channel, String> inputs, int series, String compression,
+            double pixelSize, String outputPath) {
+            this(name, inputs, series, compression, pixelSize, outputPath, 0, null);
+        }
+
+        private Job(String name, LinkedHashMap<HTplusFluo.Channel, String> inputs, int series, String compression,
+                    double pixelSize, String outputPath, int attempts, String worker) {
+            this.name = name;
+            this.inputs = inputs;
+            this.series = series;
+            this.compression = compression;
+            this.pixelSize = pixelSize;
+            this.outputPath = outputPath;
+            this.attempts = attempts;
+            this.worker = worker;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return input file path for each channel, in output order
+         */
+        LinkedHashMap<HTplusFluo.Channel, String> getInputs() {
+            return inputs;
+        }
+
+        int getSeries() {
+            return series;
+        }
+
+        String getCompression() {
+            return compression;
+        }
+
+        double getPixelSize() {
+            return pixelSize;
+        }
+
+        String getOutputPath() {
+            return outputPath;
+        }
+
+        /**
+         * @return number of times the job has been recovered from an expired claim
+         */
+        int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return identifier of the worker that claimed the job or null
+         */
+        String getWorker() {
+            return worker;
+        }
+
+        private Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("series", String.valueOf(series));
+            properties.setProperty("compression", compression);
+            properties.setProperty("pixelSize", String.valueOf(pixelSize));
+            properties.setProperty("output", outputPath);
+            properties.setProperty("channels", String.valueOf(inputs.size()));
+
+            int c = 0;
+            for (HTplusFluo.Channel channel : inputs.keySet()) {
+                properties.setProperty("channel." + c, channel.getName());
+                properties.setProperty("input." + c++, inputs.get(channel));
+            }
+
+            return properties;
+        }
+
+        private static Job fromProperties(String name, Properties properties) throws IOException {
+            try {
+                LinkedHashMap<HTplusFluo.Channel, String> inputs = new LinkedHashMap<>();
+                int channels = Integer.parseInt(properties.getProperty("channels"));
+                for (int c = 0; c < channels; c++) {
+                    inputs.put(HTplusFluo.Channel.get(properties.getProperty("channel." + c)),
+                            properties.getProperty("input." + c));
+                }
+
+                return new Job(name, inputs,
+                        Integer.parseInt(properties.getProperty("series")),
+                        properties.getProperty("compression"),
+                        Double.parseDouble(properties.getProperty("pixelSize")),
+                        properties.getProperty("output"),
+                        Integer.parseInt(properties.getProperty("attempts", "0")),
+                        properties.getProperty("worker"));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid job file " + name + SUFFIX, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import loci.formats.FormatException;
+import net.imagej.ImageJ;
+import org.apache.commons.io.FilenameUtils;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import org.scijava.widget.NumberWidget;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Export every NDPI file of a directory as a DeepZoom tile pyramid for web viewers (see {@link DeepZoomWriter}).
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > DeepZoom Export")
+public class DeepZoomExport implements Command {
+
+    // Dialog
+    @Parameter(label = "Input directory", style = FileWidget.DIRECTORY_STYLE)
+    private File inputDir;
+
+    @Parameter(label = "Output directory", style = FileWidget.DIRECTORY_STYLE)
+    private File outputDir;
+
+    @Parameter(label = "Series to export", style = NumberWidget.SPINNER_STYLE, min = "1", max = "10", stepSize = "1")
+    private int series = 1;
+
+    @Parameter(label = "Tile format", choices = {"jpg", "png"})
+    private String format = "jpg";
+
+    @Parameter(label = "JPEG quality", style = NumberWidget.SPINNER_STYLE, min = "1", max = "100")
+    private int quality = 90;
+
+    @Parameter(label = "Tile size [px]", style = NumberWidget.SPINNER_STYLE, min = "64", max = "4096")
+    private int tileSize = 254;
+
+    @Parameter(label = "Tile overlap [px]", style = NumberWidget.SPINNER_STYLE, min = "0", max = "16")
+    private int overlap = 1;
+
+
+    // Services
+    @Parameter
+    private LogService logger;
+
+    @Parameter
+    private StatusService status;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        File[] content = inputDir.listFiles();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; content != null && i < content.length; i++) {
+            if (content[i].getName().endsWith("." + HTplusFluo.FILE_EXTENSION)) {
+                files.add(content[i]);
+            }
+        }
+        files.sort(null);
+
+        if (files.isEmpty()) {
+            logger.error("Did not find any ndpi files in " + inputDir.getAbsolutePath());
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < files.size(); i++) {
+            status.showStatus(i, files.size(), "Exporting DeepZoom pyramids...");
+            File file = files.get(i);
+
+            // The descriptor is written last, an existing one marks a complete pyramid
+            File descriptor = new File(outputDir, FilenameUtils.removeExtension(file.getName()) + ".dzi");
+            if (descriptor.exists()) {
+                logger.warn("File already exists: " + descriptor.getAbsolutePath());
+                continue;
+            }
+
+            logger.info("Exporting " + file.getAbsolutePath());
+            long start = System.currentTimeMillis();
+            try (NdpiRegionReader reader = new NdpiRegionReader(file.getAbsolutePath(), series - 1, null)) {
+                DeepZoomWriter writer = new DeepZoomWriter(descriptor, tileSize, overlap, format, quality / 100f, threads);
+                long tiles = writer.write(reader, NdpiHeader.getFocalPlane(file, series - 1));
+                logger.info("\twrote " + tiles + " tiles to " + descriptor.getAbsolutePath() + " in " +
+                        (System.currentTimeMillis() - start) / 1000 + " s");
+            } catch (IOException | FormatException e) {
+                logger.error("Could not export " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+
+        status.showStatus(files.size(), files.size(), "DeepZoom export done.");
+        logger.info("Done.");
+    }
+
+    /**
+     * Run
+     *
+     * @param args input arguments
+     */
+    public static void main(final String... args) {
+        final ImageJ ij = new net.imagej.ImageJ();
+        ij.ui().showUI();
+        ij.command().run(DeepZoomExport.class, true);
+    }
+}
@@ -0,0 +1,326 @@
+import loci.formats.FormatException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Write one plane of a NDPI series as a DeepZoom (DZI) tile pyramid.
+ *
+ * The plane is read once, in bands of full width. Every level keeps only the rows of its current
+ * row of tiles; each pair of rows is averaged into a row of the next smaller level as it arrives,
+ * so all levels are built in the same pass. The tiles are encoded by a pool of workers into the
+ * {@code <name>_files/<level>/<col>_<row>.<format>} layout and the descriptor {@code <name>.dzi}
+ * is written last, so its presence marks a complete pyramid.
+ */
+class DeepZoomWriter {
+
+    private final File descriptor;
+    private final File tileDir;
+    private final int tileSize;
+    private final int overlap;
+    private final String format;
+    private final float quality;
+    private final int threads;
+
+    private ExecutorService executor;
+    private Semaphore pending;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private long tileCount;
+
+
+    /**
+     * @param descriptor DZI descriptor file, the tiles go to the sibling {@code <name>_files} directory
+     * @param tileSize tile edge length without the overlap
+     * @param overlap number of pixels each tile shares with its neighbours
+     * @param format tile format, jpg or png
+     * @param quality JPEG quality in [0, 1]
+     * @param threads number of encoding workers
+     */
+    DeepZoomWriter(File descriptor, int tileSize, int overlap, String format, float quality, int threads) {
+        String name = descriptor.getName();
+        if (name.endsWith(".dzi")) {
+            name = name.substring(0, name.length() - 4);
+        }
+
+        this.descriptor = descriptor;
+        this.tileDir = new File(descriptor.getParentFile(), name + "_files");
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.format = format;
+        this.quality = quality;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Write the pyramid of a z-plane
+     *
+     * @param reader series to export
+     * @param z z-plane index
+     * @return number of tiles written
+     * @throws IOException if a tile cannot be written
+     * @throws FormatException if the plane cannot be decoded
+     */
+    long write(NdpiRegionReader reader, int z) throws IOException, FormatException {
+        int width = reader.getSizeX();
+        int height = reader.getSizeY();
+        int maxLevel = (int) Math.ceil(Math.log(Math.max(width, height)) / Math.log(2));
+
+        // Levels from the full resolution down to 1x1
+        Level[] levels = new Level[maxLevel + 1];
+        for (int l = maxLevel, w = width, h = height; l >= 0; l--, w = (w + 1) / 2, h = (h + 1) / 2) {
+            levels[l] = new Level(l, w, h);
+            File dir = new File(tileDir, String.valueOf(l));
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir.getAbsolutePath());
+            }
+        }
+        for (int l = maxLevel; l > 0; l--) {
+            levels[l].parent = levels[l - 1];
+        }
+
+        executor = Executors.newFixedThreadPool(threads);
+        pending = new Semaphore(4 * threads);
+        failure.set(null);
+        tileCount = 0;
+        try {
+            int rgb = reader.getReader().getRGBChannelCount();
+            byte[][] bands = new byte[rgb][width * tileSize];
+            int[] row = new int[width];
+
+            for (int y = 0; y < height; y += tileSize) {
+                int h = Math.min(tileSize, height - y);
+                if (rgb == 1) {
+                    reader.openRegion(z, bands[0], 0, y, width, h);
+                } else {
+                    reader.openRegions(z, bands, 0, y, width, h);
+                }
+
+                for (int j = 0; j < h; j++) {
+                    int offset = j * width;
+                    for (int i = 0; i < width; i++) {
+                        int r = bands[0][offset + i] & 0xFF;
+                        int g = (rgb > 1) ? bands[1][offset + i] & 0xFF : r;
+                        int b = (rgb > 2) ? bands[2][offset + i] & 0xFF : g;
+                        row[i] = (r << 16) | (g << 8) | b;
+                    }
+                    levels[maxLevel].push(row);
+                    checkFailure();
+                }
+            }
+
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+            checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + tileDir.getAbsolutePath());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        writeDescriptor(width, height);
+
+        return tileCount;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void writeDescriptor(int width, int height) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(descriptor), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + format +
+                    "\" Overlap=\"" + overlap + "\" TileSize=\"" + tileSize + "\">\n");
+            writer.write("  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n");
+            writer.write("</Image>\n");
+        }
+    }
+
+    /**
+     * Queue a tile for encoding, blocking while too many tiles are waiting
+     */
+    private void submit(final File file, final int[] pixels, final int w, final int h) throws IOException {
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + file.getAbsolutePath());
+        }
+
+        tileCount++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        encode(file, pixels, w, h);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    private void encode(File file, int[] pixels, int w, int h) throws IOException {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, w, h, pixels, 0, w);
+
+        try (FileImageOutputStream output = new FileImageOutputStream(file)) {
+            encode(image, format, quality, output);
+        }
+    }
+
+    /**
+     * Encode an image as JPEG or PNG
+     *
+     * @param image image to encode
+     * @param format jpg or png
+     * @param quality JPEG quality in [0, 1]
+     * @param output target stream
+     * @throws IOException if the image cannot be written
+     */
+    static void encode(BufferedImage image, String format, float quality, ImageOutputStream output)
+            throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format.equals("jpg") ? "jpeg" : format).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (format.equals("jpg")) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+        }
+
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * The rows of one pyramid level that are still needed for its tiles
+     */
+    private class Level {
+
+        private final int level;
+        private final int width;
+        private final int height;
+        private Level parent;
+
+        /** Buffered rows, packed RGB, starting with image row first */
+        private final int[] rows;
+        private int first;
+        private int count;
+
+        /** Next row of tiles to write */
+        private int tileRow;
+
+        /** Row waiting for its pair to be averaged into the parent level */
+        private int[] odd;
+
+
+        Level(int level, int width, int height) {
+            this.level = level;
+            this.width = width;
+            this.height = height;
+            this.rows = new int[width * Math.min(height, tileSize + 2 * overlap)];
+        }
+
+        /**
+         * Add the next row of the level
+         */
+        void push(int[] row) throws IOException {
+            System.arraycopy(row, 0, rows, count * width, width);
+            count++;
+            int y = first + count - 1;
+
+            // Average pairs of rows into the parent level
+            if (parent != null) {
+                if (odd == null) {
+                    odd = row.clone();
+                } else {
+                    parent.push(downsample(odd, row));
+                    odd = null;
+                }
+                if (y == height - 1 && odd != null) {
+                    parent.push(downsample(odd, odd));
+                    odd = null;
+                }
+            }
+
+            // Write the rows of tiles once all their rows, including the overlap, are available
+            while (tileRow * tileSize < height && y == Math.min(height, (tileRow + 1) * tileSize + overlap) - 1) {
+                writeTileRow();
+                tileRow++;
+
+                int keep = Math.min(first + count, Math.max(first, tileRow * tileSize - overlap));
+                int drop = keep - first;
+                System.arraycopy(rows, drop * width, rows, 0, (count - drop) * width);
+                count -= drop;
+                first = keep;
+            }
+        }
+
+        private int[] downsample(int[] a, int[] b) {
+            int[] row = new int[parent.width];
+            for (int i = 0; i < row.length; i++) {
+                int x0 = 2 * i;
+                int x1 = Math.min(x0 + 1, width - 1);
+                int p = a[x0];
+                int q = a[x1];
+                int r = b[x0];
+                int s = b[x1];
+                int red = (((p >> 16) & 0xFF) + ((q >> 16) & 0xFF) + ((r >> 16) & 0xFF) + ((s >> 16) & 0xFF) + 2) >> 2;
+                int green = (((p >> 8) & 0xFF) + ((q >> 8) & 0xFF) + ((r >> 8) & 0xFF) + ((s >> 8) & 0xFF) + 2) >> 2;
+                int blue = ((p & 0xFF) + (q & 0xFF) + (r & 0xFF) + (s & 0xFF) + 2) >> 2;
+                row[i] = (red << 16) | (green << 8) | blue;
+            }
+
+            return row;
+        }
+
+        private void writeTileRow() throws IOException {
+            int y0 = Math.max(0, tileRow * tileSize - overlap);
+            int y1 = Math.min(height, (tileRow + 1) * tileSize + overlap);
+            int h = y1 - y0;
+            File dir = new File(tileDir, String.valueOf(level));
+
+            for (int col = 0; col * tileSize < width; col++) {
+                int x0 = Math.max(0, col * tileSize - overlap);
+                int x1 = Math.min(width, (col + 1) * tileSize + overlap);
+                int w = x1 - x0;
+
+                int[] pixels = new int[w * h];
+                for (int j = 0; j < h; j++) {
+                    System.arraycopy(rows, (y0 - first + j) * width + x0, pixels, j * w, w);
+                }
+                submit(new File(dir, col + "_" + tileRow + "." + format), pixels, w, h);
+            }
+        }
+    }
+}
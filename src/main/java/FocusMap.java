@@ -0,0 +1,219 @@
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Focus quality of the output tiles of one plane, measured while the tiles are written.
+ *
+ * The sharpness of a tile is the variance of its Laplacian. Tiles with almost no contrast are
+ * background and are not rated. The map is saved as a 32-bit image with one pixel per tile
+ * (NaN for background) and a summary lists the tiles that are much blurrier than the median
+ * tissue tile of the slide.
+ */
+class FocusMap {
+
+    /** Tiles with a smaller standard deviation are background */
+    private static final double MIN_CONTRAST = 3;
+
+    /** Tissue tiles with less than this fraction of the median sharpness are out of focus */
+    private static final double OUT_OF_FOCUS_RATIO = 0.3;
+
+    /** Number of worst tiles listed in the summary */
+    private static final int WORST_TILES = 20;
+
+    private final int plane;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int columns;
+    private final int rows;
+    private final float[] sharpness;
+
+
+    /**
+     * @param plane output plane index that is rated
+     * @param sizeX output width
+     * @param sizeY output height
+     * @param tileWidth output tile width
+     * @param tileHeight output tile height
+     */
+    FocusMap(int plane, int sizeX, int sizeY, int tileWidth, int tileHeight) {
+        this.plane = plane;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.columns = (sizeX + tileWidth - 1) / tileWidth;
+        this.rows = (sizeY + tileHeight - 1) / tileHeight;
+        this.sharpness = new float[columns * rows];
+        Arrays.fill(sharpness, Float.NaN);
+    }
+
+    /**
+     * Get the output plane that is rated for a focus channel
+     *
+     * @param channels channels of the output, in output order
+     * @param planes input planes of each channel, numbered channel after channel in the output
+     * @param focus focus channel, for bright-field the green plane is rated
+     * @return output plane index or -1 if the output does not contain the channel
+     */
+    static int getPlane(List<HTplusFluo.Channel> channels, List<int[]> planes, HTplusFluo.Channel focus) {
+        int outPlane = 0;
+        for (int c = 0; c < channels.size(); c++) {
+            if (channels.get(c).equals(focus)) {
+                return focus.equals(HTplusFluo.Channel.RGB) ? outPlane + 1 : outPlane;
+            }
+            outPlane += planes.get(c).length;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Rate a written tile if it belongs to the rated plane
+     *
+     * @param outPlane output plane index
+     * @param tile tile data of w * h bytes
+     * @param x tile origin x
+     * @param y tile origin y
+     * @param w tile width
+     * @param h tile height
+     */
+    void add(int outPlane, byte[] tile, int x, int y, int w, int h) {
+        if (outPlane != plane || w < 3 || h < 3) {
+            return;
+        }
+
+        // Contrast of the tile
+        double sum = 0;
+        double sumSq = 0;
+        int n = w * h;
+        for (int i = 0; i < n; i++) {
+            int v = tile[i] & 0xFF;
+            sum += v;
+            sumSq += v * v;
+        }
+        double mean = sum / n;
+        if (sumSq / n - mean * mean < MIN_CONTRAST * MIN_CONTRAST) {
+            return;
+        }
+
+        // Variance of the 4-neighbour Laplacian of the inner pixels
+        double lapSum = 0;
+        double lapSumSq = 0;
+        for (int j = 1; j < h - 1; j++) {
+            int row = j * w;
+            for (int i = 1; i < w - 1; i++) {
+                int k = row + i;
+                int laplacian = (tile[k - 1] & 0xFF) + (tile[k + 1] & 0xFF) + (tile[k - w] & 0xFF)
+                        + (tile[k + w] & 0xFF) - 4 * (tile[k] & 0xFF);
+                lapSum += laplacian;
+                lapSumSq += laplacian * laplacian;
+            }
+        }
+        int inner = (w - 2) * (h - 2);
+        double lapMean = lapSum / inner;
+
+        sharpness[(y / tileHeight) * columns + x / tileWidth] = (float) (lapSumSq / inner - lapMean * lapMean);
+    }
+
+    /**
+     * @return sharpness of the tissue tiles, sorted
+     */
+    private float[] getTissueValues() {
+        float[] values = new float[sharpness.length];
+        int n = 0;
+        for (float value : sharpness) {
+            if (!Float.isNaN(value)) {
+                values[n++] = value;
+            }
+        }
+        values = Arrays.copyOf(values, n);
+        Arrays.sort(values);
+
+        return values;
+    }
+
+    private static double percentile(float[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * percentile / 100))];
+    }
+
+    /**
+     * Save the heat map and the summary next to an output file
+     *
+     * @param outId output file path
+     * @throws IOException if a file cannot be written
+     */
+    void save(String outId) throws IOException {
+        String heatmap = NdpiUtils.getSidecarPath(outId, "_focus.tif");
+        FloatProcessor map = new FloatProcessor(columns, rows, sharpness.clone());
+        if (!new FileSaver(new ImagePlus(new File(heatmap).getName(), map)).saveAsTiff(heatmap)) {
+            throw new IOException("Cannot write the focus map " + heatmap);
+        }
+
+        writeSummary(new File(NdpiUtils.getSidecarPath(outId, ".focus.json")));
+    }
+
+    private void writeSummary(File file) throws IOException {
+        float[] tissue = getTissueValues();
+        double median = percentile(tissue, 50);
+        double threshold = median * OUT_OF_FOCUS_RATIO;
+
+        // Out of focus tiles, the blurriest first
+        List<Integer> blurred = new ArrayList<>();
+        for (int i = 0; i < sharpness.length; i++) {
+            if (!Float.isNaN(sharpness[i]) && sharpness[i] < threshold) {
+                blurred.add(i);
+            }
+        }
+        Collections.sort(blurred, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(sharpness[a], sharpness[b]);
+            }
+        });
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"metric\": \"variance of Laplacian\",\n");
+        json.append("  \"tileWidth\": ").append(tileWidth).append(",\n");
+        json.append("  \"tileHeight\": ").append(tileHeight).append(",\n");
+        json.append("  \"tiles\": ").append(sharpness.length).append(",\n");
+        json.append("  \"tissueTiles\": ").append(tissue.length).append(",\n");
+        json.append("  \"median\": ").append(format(median)).append(",\n");
+        json.append("  \"p10\": ").append(format(percentile(tissue, 10))).append(",\n");
+        json.append("  \"p90\": ").append(format(percentile(tissue, 90))).append(",\n");
+        json.append("  \"outOfFocusTiles\": ").append(blurred.size()).append(",\n");
+        json.append("  \"outOfFocusFraction\": ")
+                .append(format((tissue.length > 0) ? blurred.size() / (double) tissue.length : 0)).append(",\n");
+        json.append("  \"worstTiles\": [");
+        for (int k = 0; k < Math.min(WORST_TILES, blurred.size()); k++) {
+            int i = blurred.get(k);
+            json.append((k > 0) ? ", " : "").append(String.format(Locale.US, "{\"x\": %d, \"y\": %d, \"sharpness\": %s}",
+                    (i % columns) * tileWidth, (i / columns) * tileHeight, format(sharpness[i])));
+        }
+        json.append("]\n}\n");
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+
+    private static String format(double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.US, "%.3f", value);
+    }
+}
@@ -0,0 +1,232 @@
+import loci.formats.FormatException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Decode regions of NDPI pyramid levels by decoding their restart intervals in parallel.
+ *
+ * The restart interval indices are built once per file and series and cached. A region is split
+ * into bands of interval rows, and of interval columns where it is wider than a JPEG frame, that
+ * are decoded concurrently and copied into the target buffer.
+ * Each band is decoded with a margin of one interval on every side, which gives the chroma
+ * up-sampling the same context as when the whole level is decoded at once.
+ */
+class JpegRestartDecoder {
+
+    /** Number of decoding threads */
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Restart interval indices by file, series and modification time */
+    private static final ConcurrentHashMap<String, List<JpegRestartIndex>> cache = new ConcurrentHashMap<>();
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ndpi-jpeg-decoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+
+    /**
+     * Get the restart interval indices of the z-planes of a series. A file that cannot be read
+     * is not cached, the next call tries again.
+     *
+     * @param file NDPI file
+     * @param series series index
+     * @return one index per z-plane or an empty list if the series cannot be decoded by intervals
+     */
+    static List<JpegRestartIndex> getIndex(final File file, final int series) {
+        String key = file.getAbsolutePath() + "#" + series + "#" + file.lastModified() + "#" + file.length();
+
+        List<JpegRestartIndex> index = cache.get(key);
+        if (index == null) {
+            index = createIndex(file, series);
+            if (index == null) {
+                return Collections.emptyList();
+            }
+            cache.putIfAbsent(key, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * @return indices, an empty list if the series is not decodable by intervals or null if the
+     * file cannot be read, in which case the next reader tries again
+     */
+    private static List<JpegRestartIndex> createIndex(File file, int series) {
+        try {
+            NdpiHeader header = NdpiHeader.read(file);
+            if (!header.isNdpi()) {
+                return Collections.emptyList();
+            }
+
+            List<JpegRestartIndex> planes = new ArrayList<>();
+            for (NdpiHeader.Directory directory : header.getLevel(series)) {
+                planes.add(JpegRestartIndex.create(file, directory));
+            }
+
+            return Collections.unmodifiableList(planes);
+        } catch (FormatException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode a region of one color component into a buffer.
+     *
+     * @param source positional reads of the NDPI file
+     * @param index restart interval index of the plane
+     * @param band color component (0: red, 1: green, 2: blue)
+     * @param buf target buffer of at least w * h bytes
+     * @param x region origin x
+     * @param y region origin y
+     * @param w region width
+     * @param h region height
+     * @throws IOException if a block cannot be read or decoded
+     */
+    static void decode(ByteSource source, JpegRestartIndex index, int band, byte[] buf,
+                       int x, int y, int w, int h) throws IOException {
+        byte[][] bufs = new byte[band + 1][];
+        bufs[band] = buf;
+        decode(source, index, bufs, x, y, w, h);
+    }
+
+    /**
+     * Decode a region of several color components at once, each restart interval is decoded once.
+     *
+     * @param source positional reads of the NDPI file
+     * @param index restart interval index of the plane
+     * @param bufs target buffer of at least w * h bytes for each color component, null to skip one
+     * @param x region origin x
+     * @param y region origin y
+     * @param w region width
+     * @param h region height
+     * @throws IOException if a block cannot be read or decoded
+     */
+    static void decode(final ByteSource source, final JpegRestartIndex index, final byte[][] bufs,
+                       final int x, final int y, final int w, final int h) throws IOException {
+        int intervalWidth = index.getIntervalWidth();
+        int mcuHeight = index.getMcuHeight();
+        int col0 = x / intervalWidth;
+        int col1 = (x + w - 1) / intervalWidth;
+        int row0 = y / mcuHeight;
+        int row1 = (y + h - 1) / mcuHeight;
+
+        // Blocks with their margins have to fit a JPEG frame
+        int maxCols = JpegRestartIndex.MAX_BLOCK_SIZE / intervalWidth - 2;
+        int maxRows = JpegRestartIndex.MAX_BLOCK_SIZE / mcuHeight - 2;
+        if (maxCols < 1 || maxRows < 1) {
+            throw new IOException("The restart intervals are too large to be decoded separately");
+        }
+
+        // Bands of interval rows, a few per thread to balance the load
+        int rows = row1 - row0 + 1;
+        int rowsPerTask = Math.min(maxRows, Math.max(1, (rows + 2 * THREADS - 1) / (2 * THREADS)));
+
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int row = row0; row <= row1; row += rowsPerTask) {
+            for (int col = col0; col <= col1; col += maxCols) {
+                final int firstRow = row;
+                final int lastRow = Math.min(row1, row + rowsPerTask - 1);
+                final int firstCol = col;
+                final int lastCol = Math.min(col1, col + maxCols - 1);
+                tasks.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        decodeBlock(source, index, bufs, x, y, w, h, firstCol, lastCol, firstRow, lastRow);
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        for (Future<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decoding", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not decode the restart intervals", e.getCause());
+            }
+        }
+    }
+
+    private static void decodeBlock(ByteSource file, JpegRestartIndex index, byte[][] bufs,
+                                    int x, int y, int w, int h, int col0, int col1, int row0, int row1)
+            throws IOException {
+        // Add a margin of one interval where there are neighbours
+        int left = (col0 > 0) ? 1 : 0;
+        int right = (col1 < index.getIntervalsAcross() - 1) ? 1 : 0;
+        int top = (row0 > 0) ? 1 : 0;
+        int bottom = (row1 < index.getIntervalRows() - 1) ? 1 : 0;
+
+        byte[] jpeg = index.assemble(file, col0 - left, row0 - top,
+                col1 - col0 + 1 + left + right, row1 - row0 + 1 + top + bottom);
+        Raster raster = read(jpeg).getRaster();
+
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int pixelStride = model.getPixelStride();
+        int scanlineStride = model.getScanlineStride();
+
+        int originX = (col0 - left) * index.getIntervalWidth();
+        int originY = (row0 - top) * index.getMcuHeight();
+        int xStart = Math.max(x, col0 * index.getIntervalWidth());
+        int xEnd = Math.min(x + w, (col1 + 1) * index.getIntervalWidth());
+        int yStart = Math.max(y, row0 * index.getMcuHeight());
+        int yEnd = Math.min(y + h, (row1 + 1) * index.getMcuHeight());
+
+        for (int band = 0; band < bufs.length; band++) {
+            byte[] buf = bufs[band];
+            if (buf == null) {
+                continue;
+            }
+
+            int bandOffset = model.getBandOffsets()[Math.min(band, raster.getNumBands() - 1)];
+            for (int ty = yStart; ty < yEnd; ty++) {
+                int source = (ty - originY) * scanlineStride + (xStart - originX) * pixelStride + bandOffset;
+                int target = (ty - y) * w + (xStart - x);
+                for (int tx = xStart; tx < xEnd; tx++) {
+                    buf[target++] = data[source];
+                    source += pixelStride;
+                }
+            }
+        }
+    }
+
+    private static BufferedImage read(byte[] jpeg) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        try (MemoryCacheImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(stream);
+            return reader.read(0);
+        } finally {
+            reader.dispose();
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import loci.formats.FormatException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.io.File;
+
+
+/**
+ * Index of the restart intervals of the JPEG stream stored in one NDPI directory.
+ *
+ * NDPI levels are single baseline JPEGs with a restart marker after every image row chunk,
+ * which makes each restart interval an independently decodable block of
+ * (restart interval x MCU width) by MCU height pixels.
+ */
+class JpegRestartIndex {
+
+    /** Largest width and height of a JPEG frame */
+    static final int MAX_BLOCK_SIZE = 65535;
+
+    /** JPEG markers */
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int SOS = 0xDA;
+    private static final int RST0 = 0xD0;
+
+    private final int width;
+    private final int height;
+    private final int mcuWidth;
+    private final int mcuHeight;
+    private final int restartInterval;
+    private final int[] samplingFactors;
+
+    /** Tables segments (DQT and DHT) */
+    private final byte[] tables;
+
+    /** SOF segment (with the original dimensions) */
+    private final byte[] frame;
+
+    /** SOS segment */
+    private final byte[] scan;
+
+    /** Absolute file offsets of the entropy coded data of each interval */
+    private final long[] starts;
+
+    /** Lengths of the entropy coded data of each interval (restart markers excluded) */
+    private final int[] lengths;
+
+
+    private JpegRestartIndex(int width, int height, int mcuWidth, int mcuHeight, int restartInterval,
+                             int[] samplingFactors, byte[] tables, byte[] frame, byte[] scan,
+                             long[] starts, int[] lengths) {
+        this.width = width;
+        this.height = height;
+        this.mcuWidth = mcuWidth;
+        this.mcuHeight = mcuHeight;
+        this.restartInterval = restartInterval;
+        this.samplingFactors = samplingFactors;
+        this.tables = tables;
+        this.frame = frame;
+        this.scan = scan;
+        this.starts = starts;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Index the JPEG stream of a NDPI directory
+     *
+     * @param file NDPI file
+     * @param directory parsed directory of the level
+     * @return restart interval index
+     * @throws IOException if the file cannot be read
+     * @throws FormatException if the stream is not a baseline JPEG with restart markers
+     */
+    static JpegRestartIndex create(File file, NdpiHeader.Directory directory) throws IOException, FormatException {
+        long[] offsets = directory.get(NdpiHeader.STRIP_OFFSETS);
+        long[] counts = directory.get(NdpiHeader.STRIP_BYTE_COUNTS);
+        if (!directory.isJpeg() || offsets == null || counts == null || offsets.length != 1) {
+            throw new FormatException("Directory does not hold a single JPEG stream");
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long jpegStart = offsets[0];
+            long jpegEnd = jpegStart + counts[0];
+
+            // Parse the marker segments up to the start of scan
+            ByteArrayOutputStream tables = new ByteArrayOutputStream();
+            byte[] frame = null;
+            byte[] scan = null;
+            int restartInterval = 0;
+
+            long position = jpegStart;
+            ByteBuffer marker = NdpiHeader.read(channel, position, 2);
+            if ((marker.get() & 0xFF) != 0xFF || (marker.get() & 0xFF) != SOI) {
+                throw new FormatException("Missing JPEG start of image marker");
+            }
+            position += 2;
+
+            while (scan == null) {
+                ByteBuffer segmentHeader = NdpiHeader.read(channel, position, 4).order(ByteOrder.BIG_ENDIAN);
+                if ((segmentHeader.get() & 0xFF) != 0xFF) {
+                    throw new FormatException("Corrupt JPEG header at offset " + position);
+                }
+                int type = segmentHeader.get() & 0xFF;
+                int length = segmentHeader.getShort() & 0xFFFF;
+                byte[] segment = new byte[length + 2];
+                NdpiHeader.read(channel, position, segment.length).get(segment);
+                position += segment.length;
+
+                switch (type) {
+                    case DQT:
+                    case DHT:
+                        tables.write(segment);
+                        break;
+                    case SOF0:
+                    case SOF1:
+                        frame = segment;
+                        break;
+                    case DRI:
+                        restartInterval = ((segment[4] & 0xFF) << 8) | (segment[5] & 0xFF);
+                        break;
+                    case SOS:
+                        scan = segment;
+                        break;
+                    default:
+                        if (type >= 0xC2 && type <= 0xCF && type != DHT && type != 0xC8 && type != 0xCC) {
+                            throw new FormatException("Only baseline JPEG streams can be indexed");
+                        }
+                }
+            }
+
+            if (frame == null || restartInterval == 0) {
+                throw new FormatException("JPEG stream has no frame header or no restart markers");
+            }
+
+            // Derive the MCU geometry from the sampling factors
+            int components = frame[9] & 0xFF;
+            int[] sampling = new int[components];
+            int maxH = 1;
+            int maxV = 1;
+            for (int c = 0; c < components; c++) {
+                sampling[c] = frame[11 + 3 * c] & 0xFF;
+                maxH = Math.max(maxH, sampling[c] >> 4);
+                maxV = Math.max(maxV, sampling[c] & 0x0F);
+            }
+            int mcuWidth = 8 * maxH;
+            int mcuHeight = 8 * maxV;
+
+            // The frame dimensions are unreliable for large levels, use the TIFF tags
+            int width = (int) directory.getWidth();
+            int height = (int) directory.getHeight();
+            int mcusAcross = (width + mcuWidth - 1) / mcuWidth;
+            int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+            if (mcusAcross % restartInterval != 0) {
+                throw new FormatException("Restart intervals do not tile the image width");
+            }
+            int intervals = (mcusAcross / restartInterval) * mcuRows;
+
+            long[] starts = locateIntervals(channel, directory.getMcuStarts(), jpegStart, position, jpegEnd, intervals);
+            int[] lengths = new int[intervals];
+            for (int i = 0; i < intervals; i++) {
+                long end = (i + 1 < intervals) ? starts[i + 1] - 2 : jpegEnd - 2;
+                lengths[i] = (int) (end - starts[i]);
+            }
+
+            return new JpegRestartIndex(width, height, mcuWidth, mcuHeight, restartInterval, sampling,
+                    tables.toByteArray(), frame, scan, starts, lengths);
+        }
+    }
+
+    /**
+     * Get the absolute offsets of the interval data. The McuStarts tag is used when it is
+     * consistent with the restart markers in the stream, otherwise the stream is scanned.
+     */
+    private static long[] locateIntervals(FileChannel channel, long[] mcuStarts, long jpegStart, long dataStart,
+                                          long jpegEnd, int intervals) throws IOException, FormatException {
+        if (mcuStarts != null && mcuStarts.length == intervals) {
+            for (long base : new long[]{jpegStart, 0}) {
+                long[] starts = new long[intervals];
+                for (int i = 0; i < intervals; i++) {
+                    starts[i] = base + mcuStarts[i];
+                }
+                if (isRestartMarkerBefore(channel, starts, dataStart, jpegEnd)) {
+                    return starts;
+                }
+            }
+        }
+
+        return scanRestartMarkers(channel, dataStart, jpegEnd, intervals);
+    }
+
+    private static boolean isRestartMarkerBefore(FileChannel channel, long[] starts, long dataStart, long jpegEnd)
+            throws IOException {
+        if (starts[0] != dataStart) {
+            return false;
+        }
+
+        // Probe a few intervals rather than all of them
+        int step = Math.max(1, starts.length / 16);
+        for (int i = 1; i < starts.length; i += step) {
+            if (starts[i] < dataStart + 2 || starts[i] > jpegEnd) {
+                return false;
+            }
+            ByteBuffer marker = NdpiHeader.read(channel, starts[i] - 2, 2);
+            if ((marker.get() & 0xFF) != 0xFF || (marker.get() & 0xF8) != RST0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long[] scanRestartMarkers(FileChannel channel, long dataStart, long jpegEnd, int intervals)
+            throws IOException, FormatException {
+        long[] starts = new long[intervals];
+        starts[0] = dataStart;
+        int found = 1;
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        long position = dataStart;
+        boolean pendingFF = false;
+        while (position < jpegEnd && found < intervals) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), jpegEnd - position));
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < n && found < intervals; i++) {
+                int b = buffer.get(i) & 0xFF;
+                if (pendingFF && (b & 0xF8) == RST0) {
+                    starts[found++] = position + i + 1;
+                }
+                pendingFF = (b == 0xFF);
+            }
+            position += n;
+        }
+
+        if (found != intervals) {
+            throw new FormatException("Found " + found + " restart intervals, expected " + intervals);
+        }
+
+        return starts;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getMcuWidth() {
+        return mcuWidth;
+    }
+
+    int getMcuHeight() {
+        return mcuHeight;
+    }
+
+    /**
+     * @return width in pixels covered by one restart interval
+     */
+    int getIntervalWidth() {
+        return restartInterval * mcuWidth;
+    }
+
+    /**
+     * @return number of restart intervals along the image width
+     */
+    int getIntervalsAcross() {
+        return ((width + mcuWidth - 1) / mcuWidth) / restartInterval;
+    }
+
+    /**
+     * @return number of restart interval rows (MCU rows)
+     */
+    int getIntervalRows() {
+        return (height + mcuHeight - 1) / mcuHeight;
+    }
+
+    int getComponentCount() {
+        return samplingFactors.length;
+    }
+
+    /**
+     * @return horizontal and vertical chroma sub-sampling of a 3 component YCbCr stream
+     */
+    int[] getChromaSubsampling() {
+        int luma = samplingFactors[0];
+        return new int[]{luma >> 4, luma & 0x0F};
+    }
+
+    /**
+     * Assemble a standalone JPEG from a block of restart intervals. The intervals are
+     * concatenated in raster order and separated by renumbered restart markers.
+     *
+     * @param source positional reads of the NDPI file
+     * @param col column of the first interval
+     * @param row row of the first interval
+     * @param cols number of intervals along x
+     * @param rows number of intervals along y
+     * @return JPEG bit-stream of (cols x interval width) by (rows x MCU height) pixels
+     * @throws IOException if the entropy coded data cannot be read or the block exceeds the
+     * largest JPEG frame
+     */
+    byte[] assemble(ByteSource source, int col, int row, int cols, int rows) throws IOException {
+        int blockWidth = cols * getIntervalWidth();
+        int blockHeight = rows * mcuHeight;
+        if (blockWidth > MAX_BLOCK_SIZE || blockHeight > MAX_BLOCK_SIZE) {
+            throw new IOException("A block of " + blockWidth + "x" + blockHeight + " pixels exceeds the largest " +
+                    "JPEG frame of " + MAX_BLOCK_SIZE + " pixels");
+        }
+
+        int dataLength = 0;
+        for (int r = row; r < row + rows; r++) {
+            for (int c = col; c < col + cols; c++) {
+                dataLength += lengths[r * getIntervalsAcross() + c] + 2;
+            }
+        }
+
+        ByteBuffer jpeg = ByteBuffer.allocate(2 + tables.length + frame.length + 6 + scan.length + dataLength + 2);
+        jpeg.put((byte) 0xFF).put((byte) SOI);
+        jpeg.put(tables);
+
+        // Frame header with the dimensions of the block
+        int frameStart = jpeg.position();
+        jpeg.put(frame);
+        jpeg.putShort(frameStart + 5, (short) blockHeight);
+        jpeg.putShort(frameStart + 7, (short) blockWidth);
+
+        jpeg.put((byte) 0xFF).put((byte) DRI).putShort((short) 4).putShort((short) restartInterval);
+        jpeg.put(scan);
+
+        int marker = 0;
+        for (int r = row; r < row + rows; r++) {
+            for (int c = col; c < col + cols; c++) {
+                int i = r * getIntervalsAcross() + c;
+                if (marker > 0) {
+                    jpeg.put((byte) 0xFF).put((byte) (RST0 + ((marker - 1) % 8)));
+                }
+                marker++;
+
+                ByteBuffer slice = (ByteBuffer) jpeg.slice().limit(lengths[i]);
+                while (slice.hasRemaining()) {
+                    if (source.read(slice, starts[i] + slice.position()) < 0) {
+                        throw new IOException("Unexpected end of JPEG stream");
+                    }
+                }
+                jpeg.position(jpeg.position() + lengths[i]);
+            }
+        }
+        jpeg.put((byte) 0xFF).put((byte) EOI);
+
+        byte[] result = new byte[jpeg.position()];
+        jpeg.flip();
+        jpeg.get(result);
+
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+import net.imagej.ImageJ;
+import org.scijava.ItemVisibility;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import org.scijava.widget.NumberWidget;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Start or stop the tile server of this ImageJ instance (see {@link NdpiTileServer}).
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > Local Tile Server")
+public class LocalTileServer implements Command {
+
+    // Dialog
+    @Parameter(label = "Action", choices = {"Start", "Stop"})
+    private String action = "Start";
+
+    @Parameter(label = "Directory", style = FileWidget.DIRECTORY_STYLE, required = false)
+    private File directory;
+
+    @Parameter(label = "Port", style = NumberWidget.SPINNER_STYLE, min = "1024", max = "65535")
+    private int port = NdpiTileServer.DEFAULT_PORT;
+
+    @Parameter(label = "Tile cache [MiB]", style = NumberWidget.SPINNER_STYLE, min = "16", max = "65536")
+    private int cacheSize = 1024;
+
+    @Parameter(visibility = ItemVisibility.MESSAGE)
+    private final String note = "<html>" +
+            "<p>Serves the ndpi files of the directory to local clients only, e.g.<br>" +
+            "http://localhost:8182/iiif/&lt;file name&gt;/info.json or " +
+            "http://localhost:8182/iiif/&lt;file name&gt;@2/full/512,/0/default.jpg</p>" +
+            "</html>";
+
+
+    // Services
+    @Parameter
+    private LogService log;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        try {
+            if (action.equals("Stop")) {
+                NdpiTileServer.stop();
+                log.info("Tile server stopped");
+                return;
+            }
+
+            if (directory == null || !directory.isDirectory()) {
+                log.error("Choose the directory with the ndpi files to serve");
+                return;
+            }
+            NdpiTileServer server = NdpiTileServer.start(directory, port, (long) cacheSize << 20);
+            log.info("Serving " + server.getDirectory() + " at http://localhost:" + server.getPort() + "/iiif/");
+        } catch (IOException e) {
+            log.error("Tile server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run
+     *
+     * @param args input arguments
+     */
+    public static void main(final String... args) {
+        final ImageJ ij = new net.imagej.ImageJ();
+        ij.ui().showUI();
+        ij.command().run(LocalTileServer.class, true);
+    }
+}
@@ -0,0 +1,506 @@
+import loci.common.IRandomAccess;
+import loci.common.Location;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+
+/**
+ * Read-only, memory-mapped file handle for Bio-Formats.
+ *
+ * Once a file is registered, its streams read from one shared memory mapping instead of issuing
+ * seek and read calls. Files larger than 2 GB are mapped in segments. Bio-Formats hands the handle
+ * mapped to an id to every stream it opens on that id, so each reader opens the file under its own
+ * stream id (see {@link #openStream(String)}) with its own handle, which keeps the file pointer and
+ * byte order per stream while the mapping (and the page cache) is shared. The restart interval
+ * decoding reads from the same mapping (see {@link #getSource(String)}).
+ */
+class MappedFileHandle implements IRandomAccess {
+
+    /** Size of the mapped segments */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /** Registered mappings by file path */
+    private static final HashMap<String, Mapping> registry = new HashMap<>();
+
+    /** File path by open stream id */
+    private static final HashMap<String, String> streams = new HashMap<>();
+
+    private static long streamCount = 0;
+
+    private final String id;
+    private final Mapping mapping;
+    private final long length;
+    private long position = 0;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+
+    /**
+     * Memory mapping of a file, shared by the handles of its streams
+     */
+    private static class Mapping {
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long length;
+        private final MappedByteBuffer[] segments;
+        private int references = 0;
+
+
+        private Mapping(String id) throws IOException {
+            raf = new RandomAccessFile(id, "r");
+            channel = raf.getChannel();
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        }
+
+        /**
+         * Get the segment containing a given position. Segments are mapped on first access.
+         */
+        private synchronized MappedByteBuffer segment(int index) throws IOException {
+            if (segments[index] == null) {
+                long start = index * SEGMENT_SIZE;
+                segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_SIZE, length - start));
+            }
+
+            return segments[index];
+        }
+
+        /**
+         * Copy bytes at a position, possibly spanning several segments
+         *
+         * @return number of bytes copied, -1 at the end of the file
+         */
+        private int read(ByteBuffer destination, long position, int len) throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+
+            int remaining = (int) Math.min(len, length - position);
+            int copied = 0;
+            while (copied < remaining) {
+                int index = (int) (position / SEGMENT_SIZE);
+                int offset = (int) (position % SEGMENT_SIZE);
+
+                ByteBuffer view = segment(index).duplicate();
+                view.position(offset);
+                int n = Math.min(remaining - copied, view.remaining());
+                view.limit(offset + n);
+                destination.put(view);
+
+                copied += n;
+                position += n;
+            }
+
+            return copied;
+        }
+    }
+
+
+    private MappedFileHandle(String id, Mapping mapping) {
+        this.id = id;
+        this.mapping = mapping;
+        length = mapping.length;
+    }
+
+    /**
+     * Map a file. Registrations are counted, the mapping stays valid until it has been released
+     * as often as it was registered.
+     *
+     * @param id file path
+     * @throws IOException if the file cannot be opened
+     */
+    static synchronized void register(String id) throws IOException {
+        Mapping mapping = registry.get(id);
+        if (mapping == null) {
+            mapping = new Mapping(id);
+            registry.put(id, mapping);
+        }
+        mapping.references++;
+    }
+
+    /**
+     * Release a registration. The last release unmaps the file.
+     *
+     * @param id file path
+     */
+    static synchronized void release(String id) {
+        Mapping mapping = registry.get(id);
+        if (mapping == null || --mapping.references > 0) {
+            return;
+        }
+
+        registry.remove(id);
+        try {
+            mapping.raf.close();
+        } catch (IOException e) {
+            // Nothing to recover, the segments stay valid until they are collected
+        }
+    }
+
+    /**
+     * Get positional reads of a registered file, served from its mapping. The source is valid
+     * while the file is registered or one of its streams is open.
+     *
+     * @param id file path
+     * @return source or null if the file is not registered
+     */
+    static synchronized ByteSource getSource(String id) {
+        final Mapping mapping = registry.get(id);
+        if (mapping == null) {
+            return null;
+        }
+
+        return new ByteSource() {
+            @Override
+            int read(ByteBuffer target, long position) throws IOException {
+                return mapping.read(target, position, target.remaining());
+            }
+        };
+    }
+
+    /**
+     * Get the id a reader opens a file under. For a registered file this is a new id, mapped in
+     * Bio-Formats to a handle of its own on the shared mapping, which keeps the mapping registered
+     * until {@link #closeStream(String)}. The id keeps the file name, so the reader picks the same
+     * format.
+     *
+     * @param id file path
+     * @return id to pass to the reader, the file path itself if the file is not registered
+     */
+    static synchronized String openStream(String id) {
+        Mapping mapping = registry.get(id);
+        if (mapping == null) {
+            return id;
+        }
+
+        File file = new File(id).getAbsoluteFile();
+        String streamId = new File(new File(file.getParentFile(), ".mapped-" + (++streamCount)),
+                file.getName()).getPath();
+        mapping.references++;
+        streams.put(streamId, id);
+        Location.mapFile(streamId, new MappedFileHandle(id, mapping));
+
+        return streamId;
+    }
+
+    /**
+     * Remove the handle of a stream id from Bio-Formats, after its reader has been closed
+     *
+     * @param streamId id returned by {@link #openStream(String)}
+     */
+    static synchronized void closeStream(String streamId) {
+        String id = streams.remove(streamId);
+        if (id == null) {
+            return;
+        }
+
+        Location.mapFile(streamId, null);
+        release(id);
+    }
+
+    /**
+     * Copy bytes at the current position
+     *
+     * @return number of bytes copied, -1 at the end of the file
+     */
+    private int copy(ByteBuffer destination, int len) throws IOException {
+        int n = mapping.read(destination, position, len);
+        if (n > 0) {
+            position += n;
+        }
+
+        return n;
+    }
+
+    /**
+     * Read a primitive of up to 8 bytes in the byte order of the stream, directly from the mapped
+     * segment without an intermediate buffer
+     */
+    private long readPrimitive(int size) throws IOException {
+        if (position < 0 || position + size > length) {
+            throw new EOFException();
+        }
+
+        MappedByteBuffer segment = mapping.segment((int) (position / SEGMENT_SIZE));
+        int offset = (int) (position % SEGMENT_SIZE);
+        boolean bigEndian = order.equals(ByteOrder.BIG_ENDIAN);
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            if (offset == segment.limit()) {
+                segment = mapping.segment((int) ((position + i) / SEGMENT_SIZE));
+                offset = 0;
+            }
+            long b = segment.get(offset++) & 0xFF;
+            value = bigEndian ? (value << 8) | b : value | (b << (8 * i));
+        }
+        position += size;
+
+        return value;
+    }
+
+    // -- IRandomAccess API methods --
+
+    /**
+     * The mapping is shared, it is released with {@link #closeStream(String)}.
+     */
+    @Override
+    public void close() {
+        // nothing
+    }
+
+    @Override
+    public long getFilePointer() {
+        return position;
+    }
+
+    @Override
+    public boolean exists() {
+        return new File(id).exists();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public ByteOrder getOrder() {
+        return order;
+    }
+
+    @Override
+    public void setOrder(ByteOrder order) {
+        this.order = order;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return copy(ByteBuffer.wrap(b, off, len), len);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        return read(buffer, buffer.position(), buffer.remaining());
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int offset, int len) throws IOException {
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.limit(offset + len);
+        int n = copy(target, len);
+        if (n > 0) {
+            buffer.position(offset + n);
+        }
+
+        return n;
+    }
+
+    @Override
+    public void seek(long pos) {
+        position = pos;
+    }
+
+    @Override
+    public void setLength(long newLength) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void write(ByteBuffer buf) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void write(ByteBuffer buf, int off, int len) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public long skipBytes(long n) {
+        long skipped = Math.max(0, Math.min(n, length - position));
+        position += skipped;
+
+        return skipped;
+    }
+
+    // -- DataInput API methods --
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (read(b, off, len) != len) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        return (int) skipBytes((long) n);
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return (byte) readPrimitive(1);
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return (short) readPrimitive(2);
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readPrimitive(2);
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return (int) readPrimitive(4);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return readPrimitive(8);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat((int) readPrimitive(4));
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readPrimitive(8));
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (position < length) {
+            int c = readUnsignedByte();
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+
+        return line.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        byte[] bytes = new byte[readUnsignedShort()];
+        readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // -- DataOutput API methods --
+
+    @Override
+    public void write(int b) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        throw new IOException("Mapped files are read-only");
+    }
+}
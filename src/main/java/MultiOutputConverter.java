@@ -0,0 +1,152 @@
+import ij.IJ;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import net.imagej.ImageJ;
+import ome.xml.model.enums.EnumerationException;
+import org.scijava.ItemVisibility;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import org.scijava.widget.NumberWidget;
+import org.scijava.widget.TextWidget;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * Convert every slide of a directory to several outputs in one read pass (see {@link SinkFanOut}).
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > Multi-Output Converter")
+public class MultiOutputConverter implements Command {
+
+    // Dialog
+    @Parameter(label = "Input directory", style = FileWidget.DIRECTORY_STYLE)
+    private File inputDir;
+
+    @Parameter(label = "Series to read", style = NumberWidget.SPINNER_STYLE, min = "1", max = "10", stepSize = "1")
+    private int series = 1;
+
+    @Parameter(label = "Channels", description = "Channels of a slide in file order, e.g. 'DAPI FITC TRITC' or 'RGB'")
+    private String channels = "DAPI FITC TRITC";
+
+    @Parameter(label = "Outputs", style = TextWidget.AREA_STYLE)
+    private String outputs = "archive, LZW, 0, all\nanalysis, LZW, 2.0, all\ndapi, LZW, 0, DAPI";
+
+    @Parameter(visibility = ItemVisibility.MESSAGE)
+    private final String note = "<html>" +
+            "<p>One output per line: name, compression (None or LZW), target pixel size [\u00b5m] (0: series " +
+            "resolution),<br>channels ('all' or e.g. 'DAPI+FITC') and optionally the file extension " +
+            "(default ome.tif).<br>The outputs are written next to the input files.</p>" +
+            "</html>";
+
+
+    // Services
+    @Parameter
+    private LogService log;
+
+    @Parameter
+    private StatusService status;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        IJ.run("Console", "uiservice=[org.scijava.ui.DefaultUIService [priority = 0.0]]");
+
+        List<OutputSink> sinks;
+        List<HTplusFluo.Channel> channelList = new ArrayList<>();
+        try {
+            sinks = OutputSink.parseAll(outputs);
+            for (String name : channels.trim().split("[\\s,+]+")) {
+                channelList.add(HTplusFluo.Channel.get(name));
+            }
+        } catch (RuntimeException e) {
+            log.error(e.getMessage());
+            return;
+        }
+
+        // Select the channel files in the given order
+        HashMap<HTplusFluo.Channel, List<File>> allFiles = NdpiUtils.getFiles(inputDir);
+        HashMap<HTplusFluo.Channel, List<File>> files = new LinkedHashMap<>();
+        for (HTplusFluo.Channel channel : channelList) {
+            if (allFiles.get(channel) == null) {
+                log.error("Did not find any " + channel + " files in " + inputDir.getAbsolutePath());
+                return;
+            }
+            files.put(channel, allFiles.get(channel));
+            Collections.sort(files.get(channel));
+        }
+
+        int N = files.get(channelList.get(0)).size();
+        int n = 0;
+        while (true) {
+            status.showStatus(n++, N, "Converting files...");
+
+            HashMap<HTplusFluo.Channel, String> pathSet = BatchConverter.popPathSet(files);
+            if (pathSet.isEmpty()) {
+                break;
+            }
+
+            // Skip the outputs that exist
+            List<OutputSink> pending = new ArrayList<>();
+            List<String> outIds = new ArrayList<>();
+            for (OutputSink sink : sinks) {
+                String outId = sink.getOutputPath(pathSet, series - 1);
+                if (new File(outId).exists()) {
+                    log.warn("File already exists: " + outId);
+                } else {
+                    pending.add(sink);
+                    outIds.add(outId);
+                }
+            }
+            if (pending.isEmpty()) {
+                continue;
+            }
+
+            log.info("Converting: ");
+            for (HTplusFluo.Channel channel : pathSet.keySet()) {
+                log.info("\t    " + pathSet.get(channel));
+            }
+            for (String outId : outIds) {
+                log.info("\tto: " + outId);
+            }
+
+            try {
+                long blocks = SinkFanOut.convert(pathSet, series - 1, pending, outIds, log);
+                log.info("\tdecoded " + blocks + " source blocks");
+            } catch (IOException |
+                    FormatException |
+                    DependencyException |
+                    ServiceException |
+                    EnumerationException e) {
+                log.error(e);
+            }
+        }
+
+        status.showStatus(N, N, "Conversions done.");
+        log.info("Done.");
+    }
+
+    /**
+     * Run
+     *
+     * @param args input arguments
+     */
+    public static void main(final String... args) {
+        final ImageJ ij = new net.imagej.ImageJ();
+        ij.ui().showUI();
+        ij.command().run(MultiOutputConverter.class, true);
+    }
+}
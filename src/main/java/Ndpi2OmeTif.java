@@ -1,19 +1,12 @@
 import ij.IJ;
 
-import loci.common.services.ServiceFactory;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.services.OMEXMLService;
 import net.imagej.ImageJ;
 
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.formats.*;
-import ome.xml.meta.OMEXMLMetadataRoot;
-import ome.xml.model.Image;
-import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.EnumerationException;
-import ome.xml.model.enums.PixelType;
-import ome.xml.model.primitives.PositiveInteger;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.ItemVisibility;
 import org.scijava.app.StatusService;
@@ -51,6 +44,10 @@ public class Ndpi2OmeTif extends DynamicCommand implements Command, Initializabl
     @Parameter(label = "Series to convert", style = NumberWidget.SPINNER_STYLE, min = "1", max = "5", stepSize = "1")
     private int series = 1;
 
+    @Parameter(label = "Target pixel size [\u00b5m]", min = "0",
+            description = "Resample the nearest finer series to this pixel size (0: keep the series resolution)")
+    private double pixelSize = 0;
+
     @Parameter(label = "Channel name", callback = "updateChannelIndex")
     private String channelName = "DAPI";
 
@@ -61,9 +58,17 @@ public class Ndpi2OmeTif extends DynamicCommand implements Command, Initializabl
     @Parameter(label="Use channel name as file filter", callback = "enforceMatchChannelName")
     private boolean matchChannelName = true;
 
-    @Parameter(label = "Output file compression", choices = {"LZW", "None"})
+    @Parameter(label = "Output file compression", choices = {"LZW", "None", NdpiJpegPassthrough.COMPRESSION})
     private String compression = "LZW";
 
+    @Parameter(label = "Stain separation (RGB)", choices = {"None", "H&E", "H-DAB", "H&E-DAB"},
+            description = "Write one channel per stain instead of the red, green and blue planes")
+    private String stains = "None";
+
+    @Parameter(label = "Focus QC map",
+            description = "Rate the sharpness of every tile (green plane for RGB) and write a focus map and summary")
+    private boolean focusQc = false;
+
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private final String note = "<html>" +
             "<p>The input folder is searched for ndpi-files or ndpis-files if the RGB channel option is selected<br>" +
@@ -126,7 +131,33 @@ public class Ndpi2OmeTif extends DynamicCommand implements Command, Initializabl
             }
 
             try {
-                convert(file.getAbsolutePath(), series - 1, channelIndex, outputPath.getAbsolutePath());
+                int seriesIndex = series - 1;
+                if (pixelSize > 0) {
+                    seriesIndex = NdpiUtils.getSeriesForPixelSize(NdpiUtils.getSeriesPixelSizeValues(file), pixelSize);
+                    if (seriesIndex < 0) {
+                        logger.error("        the target pixel size is finer than the full resolution");
+                        continue;
+                    }
+                    logger.info("        resampling series " + (seriesIndex + 1) + " to " + pixelSize + " \u00b5m");
+                }
+
+                if (channelIndex == -1 && !stains.equals("None")) {
+                    convertStains(file.getAbsolutePath(), seriesIndex, outputPath.getAbsolutePath());
+                    status.showProgress(nfile++, nfiles);
+                    continue;
+                }
+
+                if (compression.equals(NdpiJpegPassthrough.COMPRESSION) && channelIndex == -1 && pixelSize <= 0) {
+                    try {
+                        NdpiUtils.convertPassthrough(file.getAbsolutePath(), seriesIndex, outputPath.getAbsolutePath());
+                        status.showProgress(nfile++, nfiles);
+                        continue;
+                    } catch (FormatException e) {
+                        logger.warn(e.getMessage());
+                        logger.warn("        falling back to uncompressed conversion");
+                    }
+                }
+                convert(file.getAbsolutePath(), seriesIndex, channelIndex, outputPath.getAbsolutePath());
             } catch (IOException |
                     FormatException |
                     ServiceException |
@@ -158,67 +189,110 @@ public class Ndpi2OmeTif extends DynamicCommand implements Command, Initializabl
     @SuppressWarnings("JavaDoc")
     private void convert(String inId, int outSeries, int outColInd, String outId)
             throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        MappedFileHandle.register(inId);
+        try {
+            convertMapped(inId, outSeries, outColInd, outId);
+        } finally {
+            MappedFileHandle.release(inId);
+        }
+    }
+
+    /**
+     * Convert a given series of a bright-field file to one channel per stain
+     *
+     * @param inId input file path
+     * @param outSeries series to write to the output file
+     * @param outId output file
+     */
+    private void convertStains(String inId, int outSeries, String outId)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        logger.info("        separating the stains: " + stains);
+        MappedFileHandle.register(inId);
+        try {
+            NdpiUtils.convertStains(inId, outSeries, outId, compression.equals("LZW") ? compression : "None",
+                    pixelSize, null, StainSeparation.parse(stains), focusQc);
+        } finally {
+            MappedFileHandle.release(inId);
+        }
+    }
+
+    private void convertMapped(String inId, int outSeries, int outColInd, String outId)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
 
         // Record metadata to OME-XML format
-        ServiceFactory factory = new ServiceFactory();
-        OMEXMLService service = factory.getInstance(OMEXMLService.class);
-        OMEXMLMetadata inMeta = service.createOMEXMLMetadata();
+        OMEXMLMetadata inMeta = OmeMetadataBuilder.createStore();
 
         // Initialize a file reader wrapped in a channel separator
         ChannelSeparator channelSeparator = new ChannelSeparator();
         channelSeparator.setMetadataStore(inMeta);
-        channelSeparator.setId(inId);
-        channelSeparator.setSeries(outSeries);
-
-        // Clone the metadata and remove all the series in the metadata except the one we process
-        OMEXMLMetadata outMeta = service.createOMEXMLMetadata(inMeta.dumpXML());
-        OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) outMeta.getRoot();
-        List<Image> inSeries = root.copyImageList();
-        for (int i = 0; i < inSeries.size(); i++) {
-            if (i != outSeries) {
-                root.removeImage(inSeries.get(i));
-            }
+        String streamId = MappedFileHandle.openStream(inId);
+        int inPlanes;
+        int sizeX;
+        int sizeY;
+        try {
+            channelSeparator.setId(streamId);
+            channelSeparator.setSeries(outSeries);
+            inPlanes = channelSeparator.getImageCount();
+            sizeX = channelSeparator.getSizeX();
+            sizeY = channelSeparator.getSizeY();
+        } finally {
+            channelSeparator.close();
+            MappedFileHandle.closeStream(streamId);
         }
-        outMeta.setRoot(root);
 
         // Deduce the output image dimensions
         int numCol = 3;//(channelSeparator.isRGB()) ? 3 : 1;
-        int inPlanes = channelSeparator.getImageCount();
         int planeStartIndex = (outColInd == -1) ? 0 : outColInd;
         int planeIncrement = (outColInd == -1) ? 1 : 3;
-        int pixelSizeC = (outColInd == -1) ? 3 : 1;
+        String[] channels = (outColInd == -1) ? new String[3] : new String[]{channelName};
         int pixelSizeZ = (inPlanes >= 3) ? inPlanes / numCol : 1;
 
-        // Adjust the metadata attributes affected during this process.
-        outMeta.setImageName(null, 0);
-        outMeta.setPixelsSizeC(new PositiveInteger(pixelSizeC), 0);
-        outMeta.setPixelsSizeZ(new PositiveInteger(pixelSizeZ), 0);
-        outMeta.setPixelsSizeT(new PositiveInteger(1), 0);
-        outMeta.setPixelsBinDataBigEndian(Boolean.FALSE, 0, 0);
-        outMeta.setPixelsDimensionOrder(DimensionOrder.fromString("XYZCT"), 0);
-        outMeta.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
-        outMeta.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(FormatTools.UINT8)), 0);
-
-        // Setup the writer
-        ImageWriter writer = new ImageWriter();
-        writer.setMetadataRetrieve(outMeta);
-        if (!compression.equals("None"))
-            writer.setCompression(compression);
-        writer.setId(outId);
-
-        // TODO: save tile by tile
-        // Copy the planes
-        int outPlaneInd = 0;
-        byte[] img = new byte[channelSeparator.getSizeX() * channelSeparator.getSizeY()];
+        // Build the metadata of the series we process
+        OMEXMLMetadata outMeta = OmeMetadataBuilder.PLANAR.build(inMeta, outSeries, null, pixelSizeZ, channels);
+
+        // Resample to the target pixel size
+        AreaResampler resampler = NdpiUtils.createResampler(inMeta, outSeries, pixelSize);
+        if (resampler != null) {
+            NdpiUtils.setResampledSize(outMeta, resampler, sizeX, sizeY, pixelSize);
+        }
+
+        List<Integer> inputPlanes = new ArrayList<>();
         for (int inPlaneInd = planeStartIndex; inPlaneInd < inPlanes; inPlaneInd += planeIncrement) {
-            logger.info("        writing plane: " + outPlaneInd);
-            channelSeparator.openBytes(inPlaneInd, img);
-            writer.saveBytes(outPlaneInd++, img);
+            inputPlanes.add(inPlaneInd);
+        }
+        int[] planeChannels = new int[inputPlanes.size()];
+        for (int p = 0; p < planeChannels.length; p++) {
+            planeChannels[p] = (outColInd == -1) ? inputPlanes.get(p) % 3 : 0;
+        }
+        ChannelStatistics statistics = new ChannelStatistics(channels, planeChannels);
+        FocusMap focusMap;
+        try (NdpiRegionReader reader = new NdpiRegionReader(inId, outSeries, null)) {
+            // Setup the writer with a tile size for the file
+            int[] tileSize = TileGeometry.choose(reader, resampler, 1);
+            logger.info("        tile size: " + tileSize[0] + "x" + tileSize[1]);
+            focusMap = !focusQc ? null : new FocusMap((outColInd == -1) ? 1 : 0,
+                    outMeta.getPixelsSizeX(0).getValue(), outMeta.getPixelsSizeY(0).getValue(), tileSize[0],
+                    tileSize[1]);
+            ImageWriter writer = NdpiUtils.createWriter(outMeta, outId,
+                    compression.equals("LZW") ? compression : "None", tileSize);
+
+            // Copy the planes tile by tile
+            try {
+                int outPlaneInd = 0;
+                for (int inPlaneInd = planeStartIndex; inPlaneInd < inPlanes; inPlaneInd += planeIncrement) {
+                    logger.info("        writing plane: " + outPlaneInd);
+                    NdpiUtils.copyPlane(reader, inPlaneInd, writer, outPlaneInd++, resampler, statistics, focusMap);
+                }
+                statistics.store(outMeta);
+            } finally {
+                writer.close();
+            }
         }
 
-        // Cleanup
-        channelSeparator.close();
-        writer.close();
+        statistics.writeJson(new File(NdpiUtils.getSidecarPath(outId, ".stats.json")));
+        if (focusMap != null) {
+            focusMap.save(outId);
+        }
     }
 
     /**
@@ -0,0 +1,247 @@
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import net.imagej.ImageJ;
+import org.apache.commons.io.FilenameUtils;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import org.scijava.widget.NumberWidget;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Write a thumbnail of every NDPI file in a directory and a contact sheet of all of them.
+ *
+ * Only the smallest pyramid level of each file is read, and the files are read in parallel.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > Thumbnails and Contact Sheet")
+public class NdpiContactSheet implements Command {
+
+    /** Height of the file name label below each thumbnail */
+    private static final int LABEL_HEIGHT = 16;
+
+    /** Space around the thumbnails of the contact sheet */
+    private static final int MARGIN = 4;
+
+
+    // Dialog
+    @Parameter(label = "Input directory", style = FileWidget.DIRECTORY_STYLE)
+    private File inputDir;
+
+    @Parameter(label = "Output directory", style = FileWidget.DIRECTORY_STYLE)
+    private File outputDir;
+
+    @Parameter(label = "Thumbnail size [px]", style = NumberWidget.SPINNER_STYLE, min = "32", max = "2048")
+    private int thumbnailSize = 256;
+
+    @Parameter(label = "Contact sheet columns", style = NumberWidget.SPINNER_STYLE, min = "1", max = "100")
+    private int columns = 10;
+
+
+    // Services
+    @Parameter
+    private LogService logger;
+
+    @Parameter
+    private StatusService status;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        File[] content = inputDir.listFiles();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; content != null && i < content.length; i++) {
+            if (content[i].getName().endsWith("." + HTplusFluo.FILE_EXTENSION)) {
+                files.add(content[i]);
+            }
+        }
+        files.sort(null);
+
+        if (files.isEmpty()) {
+            logger.error("Did not find any ndpi files in " + inputDir.getAbsolutePath());
+            return;
+        }
+        logger.info("Creating thumbnails of " + files.size() + " files");
+
+        // Read the files concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<ImageProcessor>> tasks = new ArrayList<>(files.size());
+        for (final File file : files) {
+            tasks.add(executor.submit(new Callable<ImageProcessor>() {
+                @Override
+                public ImageProcessor call() throws IOException, FormatException {
+                    ImageProcessor thumbnail = createThumbnail(file, thumbnailSize);
+                    String name = FilenameUtils.removeExtension(file.getName()) + "_thumbnail.jpg";
+                    new FileSaver(new ImagePlus(name, thumbnail)).saveAsJpeg(new File(outputDir, name).getAbsolutePath());
+                    return thumbnail;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        // Collect them in the file order
+        ImageProcessor[] thumbnails = new ImageProcessor[files.size()];
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                thumbnails[i] = tasks.get(i).get();
+            } catch (ExecutionException e) {
+                logger.error("Could not read " + files.get(i).getAbsolutePath() + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted");
+                return;
+            }
+            status.showProgress(i + 1, files.size());
+        }
+
+        ImageProcessor sheet = createContactSheet(files, thumbnails);
+        String path = new File(outputDir, inputDir.getName() + "_contact-sheet.jpg").getAbsolutePath();
+        new FileSaver(new ImagePlus(inputDir.getName(), sheet)).saveAsJpeg(path);
+
+        status.showStatus("Wrote " + files.size() + " thumbnails");
+        logger.info("Contact sheet: " + path);
+    }
+
+    /**
+     * Read the focal plane of the smallest pyramid level of a file and scale it to the thumbnail size
+     *
+     * @param file NDPI file
+     * @param size length of the longer edge of the thumbnail
+     * @return RGB thumbnail
+     */
+    static ColorProcessor createThumbnail(File file, int size) throws IOException, FormatException {
+        // The pyramid levels come first, followed by the map and macro images if there are any
+        NdpiHeader header = NdpiHeader.read(file);
+        int series = Math.max(0, header.getLevelCount() - 1);
+        int z = header.getFocalPlane(series);
+
+        String id = file.getAbsolutePath();
+        MappedFileHandle.register(id);
+        String streamId = MappedFileHandle.openStream(id);
+        ImageReader reader = new ImageReader();
+        try {
+            reader.setId(streamId);
+            reader.setSeries(series);
+            int plane = reader.getIndex(Math.min(z, reader.getSizeZ() - 1), 0, 0);
+            ColorProcessor image = toColorProcessor(reader, reader.openBytes(plane));
+
+            double scale = Math.min(1, size / (double) Math.max(image.getWidth(), image.getHeight()));
+            int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+            image.setInterpolationMethod(ImageProcessor.BILINEAR);
+
+            return (ColorProcessor) image.resize(width, height, true);
+        } finally {
+            reader.close();
+            MappedFileHandle.closeStream(streamId);
+            MappedFileHandle.release(id);
+        }
+    }
+
+    private static ColorProcessor toColorProcessor(ImageReader reader, byte[] data) throws FormatException {
+        if (reader.getPixelType() != FormatTools.UINT8) {
+            throw new FormatException("Unsupported pixel type " + FormatTools.getPixelTypeString(reader.getPixelType()));
+        }
+
+        int width = reader.getSizeX();
+        int height = reader.getSizeY();
+        int pixels = width * height;
+        int samples = reader.getRGBChannelCount();
+        if (samples < 3) {
+            return new ByteProcessor(width, height, Arrays.copyOf(data, pixels)).convertToColorProcessor();
+        }
+
+        byte[] r = new byte[pixels];
+        byte[] g = new byte[pixels];
+        byte[] b = new byte[pixels];
+        boolean interleaved = reader.isInterleaved();
+        for (int i = 0; i < pixels; i++) {
+            if (interleaved) {
+                r[i] = data[i * samples];
+                g[i] = data[i * samples + 1];
+                b[i] = data[i * samples + 2];
+            } else {
+                r[i] = data[i];
+                g[i] = data[pixels + i];
+                b[i] = data[2 * pixels + i];
+            }
+        }
+
+        ColorProcessor image = new ColorProcessor(width, height);
+        image.setRGB(r, g, b);
+
+        return image;
+    }
+
+    /**
+     * Arrange the thumbnails on a grid with the file names below them
+     */
+    private ImageProcessor createContactSheet(List<File> files, ImageProcessor[] thumbnails) {
+        int cols = Math.min(columns, files.size());
+        int rows = (files.size() + cols - 1) / cols;
+        int cellWidth = thumbnailSize + 2 * MARGIN;
+        int cellHeight = thumbnailSize + LABEL_HEIGHT + 2 * MARGIN;
+
+        ColorProcessor sheet = new ColorProcessor(cols * cellWidth, rows * cellHeight);
+        sheet.setColor(Color.WHITE);
+        sheet.fill();
+        sheet.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, LABEL_HEIGHT - 4));
+        sheet.setAntialiasedText(true);
+
+        for (int i = 0; i < files.size(); i++) {
+            int x = (i % cols) * cellWidth + MARGIN;
+            int y = (i / cols) * cellHeight + MARGIN;
+
+            ImageProcessor thumbnail = thumbnails[i];
+            if (thumbnail != null) {
+                sheet.insert(thumbnail, x + (thumbnailSize - thumbnail.getWidth()) / 2,
+                        y + (thumbnailSize - thumbnail.getHeight()) / 2);
+            }
+
+            // Shorten the name to the cell width
+            String name = FilenameUtils.removeExtension(files.get(i).getName());
+            while (name.length() > 1 && sheet.getStringWidth(name) > thumbnailSize) {
+                name = name.substring(0, name.length() - 1);
+            }
+            sheet.setColor(thumbnail == null ? Color.RED : Color.BLACK);
+            sheet.drawString(name, x, y + thumbnailSize + LABEL_HEIGHT);
+        }
+
+        return sheet;
+    }
+
+    /**
+     * Run
+     *
+     * @param args input arguments
+     */
+    public static void main(final String... args) {
+        final ImageJ ij = new net.imagej.ImageJ();
+        ij.ui().showUI();
+        ij.command().run(NdpiContactSheet.class, true);
+    }
+}
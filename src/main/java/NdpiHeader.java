@@ -0,0 +1,468 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Minimal reader for the TIFF directory chain of a NDPI file.
+ *
+ * NDPI files are classic TIFFs that exceed 4 GB. Hamamatsu extends the format with an 8 byte
+ * next-directory pointer and stores only the lower 32 bits of data offsets. The upper bits are
+ * recovered from the offset of the directory, since the data is always written before it.
+ */
+class NdpiHeader {
+
+    /** Standard TIFF tags */
+    static final int IMAGE_WIDTH = 256;
+    static final int IMAGE_LENGTH = 257;
+    static final int COMPRESSION = 259;
+    static final int STRIP_OFFSETS = 273;
+    static final int STRIP_BYTE_COUNTS = 279;
+    static final int X_RESOLUTION = 282;
+    static final int Y_RESOLUTION = 283;
+    static final int RESOLUTION_UNIT = 296;
+
+    /** NDPI specific tags */
+    static final int NDPI_MARKER = 65420;
+    static final int SOURCE_LENS = 65421;
+    static final int X_OFFSET = 65422;
+    static final int Y_OFFSET = 65423;
+    static final int Z_OFFSET = 65424;
+    static final int MCU_STARTS = 65426;
+    static final int MCU_STARTS_HIGH_BYTES = 65432;
+
+    /** TIFF compression code for JPEG */
+    static final int COMPRESSION_JPEG = 7;
+
+    /** TIFF resolution units */
+    private static final int RESOLUTION_INCH = 2;
+    private static final int RESOLUTION_CENTIMETER = 3;
+
+    private final File file;
+    private final boolean ndpi;
+    private final List<Directory> directories;
+
+
+    private NdpiHeader(File file, boolean ndpi, List<Directory> directories) {
+        this.file = file;
+        this.ndpi = ndpi;
+        this.directories = directories;
+    }
+
+    /**
+     * Parse all the directories of a NDPI file.
+     *
+     * @param file NDPI file
+     * @return parsed header
+     * @throws IOException if the file is not a little endian classic TIFF
+     */
+    static NdpiHeader read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer header = read(channel, 0, 8);
+            if (header.getShort() != 0x4949 || header.getShort() != 42) {
+                throw new IOException("Not a little endian classic TIFF: " + file.getAbsolutePath());
+            }
+
+            List<Directory> directories = new ArrayList<>();
+            boolean ndpi = false;
+            long offset = header.getInt() & 0xFFFFFFFFL;
+            while (offset != 0) {
+                if (offset >= channel.size() || directories.size() > 1000) {
+                    throw new IOException("Corrupt directory chain in " + file.getAbsolutePath());
+                }
+
+                Directory directory = readDirectory(channel, offset);
+                ndpi = ndpi || directory.has(NDPI_MARKER);
+
+                // The next-directory pointer is 8 bytes wide in NDPI files
+                long next = directory.end;
+                ByteBuffer pointer = read(channel, next, ndpi ? 8 : 4);
+                offset = ndpi ? pointer.getLong() : pointer.getInt() & 0xFFFFFFFFL;
+
+                directories.add(directory);
+            }
+
+            return new NdpiHeader(file, ndpi, directories);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean isNdpi() {
+        return ndpi;
+    }
+
+    List<Directory> getDirectories() {
+        return Collections.unmodifiableList(directories);
+    }
+
+    /**
+     * Get the directories of the pyramid level that Bio-Formats exposes as the given series.
+     * The levels are sorted by decreasing size and each level has one directory per focal plane.
+     * The macro and map images (negative source lens) are not part of the pyramid.
+     *
+     * @param series series index
+     * @return directories of the z-planes of the series
+     */
+    List<Directory> getLevel(int series) {
+        List<Long> widths = new ArrayList<>();
+        for (Directory directory : directories) {
+            if (directory.isPyramidLevel() && !widths.contains(directory.getWidth())) {
+                widths.add(directory.getWidth());
+            }
+        }
+        Collections.sort(widths, Collections.<Long>reverseOrder());
+
+        if (series < 0 || series >= widths.size()) {
+            return Collections.emptyList();
+        }
+
+        List<Directory> level = new ArrayList<>();
+        for (Directory directory : directories) {
+            if (directory.isPyramidLevel() && directory.getWidth() == widths.get(series)) {
+                level.add(directory);
+            }
+        }
+
+        return level;
+    }
+
+    /**
+     * @return number of pyramid levels, i.e. the series Bio-Formats exposes without the macro image
+     */
+    int getLevelCount() {
+        List<Long> widths = new ArrayList<>();
+        for (Directory directory : directories) {
+            if (directory.isPyramidLevel() && !widths.contains(directory.getWidth())) {
+                widths.add(directory.getWidth());
+            }
+        }
+
+        return widths.size();
+    }
+
+    /**
+     * @return magnification of each pyramid level, as recorded in its source lens tag
+     */
+    double[] getMagnifications() {
+        double[] magnifications = new double[getLevelCount()];
+        for (int i = 0; i < magnifications.length; i++) {
+            magnifications[i] = getLevel(i).get(0).getSourceLens();
+        }
+
+        return magnifications;
+    }
+
+    /**
+     * Get the pixel sizes of the pyramid levels. Levels without resolution tags are derived
+     * from their width relative to the first level.
+     *
+     * @return pixel size in micrometer for each level, NaN if the first level has no resolution
+     */
+    double[] getPixelSizes() {
+        int count = getLevelCount();
+        double[] sizes = new double[count];
+        if (count == 0) {
+            return sizes;
+        }
+
+        Directory first = getLevel(0).get(0);
+        for (int i = 0; i < count; i++) {
+            Directory directory = getLevel(i).get(0);
+            sizes[i] = directory.getPixelSizeX();
+            if (Double.isNaN(sizes[i])) {
+                sizes[i] = sizes[0] * first.getWidth() / directory.getWidth();
+            }
+        }
+
+        return sizes;
+    }
+
+    /**
+     * @param series series index
+     * @return focal plane offsets of the series in nanometer, in the order of the z-planes
+     */
+    long[] getZOffsets(int series) {
+        List<Directory> level = getLevel(series);
+        long[] offsets = new long[level.size()];
+        for (int z = 0; z < offsets.length; z++) {
+            offsets[z] = level.get(z).getZOffset();
+        }
+
+        return offsets;
+    }
+
+    /**
+     * @param series series index
+     * @return index of the z-plane closest to the nominal focus, 0 for a single plane
+     */
+    int getFocalPlane(int series) {
+        long[] offsets = getZOffsets(series);
+        int z = 0;
+        for (int i = 1; i < offsets.length; i++) {
+            if (Math.abs(offsets[i]) < Math.abs(offsets[z])) {
+                z = i;
+            }
+        }
+
+        return z;
+    }
+
+    /**
+     * Get the z-plane closest to the nominal focus of a file
+     *
+     * @param file NDPI file
+     * @param series series index
+     * @return z-plane index, 0 if the header cannot be read
+     */
+    static int getFocalPlane(File file, int series) {
+        try {
+            return read(file).getFocalPlane(series);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static Directory readDirectory(FileChannel channel, long offset) throws IOException {
+        int count = read(channel, offset, 2).getShort() & 0xFFFF;
+        ByteBuffer entries = read(channel, offset + 2, count * 12);
+
+        Directory directory = new Directory(offset, offset + 2 + count * 12);
+        for (int i = 0; i < count; i++) {
+            int tag = entries.getShort() & 0xFFFF;
+            int type = entries.getShort() & 0xFFFF;
+            long n = entries.getInt() & 0xFFFFFFFFL;
+            int size = typeSize(type);
+
+            ByteBuffer values;
+            if (size * n <= 4) {
+                values = entries.slice().order(ByteOrder.LITTLE_ENDIAN);
+                values.limit(4);
+                entries.position(entries.position() + 4);
+            } else {
+                long valueOffset = fixOffset(offset, entries.getInt() & 0xFFFFFFFFL);
+                values = read(channel, valueOffset, (int) (size * n));
+            }
+
+            directory.entries.put(tag, decode(values, type, (int) n));
+        }
+
+        // Data offsets only hold the lower 32 bits
+        long[] stripOffsets = directory.entries.get(STRIP_OFFSETS);
+        if (stripOffsets != null) {
+            for (int i = 0; i < stripOffsets.length; i++) {
+                stripOffsets[i] = fixOffset(offset, stripOffsets[i]);
+            }
+        }
+
+        return directory;
+    }
+
+    /**
+     * Restore the upper 32 bits of an offset, knowing that the data precedes the directory.
+     */
+    private static long fixOffset(long directoryOffset, long offset) {
+        long result = (directoryOffset & ~0xFFFFFFFFL) | (offset & 0xFFFFFFFFL);
+        if (result >= directoryOffset) {
+            result -= 0x100000000L;
+        }
+
+        return (result < 0) ? offset : result;
+    }
+
+    private static int typeSize(int type) {
+        switch (type) {
+            case 3:  // SHORT
+            case 8:  // SSHORT
+                return 2;
+            case 4:  // LONG
+            case 9:  // SLONG
+            case 11: // FLOAT
+                return 4;
+            case 5:  // RATIONAL
+            case 10: // SRATIONAL
+            case 12: // DOUBLE
+            case 16: // LONG8
+            case 17: // SLONG8
+                return 8;
+            default: // BYTE, ASCII, SBYTE, UNDEFINED
+                return 1;
+        }
+    }
+
+    /**
+     * Decode the values of an entry to longs. Floating point values are stored as raw bits,
+     * rationals as numerator/denominator pairs.
+     */
+    private static long[] decode(ByteBuffer buffer, int type, int n) {
+        long[] values = new long[(type == 5 || type == 10) ? 2 * n : n];
+        for (int i = 0; i < values.length; i++) {
+            switch (type) {
+                case 3:
+                    values[i] = buffer.getShort() & 0xFFFF;
+                    break;
+                case 8:
+                    values[i] = buffer.getShort();
+                    break;
+                case 4:
+                case 5:
+                    values[i] = buffer.getInt() & 0xFFFFFFFFL;
+                    break;
+                case 9:
+                case 10:
+                    values[i] = buffer.getInt();
+                    break;
+                case 11:
+                    values[i] = Float.floatToRawIntBits(buffer.getFloat());
+                    break;
+                case 12:
+                    values[i] = Double.doubleToRawLongBits(buffer.getDouble());
+                    break;
+                case 16:
+                case 17:
+                    values[i] = buffer.getLong();
+                    break;
+                case 6:
+                    values[i] = buffer.get();
+                    break;
+                default:
+                    values[i] = buffer.get() & 0xFF;
+            }
+        }
+
+        return values;
+    }
+
+    static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+
+    /**
+     * One image file directory with its entries decoded to long arrays
+     */
+    static class Directory {
+
+        private final long offset;
+        private final long end;
+        private final HashMap<Integer, long[]> entries = new HashMap<>();
+
+
+        private Directory(long offset, long end) {
+            this.offset = offset;
+            this.end = end;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        boolean has(int tag) {
+            return entries.containsKey(tag);
+        }
+
+        long[] get(int tag) {
+            return entries.get(tag);
+        }
+
+        long get(int tag, long defaultValue) {
+            long[] values = entries.get(tag);
+            return (values == null || values.length == 0) ? defaultValue : values[0];
+        }
+
+        long getWidth() {
+            return get(IMAGE_WIDTH, 0);
+        }
+
+        long getHeight() {
+            return get(IMAGE_LENGTH, 0);
+        }
+
+        /**
+         * @return magnification of the level, negative for the macro (-1) and map (-2) images
+         */
+        float getSourceLens() {
+            return Float.intBitsToFloat((int) get(SOURCE_LENS, Float.floatToRawIntBits(0)));
+        }
+
+        /**
+         * @return pixel width in micrometer or NaN if the directory has no resolution tags
+         */
+        double getPixelSizeX() {
+            return getPixelSize(X_RESOLUTION);
+        }
+
+        private double getPixelSize(int tag) {
+            long[] resolution = get(tag);
+            if (resolution == null || resolution.length < 2 || resolution[0] == 0 || resolution[1] == 0) {
+                return Double.NaN;
+            }
+
+            // Pixels per unit
+            double pixels = resolution[0] / (double) resolution[1];
+            switch ((int) get(RESOLUTION_UNIT, RESOLUTION_INCH)) {
+                case RESOLUTION_CENTIMETER:
+                    return 1e4 / pixels;
+                case RESOLUTION_INCH:
+                    return 25.4e3 / pixels;
+                default:
+                    return Double.NaN;
+            }
+        }
+
+        /**
+         * @return offset of the focal plane in nanometer
+         */
+        long getZOffset() {
+            return get(Z_OFFSET, 0);
+        }
+
+        boolean isPyramidLevel() {
+            return getSourceLens() > 0;
+        }
+
+        boolean isJpeg() {
+            return get(COMPRESSION, 1) == COMPRESSION_JPEG;
+        }
+
+        /**
+         * @return offsets of the restart intervals relative to the start of the JPEG stream, or null
+         */
+        long[] getMcuStarts() {
+            long[] starts = get(MCU_STARTS);
+            if (starts == null) {
+                return null;
+            }
+
+            long[] high = get(MCU_STARTS_HIGH_BYTES);
+            long[] result = new long[starts.length];
+            for (int i = 0; i < starts.length; i++) {
+                result[i] = starts[i];
+                if (high != null && i < high.length) {
+                    result[i] |= high[i] << 32;
+                }
+            }
+
+            return result;
+        }
+    }
+}
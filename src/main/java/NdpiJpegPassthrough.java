@@ -0,0 +1,164 @@
+import loci.formats.FormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Transcode a NDPI pyramid level to a tiled JPEG OME-TIFF without decoding it.
+ *
+ * The JPEG stream of the level is cut at its restart markers and blocks of restart intervals
+ * are re-assembled to standalone JPEG tiles. Only the headers are rewritten, the entropy coded
+ * data is copied as is.
+ */
+class NdpiJpegPassthrough {
+
+    /** Name of the compression option */
+    static final String COMPRESSION = "JPEG (passthrough)";
+
+    /** Preferred tile edge length */
+    private static final int TARGET_TILE_SIZE = 512;
+
+    private final File file;
+    private final List<JpegRestartIndex> planes;
+    private final int blockCols;
+    private final int blockRows;
+
+
+    private NdpiJpegPassthrough(File file, List<JpegRestartIndex> planes, int blockCols, int blockRows) {
+        this.file = file;
+        this.planes = planes;
+        this.blockCols = blockCols;
+        this.blockRows = blockRows;
+    }
+
+    /**
+     * Check the series of a NDPI file for passthrough eligibility and index its JPEG streams.
+     *
+     * @param file NDPI file
+     * @param series series index (pyramid level)
+     * @return passthrough transcoder
+     * @throws FormatException if the series cannot be copied without decoding
+     * @throws IOException if the file cannot be read
+     */
+    static NdpiJpegPassthrough open(File file, int series) throws FormatException, IOException {
+        NdpiHeader header;
+        try {
+            header = NdpiHeader.read(file);
+        } catch (IOException e) {
+            throw new FormatException("Not a NDPI file: " + file.getName(), e);
+        }
+
+        List<NdpiHeader.Directory> level = header.getLevel(series);
+        if (!header.isNdpi() || level.isEmpty()) {
+            throw new FormatException("No pyramid level " + series + " in " + file.getName());
+        }
+
+        List<JpegRestartIndex> planes = new ArrayList<>(level.size());
+        for (NdpiHeader.Directory directory : level) {
+            try {
+                planes.add(JpegRestartIndex.create(file, directory));
+            } catch (IOException | FormatException e) {
+                throw new FormatException("Series " + series + " of " + file.getName() +
+                        " cannot be transcoded: " + e.getMessage(), e);
+            }
+        }
+
+        JpegRestartIndex index = planes.get(0);
+        if (index.getComponentCount() != 1 && index.getComponentCount() != 3) {
+            throw new FormatException("Unsupported number of JPEG components: " + index.getComponentCount());
+        }
+
+        // TIFF requires tile dimensions that are multiples of 16 and all tiles have the same size
+        int blockCols = getBlockSize(index.getIntervalWidth(), index.getIntervalsAcross());
+        int blockRows = getBlockSize(index.getMcuHeight(), index.getIntervalRows());
+        if (blockCols < 1 || blockRows < 1) {
+            throw new FormatException("The restart interval layout of " + file.getName() +
+                    " does not fit a TIFF tile grid");
+        }
+        if (blockCols * index.getIntervalWidth() > JpegRestartIndex.MAX_BLOCK_SIZE ||
+                blockRows * index.getMcuHeight() > JpegRestartIndex.MAX_BLOCK_SIZE) {
+            throw new FormatException("The restart intervals of " + file.getName() +
+                    " are too large for JPEG tiles");
+        }
+
+        return new NdpiJpegPassthrough(file, planes, blockCols, blockRows);
+    }
+
+    /**
+     * Find the number of intervals per tile so that the tile size is a multiple of 16 and
+     * the intervals are evenly divided among the tiles.
+     *
+     * @return number of intervals per tile or -1 if there is no such number
+     */
+    private static int getBlockSize(int intervalSize, int intervals) {
+        int block = 1;
+        while ((block * intervalSize) % 16 != 0 || intervals % block != 0) {
+            if (++block > 16) {
+                return -1;
+            }
+        }
+
+        while (block * intervalSize < TARGET_TILE_SIZE && intervals % (2 * block) == 0) {
+            block *= 2;
+        }
+
+        return block;
+    }
+
+    int getWidth() {
+        return planes.get(0).getWidth();
+    }
+
+    int getHeight() {
+        return planes.get(0).getHeight();
+    }
+
+    int getPlaneCount() {
+        return planes.size();
+    }
+
+    int getSamplesPerPixel() {
+        return planes.get(0).getComponentCount();
+    }
+
+    /**
+     * Write the transcoded planes to a tiled BigTIFF
+     *
+     * @param outId output file path
+     * @param description image description of the first plane (OME-XML)
+     * @throws IOException if reading or writing fails
+     */
+    void write(String outId, String description) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             TiledTiffWriter writer = new TiledTiffWriter(new File(outId))) {
+            ByteSource source = ByteSource.of(raf.getChannel());
+
+            for (int z = 0; z < planes.size(); z++) {
+                JpegRestartIndex index = planes.get(z);
+                boolean color = index.getComponentCount() == 3;
+                int tileWidth = blockCols * index.getIntervalWidth();
+                int tileHeight = blockRows * index.getMcuHeight();
+
+                writer.startPlane(index.getWidth(), index.getHeight(), tileWidth, tileHeight,
+                        index.getComponentCount(),
+                        TiledTiffWriter.COMPRESSION_JPEG,
+                        color ? TiledTiffWriter.PHOTOMETRIC_YCBCR : TiledTiffWriter.PHOTOMETRIC_MINISBLACK,
+                        color ? index.getChromaSubsampling() : null,
+                        (z == 0) ? description : null);
+
+                int tilesAcross = index.getIntervalsAcross() / blockCols;
+                int tilesDown = index.getIntervalRows() / blockRows;
+                for (int row = 0; row < tilesDown; row++) {
+                    for (int col = 0; col < tilesAcross; col++) {
+                        byte[] tile = index.assemble(source, col * blockCols, row * blockRows, blockCols, blockRows);
+                        writer.writeTile(col, row, tile);
+                    }
+                }
+            }
+        }
+    }
+}
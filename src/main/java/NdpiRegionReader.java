@@ -0,0 +1,195 @@
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.meta.MetadataStore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Read rectangular regions of single color planes from one series of a NDPI file.
+ *
+ * The planes are indexed as by the {@link ChannelSeparator} (color component is the fastest
+ * varying index). When the series is a JPEG level with restart markers the region is decoded with
+ * the {@link JpegRestartDecoder}, otherwise the Bio-Formats reader is used.
+ */
+class NdpiRegionReader implements Closeable {
+
+    private final String id;
+    private final String streamId;
+    private final int series;
+    private final ChannelSeparator reader;
+    private final List<JpegRestartIndex> planes;
+    private final RandomAccessFile raf;
+    private final ByteSource source;
+
+
+    /**
+     * Open a series of a file
+     *
+     * @param id file path
+     * @param series series index
+     * @param store metadata store to populate or null
+     * @throws IOException if the file cannot be read
+     * @throws FormatException if the file format is not supported
+     */
+    NdpiRegionReader(String id, int series, MetadataStore store) throws IOException, FormatException {
+        this.id = id;
+        this.series = series;
+
+        streamId = MappedFileHandle.openStream(id);
+        reader = new ChannelSeparator();
+        if (store != null) {
+            reader.setMetadataStore(store);
+        }
+        try {
+            reader.setId(streamId);
+            reader.setSeries(series);
+        } catch (IOException | FormatException | RuntimeException e) {
+            reader.close();
+            MappedFileHandle.closeStream(streamId);
+            throw e;
+        }
+
+        List<JpegRestartIndex> index = JpegRestartDecoder.getIndex(new File(id), series);
+        if (isConsistent(index)) {
+            // The intervals are read from the mapping of a registered file, which the open stream keeps
+            planes = index;
+            ByteSource mapped = MappedFileHandle.getSource(id);
+            raf = (mapped == null) ? new RandomAccessFile(id, "r") : null;
+            source = (mapped == null) ? ByteSource.of(raf.getChannel()) : mapped;
+        } else {
+            planes = Collections.emptyList();
+            raf = null;
+            source = null;
+        }
+    }
+
+    /**
+     * The directories have to match the dimensions and planes Bio-Formats exposes for the series
+     */
+    private boolean isConsistent(List<JpegRestartIndex> index) {
+        if (index.isEmpty() || !reader.isRGB() || index.size() * reader.getRGBChannelCount() != reader.getImageCount()) {
+            return false;
+        }
+
+        for (JpegRestartIndex plane : index) {
+            if (plane.getWidth() != reader.getSizeX() || plane.getHeight() != reader.getSizeY()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    int getSeries() {
+        return series;
+    }
+
+    /**
+     * @return the underlying reader, for dimensions and metadata
+     */
+    ChannelSeparator getReader() {
+        return reader;
+    }
+
+    int getSizeX() {
+        return reader.getSizeX();
+    }
+
+    int getSizeY() {
+        return reader.getSizeY();
+    }
+
+    int getImageCount() {
+        return reader.getImageCount();
+    }
+
+    /**
+     * @return true if the regions are decoded in parallel by restart intervals
+     */
+    boolean isIntervalDecoding() {
+        return !planes.isEmpty();
+    }
+
+    /**
+     * @return restart interval index of the first plane or null
+     */
+    JpegRestartIndex getRestartIndex() {
+        return planes.isEmpty() ? null : planes.get(0);
+    }
+
+    /**
+     * Read a region of a plane
+     *
+     * @param no plane index (channel separated)
+     * @param buf target buffer of at least w * h bytes
+     * @param x region origin x
+     * @param y region origin y
+     * @param w region width
+     * @param h region height
+     * @return the target buffer
+     * @throws IOException if the file cannot be read
+     * @throws FormatException if the data cannot be decoded
+     */
+    byte[] openRegion(int no, byte[] buf, int x, int y, int w, int h) throws IOException, FormatException {
+        if (planes.isEmpty()) {
+            return reader.openBytes(no, buf, x, y, w, h);
+        }
+
+        int rgb = reader.getRGBChannelCount();
+        JpegRestartDecoder.decode(source, planes.get(no / rgb), no % rgb, buf, x, y, w, h);
+
+        return buf;
+    }
+
+    /**
+     * Read a region of all color components of a z-plane. With restart interval decoding the
+     * region is decoded only once for all components.
+     *
+     * @param z z-plane index
+     * @param bufs target buffer of at least w * h bytes for each color component, null to skip one
+     * @param x region origin x
+     * @param y region origin y
+     * @param w region width
+     * @param h region height
+     * @return the target buffers
+     * @throws IOException if the file cannot be read
+     * @throws FormatException if the data cannot be decoded
+     */
+    byte[][] openRegions(int z, byte[][] bufs, int x, int y, int w, int h) throws IOException, FormatException {
+        int rgb = reader.getRGBChannelCount();
+        if (planes.isEmpty()) {
+            for (int c = 0; c < bufs.length; c++) {
+                if (bufs[c] != null) {
+                    reader.openBytes(z * rgb + c, bufs[c], x, y, w, h);
+                }
+            }
+            return bufs;
+        }
+
+        JpegRestartDecoder.decode(source, planes.get(z), bufs, x, y, w, h);
+
+        return bufs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+            if (raf != null) {
+                raf.close();
+            }
+        } finally {
+            MappedFileHandle.closeStream(streamId);
+        }
+    }
+}
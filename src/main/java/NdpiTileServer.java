@@ -0,0 +1,565 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import loci.formats.FormatException;
+
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * HTTP server for regions of the NDPI files of a directory, in the style of the IIIF Image API 2.1.
+ *
+ *     http://localhost:&lt;port&gt;/iiif/&lt;name&gt;[@&lt;series&gt;]/&lt;region&gt;/&lt;size&gt;/0/&lt;quality&gt;.&lt;format&gt;
+ *     http://localhost:&lt;port&gt;/iiif/&lt;name&gt;[@&lt;series&gt;]/info.json
+ *
+ * The name is the file name without extension, the series is 1-based. Region is {@code full},
+ * {@code square}, {@code x,y,w,h} or {@code pct:x,y,w,h} and size is {@code full}, {@code max},
+ * {@code w,}, {@code ,h}, {@code pct:n}, {@code w,h} or {@code !w,h} in pixels of the series.
+ * Besides {@code default}, {@code color} and {@code gray} the qualities {@code red}, {@code green}
+ * and {@code blue} return one color component, e.g. the channel of a fluorescence file.
+ * Formats are {@code jpg} and {@code png}; rotation and up-sampling are not supported.
+ *
+ * Regions are read from the coarsest pyramid level that is fine enough for the requested size,
+ * through the {@link TileCache}, so the blocks decoded for one client are reused for all others.
+ * The server only listens on the loopback interface and only answers requests addressed to
+ * {@code localhost} or a loopback address on its port, so web pages cannot reach it through
+ * another host name (DNS rebinding). Cross-origin requests are allowed for pages served from the
+ * local machine only.
+ */
+class NdpiTileServer implements Closeable {
+
+    /** Default port */
+    static final int DEFAULT_PORT = 8182;
+
+    /** Tile size advertised to the clients */
+    private static final int TILE_SIZE = TileCache.BLOCK_SIZE;
+
+    /** JPEG quality of the responses */
+    private static final float JPEG_QUALITY = 0.9f;
+
+    /** Maximal number of pixels of a response and of the source region it is read from */
+    private static final long MAX_PIXELS = 4096 * 4096;
+    private static final long MAX_SOURCE_PIXELS = 8 * MAX_PIXELS;
+
+    /** Maximal number of open readers and of resolved images */
+    private static final int MAX_READERS = 64;
+    private static final int MAX_SLIDES = 256;
+
+    /** Host names of the loopback interface */
+    private static final String[] LOCAL_HOSTS = {"localhost", "127.0.0.1", "[::1]"};
+
+    /** Running server of the process */
+    private static NdpiTileServer running;
+
+    private final File directory;
+    private final int port;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ReaderPool readers;
+    private final TileCache cache;
+    private final String baseUrl;
+    private final Map<String, Slide> slides = Collections.synchronizedMap(
+            new LinkedHashMap<String, Slide>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Slide> eldest) {
+                    return size() > MAX_SLIDES;
+                }
+            });
+
+
+    private NdpiTileServer(File directory, int port, long cacheBytes) throws IOException {
+        this.directory = directory.getCanonicalFile();
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        readers = new ReaderPool(processors, MAX_READERS);
+        cache = new TileCache(readers, cacheBytes);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        InetSocketAddress address = server.getAddress();
+        this.port = address.getPort();
+        String host = address.getAddress().getHostAddress();
+        baseUrl = "http://" + (host.contains(":") ? "[" + host + "]" : host) + ":" + address.getPort();
+        executor = Executors.newFixedThreadPool(2 * processors);
+        server.setExecutor(executor);
+        server.createContext("/iiif/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!isLocal(exchange.getRequestHeaders().getFirst("Host"))) {
+                    send(exchange, 403, "Only requests to localhost:" + NdpiTileServer.this.port + " are served");
+                    return;
+                }
+                send(exchange, 200, "text/plain", ("Serving " + NdpiTileServer.this.directory + "\n" +
+                        cache.getStatus() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Start the server of the process, replacing a running one
+     *
+     * @param directory directory with the NDPI files
+     * @param port local port
+     * @param cacheBytes budget of the decoded block cache
+     * @return the server
+     * @throws IOException if the port cannot be bound
+     */
+    static synchronized NdpiTileServer start(File directory, int port, long cacheBytes) throws IOException {
+        stop();
+        running = new NdpiTileServer(directory, port, cacheBytes);
+        return running;
+    }
+
+    /**
+     * Stop the server of the process, if there is one
+     */
+    static synchronized void stop() throws IOException {
+        if (running != null) {
+            running.close();
+            running = null;
+        }
+    }
+
+    /**
+     * @return the running server or null
+     */
+    static synchronized NdpiTileServer getRunning() {
+        return running;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(0);
+        executor.shutdownNow();
+        readers.close();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                send(exchange, 403, "Only local clients are served");
+                return;
+            }
+            if (!isLocal(exchange.getRequestHeaders().getFirst("Host"))) {
+                send(exchange, 403, "Only requests to localhost:" + port + " are served");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, "Only GET requests are supported");
+                return;
+            }
+
+            String path = exchange.getRequestURI().getRawPath().substring("/iiif/".length());
+            String[] segments = path.split("/");
+            Slide slide = getSlide(decode(segments[0]));
+            if (slide == null) {
+                send(exchange, 404, "Unknown image " + decode(segments[0]));
+            } else if (segments.length == 1 || (segments.length == 2 && segments[1].equals("info.json"))) {
+                String id = baseUrl + "/iiif/" + segments[0];
+                send(exchange, 200, "application/json", slide.getInfo(id).getBytes(StandardCharsets.UTF_8));
+            } else if (segments.length == 5) {
+                String[] qualityFormat = decode(segments[4]).split("\\.");
+                if (qualityFormat.length != 2) {
+                    throw new IllegalArgumentException("Quality and format expected: " + segments[4]);
+                }
+                if (!segments[3].equals("0")) {
+                    throw new IllegalArgumentException("Rotation is not supported");
+                }
+                String format = qualityFormat[1].equals("jpeg") ? "jpg" : qualityFormat[1];
+                if (!format.equals("jpg") && !format.equals("png")) {
+                    throw new IllegalArgumentException("Unsupported format " + qualityFormat[1]);
+                }
+
+                BufferedImage image = slide.render(decode(segments[1]), decode(segments[2]), qualityFormat[0]);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(bytes)) {
+                    DeepZoomWriter.encode(image, format, JPEG_QUALITY, output);
+                }
+                send(exchange, 200, format.equals("jpg") ? "image/jpeg" : "image/png", bytes.toByteArray());
+            } else {
+                send(exchange, 400, "Expected <name>/<region>/<size>/<rotation>/<quality>.<format>");
+            }
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, e.getMessage());
+        } catch (IOException | FormatException | RuntimeException e) {
+            send(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return true if a Host header names the loopback interface on the port of the server
+     */
+    private boolean isLocal(String host) {
+        if (host == null) {
+            return false;
+        }
+        for (String name : LOCAL_HOSTS) {
+            if (host.equalsIgnoreCase(name + ":" + port) || (port == 80 && host.equalsIgnoreCase(name))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if an Origin header is a page served from the local machine
+     */
+    private static boolean isLocalOrigin(String origin) {
+        for (String name : LOCAL_HOSTS) {
+            for (String scheme : new String[]{"http://", "https://"}) {
+                String prefix = scheme + name;
+                if (origin.equalsIgnoreCase(prefix) || origin.regionMatches(true, 0, prefix + ":", 0, prefix.length() + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static String decode(String segment) throws UnsupportedEncodingException {
+        // A plus is a plus in a path
+        return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+    }
+
+    private static void send(HttpExchange exchange, int code, String message) throws IOException {
+        send(exchange, code, "text/plain", (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int code, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin != null && isLocalOrigin(origin)) {
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", origin);
+        }
+        exchange.getResponseHeaders().set("Vary", "Origin");
+        if (code == 200) {
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=86400");
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * Resolve an identifier to a series of a file of the directory
+     *
+     * @return the series or null if there is no such file or series
+     */
+    private Slide getSlide(String identifier) throws IOException {
+        Slide slide = slides.get(identifier);
+        if (slide != null) {
+            return slide;
+        }
+
+        String name = identifier;
+        int series = 0;
+        int at = identifier.lastIndexOf('@');
+        if (at > 0) {
+            name = identifier.substring(0, at);
+            try {
+                series = Integer.parseInt(identifier.substring(at + 1)) - 1;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        // Only files directly in the served directory
+        File file = new File(directory, name + "." + HTplusFluo.FILE_EXTENSION).getCanonicalFile();
+        if (!directory.equals(file.getParentFile()) || !file.isFile()) {
+            return null;
+        }
+
+        try {
+            slide = new Slide(file, series);
+        } catch (FormatException e) {
+            return null;
+        }
+        if (slide.levels.isEmpty() || series < 0 || series >= slide.pixelSizes.length) {
+            return null;
+        }
+        slides.put(identifier, slide);
+
+        return slide;
+    }
+
+
+    /**
+     * Pyramid of a file, seen from one of its series
+     */
+    private class Slide {
+
+        private final File file;
+        private final int series;
+        private final double[] pixelSizes;
+        private final NdpiHeader header;
+        private final List<NdpiHeader.Directory> levels;
+        private final int width;
+        private final int height;
+
+
+        Slide(File file, int series) throws IOException, FormatException {
+            this.file = file;
+            this.series = series;
+            this.header = NdpiHeader.read(file);
+            this.pixelSizes = NdpiUtils.getSeriesPixelSizeValues(file);
+            this.levels = header.getLevel(series);
+            if (pixelSizes.length != header.getLevelCount()) {
+                throw new FormatException("The pyramid of " + file.getName() + " does not match its series");
+            }
+            this.width = levels.isEmpty() ? 0 : (int) levels.get(0).getWidth();
+            this.height = levels.isEmpty() ? 0 : (int) levels.get(0).getHeight();
+        }
+
+        String getInfo(String id) {
+            StringBuilder scales = new StringBuilder("1");
+            for (int scale = 2; scale < 2 * Math.max(width, height) / TILE_SIZE; scale *= 2) {
+                scales.append(", ").append(scale);
+            }
+
+            return "{\n" +
+                    "  \"@context\": \"http://iiif.io/api/image/2/context.json\",\n" +
+                    "  \"@id\": \"" + id + "\",\n" +
+                    "  \"protocol\": \"http://iiif.io/api/image\",\n" +
+                    "  \"width\": " + width + ",\n" +
+                    "  \"height\": " + height + ",\n" +
+                    "  \"tiles\": [{\"width\": " + TILE_SIZE + ", \"scaleFactors\": [" + scales + "]}],\n" +
+                    "  \"profile\": [\"http://iiif.io/api/image/2/level1.json\", {\"formats\": [\"jpg\", \"png\"], " +
+                    "\"qualities\": [\"default\", \"color\", \"gray\", \"red\", \"green\", \"blue\"]}]\n" +
+                    "}\n";
+        }
+
+        /**
+         * Render a region
+         *
+         * @param regionParameter IIIF region
+         * @param sizeParameter IIIF size
+         * @param quality IIIF quality or color component
+         * @return image of the requested size
+         */
+        BufferedImage render(String regionParameter, String sizeParameter, String quality)
+                throws IOException, FormatException {
+            int[] region = parseRegion(regionParameter);
+            int[] size = parseSize(sizeParameter, region[2], region[3]);
+            int outW = size[0];
+            int outH = size[1];
+
+            // Coarsest level that still has at least the requested resolution
+            int level = NdpiUtils.getSeriesForPixelSize(pixelSizes, pixelSizes[series] * region[2] / outW);
+            int[] source = null;
+            for (; level >= series; level--) {
+                source = scaleRegion(region, level);
+                if (source[2] >= outW && source[3] >= outH) {
+                    break;
+                }
+            }
+            if (level < series) {
+                level = series;
+                source = region;
+            }
+
+            if ((long) source[2] * source[3] > MAX_SOURCE_PIXELS) {
+                throw new IllegalArgumentException("The region is too large for the requested size");
+            }
+
+            String id = file.getAbsolutePath();
+            byte[][] bands = cache.read(id, level, header.getFocalPlane(level), source[0], source[1], source[2],
+                    source[3]);
+            if (source[2] != outW || source[3] != outH) {
+                AreaResampler resampler = new AreaResampler(source[2] / (double) outW);
+                for (int c = 0; c < bands.length; c++) {
+                    byte[] resampled = new byte[outW * outH];
+                    resampler.resample(bands[c], 0, 0, source[2], source[3], resampled, 0, 0, outW, outH,
+                            source[2], source[3]);
+                    bands[c] = resampled;
+                }
+            }
+
+            return toImage(bands, outW, outH, quality);
+        }
+
+        private int[] parseRegion(String parameter) {
+            int[] region;
+            if (parameter.equals("full")) {
+                region = new int[]{0, 0, width, height};
+            } else if (parameter.equals("square")) {
+                int side = Math.min(width, height);
+                region = new int[]{(width - side) / 2, (height - side) / 2, side, side};
+            } else if (parameter.startsWith("pct:")) {
+                double[] pct = parseNumbers(parameter.substring(4), 4);
+                region = new int[]{(int) Math.round(pct[0] * width / 100), (int) Math.round(pct[1] * height / 100),
+                        (int) Math.round(pct[2] * width / 100), (int) Math.round(pct[3] * height / 100)};
+            } else {
+                double[] values = parseNumbers(parameter, 4);
+                region = new int[]{(int) values[0], (int) values[1], (int) values[2], (int) values[3]};
+            }
+
+            // Clip to the image
+            int x0 = Math.max(0, region[0]);
+            int y0 = Math.max(0, region[1]);
+            int x1 = Math.min(width, region[0] + region[2]);
+            int y1 = Math.min(height, region[1] + region[3]);
+            if (x1 <= x0 || y1 <= y0) {
+                throw new IllegalArgumentException("The region is outside of the image: " + parameter);
+            }
+
+            return new int[]{x0, y0, x1 - x0, y1 - y0};
+        }
+
+        private int[] parseSize(String parameter, int w, int h) {
+            int outW;
+            int outH;
+            if (parameter.equals("full") || parameter.equals("max")) {
+                outW = w;
+                outH = h;
+            } else if (parameter.startsWith("pct:")) {
+                double pct = parseNumbers(parameter.substring(4), 1)[0];
+                outW = (int) Math.round(w * pct / 100);
+                outH = (int) Math.round(h * pct / 100);
+            } else if (parameter.startsWith("!")) {
+                double[] box = parseNumbers(parameter.substring(1), 2);
+                double scale = Math.min(box[0] / w, box[1] / h);
+                outW = (int) Math.round(w * scale);
+                outH = (int) Math.round(h * scale);
+            } else if (parameter.endsWith(",")) {
+                outW = (int) parseNumbers(parameter.substring(0, parameter.length() - 1), 1)[0];
+                outH = (int) Math.round(h * outW / (double) w);
+            } else if (parameter.startsWith(",")) {
+                outH = (int) parseNumbers(parameter.substring(1), 1)[0];
+                outW = (int) Math.round(w * outH / (double) h);
+            } else {
+                double[] values = parseNumbers(parameter, 2);
+                outW = (int) values[0];
+                outH = (int) values[1];
+            }
+
+            outW = Math.max(1, outW);
+            outH = Math.max(1, outH);
+            if (outW > w || outH > h) {
+                throw new IllegalArgumentException("Up-sampling is not supported: " + parameter);
+            }
+            if ((long) outW * outH > MAX_PIXELS) {
+                throw new IllegalArgumentException("The requested size exceeds " + MAX_PIXELS + " pixels");
+            }
+
+            return new int[]{outW, outH};
+        }
+
+        private double[] parseNumbers(String parameter, int n) {
+            String[] items = parameter.split(",");
+            if (items.length != n) {
+                throw new IllegalArgumentException("Expected " + n + " numbers: " + parameter);
+            }
+
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                try {
+                    values[i] = Double.parseDouble(items[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not a number: " + items[i]);
+                }
+            }
+
+            return values;
+        }
+
+        /**
+         * Map a region of the series to another pyramid level
+         */
+        private int[] scaleRegion(int[] region, int level) {
+            List<NdpiHeader.Directory> directories = header.getLevel(level);
+            long levelWidth = directories.get(0).getWidth();
+            long levelHeight = directories.get(0).getHeight();
+            double scale = pixelSizes[series] / pixelSizes[level];
+
+            int x0 = (int) Math.floor(region[0] * scale);
+            int y0 = (int) Math.floor(region[1] * scale);
+            int x1 = (int) Math.min(levelWidth, Math.ceil((region[0] + region[2]) * scale));
+            int y1 = (int) Math.min(levelHeight, Math.ceil((region[1] + region[3]) * scale));
+
+            return new int[]{x0, y0, Math.max(1, x1 - x0), Math.max(1, y1 - y0)};
+        }
+
+        private BufferedImage toImage(byte[][] bands, int w, int h, String quality) {
+            int n = w * h;
+            quality = quality.toLowerCase(Locale.US);
+            switch (quality) {
+                case "default":
+                case "color":
+                    if (bands.length >= 3) {
+                        int[] pixels = new int[n];
+                        for (int i = 0; i < n; i++) {
+                            pixels[i] = ((bands[0][i] & 0xFF) << 16) | ((bands[1][i] & 0xFF) << 8) | (bands[2][i] & 0xFF);
+                        }
+                        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+                        image.setRGB(0, 0, w, h, pixels, 0, w);
+                        return image;
+                    }
+                    return toGrayImage(bands[0], w, h);
+                case "gray":
+                    if (bands.length >= 3) {
+                        byte[] gray = new byte[n];
+                        for (int i = 0; i < n; i++) {
+                            gray[i] = (byte) Math.round(0.299 * (bands[0][i] & 0xFF) + 0.587 * (bands[1][i] & 0xFF) +
+                                    0.114 * (bands[2][i] & 0xFF));
+                        }
+                        return toGrayImage(gray, w, h);
+                    }
+                    return toGrayImage(bands[0], w, h);
+                case "red":
+                    return toGrayImage(bands[0], w, h);
+                case "green":
+                case "blue":
+                    int band = quality.equals("green") ? 1 : 2;
+                    if (band >= bands.length) {
+                        throw new IllegalArgumentException("The image has no " + quality + " component");
+                    }
+                    return toGrayImage(bands[band], w, h);
+                default:
+                    throw new IllegalArgumentException("Unsupported quality " + quality);
+            }
+        }
+
+        private BufferedImage toGrayImage(byte[] band, int w, int h) {
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+            image.getRaster().setDataElements(0, 0, w, h, band);
+            return image;
+        }
+    }
+}
@@ -1,27 +1,36 @@
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
 import loci.formats.*;
 import loci.formats.meta.IMetadata;
+import loci.formats.meta.MetadataRetrieve;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.services.OMEXMLService;
 import ome.units.UNITS;
 import ome.units.quantity.Length;
 import ome.units.unit.Unit;
-import ome.xml.meta.OMEXMLMetadataRoot;
-import ome.xml.model.Image;
-import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.EnumerationException;
-import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 class NdpiUtils {
 
+    /** Preferred tile edge length of the converted files */
+    static final int TILE_SIZE = 512;
+
+    /** Relative difference below which two pixel sizes are considered equal */
+    private static final double PIXEL_SIZE_TOLERANCE = 1e-3;
+
+    /** Series pixel sizes by file path, modification time and length */
+    private static final ConcurrentHashMap<String, double[]> pixelSizeCache = new ConcurrentHashMap<>();
+
+    /** Compression choices of the converters */
+    static final String[] COMPRESSIONS = {"None", "LZW", NdpiJpegPassthrough.COMPRESSION};
+
     static HashMap<HTplusFluo.Channel, List<File>> getFiles(File directory) {
         HashMap<HTplusFluo.Channel, List<File>> fileLists = new HashMap<>();
 
@@ -57,29 +66,165 @@ class NdpiUtils {
     }
 
     static List<String> getSeriesPixelSizes(File file) throws IOException, FormatException {
+        final Unit<Length> targetUnit = UNITS.MICROMETER;
+        double[] sizes = getSeriesPixelSizeValues(file);
+        double[] magnifications = getSeriesMagnifications(file);
+
+        List<String> pixelSizes = new ArrayList<>(sizes.length);
+        for (int i = 0; i < sizes.length; i++) {
+            String item = String.format("%.3f", sizes[i]) + " " + targetUnit.getSymbol();
+            if (magnifications != null && i < magnifications.length) {
+                double magnification = Math.round(magnifications[i] * 100) / 100.0;
+                item += " (" + ((magnification == Math.rint(magnification)) ?
+                        String.valueOf((long) magnification) : String.valueOf(magnification)) + "x)";
+            }
+            pixelSizes.add(item);
+        }
+
+        return pixelSizes;
+    }
+
+    /**
+     * Get the pixel sizes of the pyramid levels from the file metadata. Levels without a
+     * physical size are derived from their width relative to the first level. The values are
+     * cached until the file changes.
+     *
+     * @param file NDPI file
+     * @return pixel size in micrometer for each series (the macro image excluded)
+     */
+    static double[] getSeriesPixelSizeValues(File file) throws IOException, FormatException {
+        String key = getPixelSizeKey(file);
+        double[] sizes = pixelSizeCache.get(key);
+
+        if (sizes == null) {
+            sizes = readHeaderPixelSizes(file);
+            if (sizes == null) {
+                String id = file.getAbsolutePath();
+                MappedFileHandle.register(id);
+                String streamId = MappedFileHandle.openStream(id);
+                try {
+                    sizes = readSeriesPixelSizes(file, streamId);
+                } finally {
+                    MappedFileHandle.closeStream(streamId);
+                    MappedFileHandle.release(id);
+                }
+            }
+            pixelSizeCache.put(key, sizes);
+        }
+
+        return sizes.clone();
+    }
+
+    /**
+     * Cache the pixel sizes of a file if they can be read from its TIFF tags. Unlike
+     * {@link #getSeriesPixelSizeValues(File)} this never opens the file with Bio-Formats.
+     *
+     * @param file NDPI file
+     */
+    static void prefetchSeriesPixelSizes(File file) {
+        String key = getPixelSizeKey(file);
+        if (!pixelSizeCache.containsKey(key)) {
+            double[] sizes = readHeaderPixelSizes(file);
+            if (sizes != null) {
+                pixelSizeCache.put(key, sizes);
+            }
+        }
+    }
+
+    private static String getPixelSizeKey(File file) {
+        return file.getAbsolutePath() + "#" + file.lastModified() + "#" + file.length();
+    }
+
+    /**
+     * Read the pixel sizes from the TIFF tags, which only touches the directories of the file.
+     *
+     * @return pixel sizes or null if the file is no NDPI file with resolution tags
+     */
+    private static double[] readHeaderPixelSizes(File file) {
+        try {
+            NdpiHeader header = NdpiHeader.read(file);
+            double[] sizes = header.getPixelSizes();
+            if (!header.isNdpi() || sizes.length == 0 || Double.isNaN(sizes[0])) {
+                return null;
+            }
+
+            return sizes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the magnification of each series from the source lens tags of the file header
+     *
+     * @param file NDPI file
+     * @return magnification of each series or null if the file header does not record it
+     */
+    static double[] getSeriesMagnifications(File file) {
+        try {
+            double[] magnifications = NdpiHeader.read(file).getMagnifications();
+            return (magnifications.length == 0) ? null : magnifications;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Estimate the number of output pixels of a conversion run from the file headers
+     *
+     * @param files input files
+     * @param series series index
+     * @param pixelSize target pixel size in micrometer or 0 for the series resolution
+     * @return number of pixels of all focal planes or -1 if a header cannot be read
+     */
+    static long estimatePixelCount(Collection<File> files, int series, double pixelSize) {
+        long pixels = 0;
+        for (File file : files) {
+            try {
+                NdpiHeader header = NdpiHeader.read(file);
+                List<NdpiHeader.Directory> level = header.getLevel(series);
+                if (level.isEmpty()) {
+                    return -1;
+                }
+
+                double scale = 1;
+                if (pixelSize > 0) {
+                    scale = getSeriesPixelSizeValues(file)[series] / pixelSize;
+                }
+                NdpiHeader.Directory directory = level.get(0);
+                pixels += (long) Math.ceil(directory.getWidth() * scale) * (long) Math.ceil(directory.getHeight() * scale)
+                        * level.size();
+            } catch (IOException | FormatException e) {
+                return -1;
+            }
+        }
+
+        return pixels;
+    }
+
+    private static double[] readSeriesPixelSizes(File file, String streamId) throws IOException, FormatException {
         final ImageReader reader = new ImageReader();
         final IMetadata meta = MetadataTools.createOMEXMLMetadata();
         reader.setMetadataStore(meta);
-        reader.setId(file.getAbsolutePath());
-
-        // Initialize a file reader wrapped in a channel separator
-        ChannelSeparator channelSeparator = new ChannelSeparator();
-        channelSeparator.setMetadataStore(meta);
-        channelSeparator.setId(file.getAbsolutePath());
+        reader.setId(streamId);
 
         // Compute pixel sizes
         final Unit<Length> targetUnit = UNITS.MICROMETER;
-        int imgInd = 0;
-        final Length sx = meta.getPixelsPhysicalSizeX(imgInd);
-        final Length sxc = new Length(sx.value(targetUnit), targetUnit);
-        int seriesCount = channelSeparator.getSeriesCount();
-
-        List<String> pixelSizes = new ArrayList<>(seriesCount - 1);
-
-        for (int i = 0; i < (seriesCount - 1); i++) {
-            double factor = Math.pow(4, i);
-            Double scale = sxc.value().doubleValue() * factor;
-            pixelSizes.add(String.format("%.3f", scale) + " " + targetUnit.getSymbol());
+        int seriesCount = reader.getSeriesCount();
+        double[] pixelSizes = new double[Math.max(0, seriesCount - 1)];
+        int firstWidth = reader.getSizeX();
+
+        for (int i = 0; i < pixelSizes.length; i++) {
+            reader.setSeries(i);
+            final Length sx = meta.getPixelsPhysicalSizeX(i);
+            if (sx != null) {
+                pixelSizes[i] = sx.value(targetUnit).doubleValue();
+            } else if (i > 0) {
+                pixelSizes[i] = pixelSizes[0] * firstWidth / reader.getSizeX();
+            } else {
+                reader.close();
+                throw new FormatException("No physical pixel size in " + file.getName());
+            }
         }
 
         reader.close();
@@ -87,90 +232,628 @@ class NdpiUtils {
         return pixelSizes;
     }
 
-    static void convert(HashMap<HTplusFluo.Channel, String> inIds, int inSeries, String outId, String compression)
+    /**
+     * Find the coarsest pyramid level that is still at least as fine as a target pixel size.
+     *
+     * @param pixelSizes pixel sizes of the series
+     * @param pixelSize target pixel size
+     * @return series index or -1 if the target is finer than the full resolution
+     */
+    static int getSeriesForPixelSize(double[] pixelSizes, double pixelSize) {
+        int series = -1;
+        for (int i = 0; i < pixelSizes.length; i++) {
+            if (pixelSizes[i] <= pixelSize * (1 + PIXEL_SIZE_TOLERANCE) &&
+                    (series == -1 || pixelSizes[i] > pixelSizes[series])) {
+                series = i;
+            }
+        }
+
+        return series;
+    }
+
+    /**
+     * Create the resampler from the pixel size of a series to a target pixel size
+     *
+     * @param meta metadata of the input file
+     * @param series series index
+     * @param pixelSize target pixel size in micrometer, 0 for none
+     * @return resampler, or null if no resampling is necessary
+     * @throws FormatException if the target is finer than the series
+     */
+    static AreaResampler createResampler(MetadataRetrieve meta, int series, double pixelSize) throws FormatException {
+        if (pixelSize <= 0) {
+            return null;
+        }
+
+        Length sx = meta.getPixelsPhysicalSizeX(series);
+        if (sx == null) {
+            throw new FormatException("The series " + series + " has no physical pixel size");
+        }
+
+        double scale = pixelSize / sx.value(UNITS.MICROMETER).doubleValue();
+        if (Math.abs(scale - 1) <= PIXEL_SIZE_TOLERANCE) {
+            return null;
+        }
+        if (scale < 1) {
+            throw new FormatException(String.format("The target pixel size %.3f is finer than the series (%.3f)",
+                    pixelSize, pixelSize / scale));
+        }
+
+        return new AreaResampler(scale);
+    }
+
+    /**
+     * Adjust dimensions and physical sizes of the output metadata to the resampling. The output
+     * metadata has to hold the physical sizes of the source, the resampler is derived from X, the
+     * Y pixel size is the one of the source scaled by the same factor.
+     */
+    static void setResampledSize(OMEXMLMetadata outMeta, AreaResampler resampler, int sizeX, int sizeY,
+                                         double pixelSize) {
+        Length sy = outMeta.getPixelsPhysicalSizeY(0);
+        outMeta.setPixelsSizeX(new PositiveInteger(resampler.getOutputSize(sizeX)), 0);
+        outMeta.setPixelsSizeY(new PositiveInteger(resampler.getOutputSize(sizeY)), 0);
+        outMeta.setPixelsPhysicalSizeX(new Length(pixelSize, UNITS.MICROMETER), 0);
+        if (sy != null) {
+            outMeta.setPixelsPhysicalSizeY(new Length(sy.value(UNITS.MICROMETER).doubleValue() * resampler.getScale(),
+                    UNITS.MICROMETER), 0);
+        }
+    }
+
+    /**
+     * Convert a series of one or several channel files to a single OME-TIFF. Registration offsets,
+     * channel statistics and the focus map are written to sidecar files next to the output.
+     *
+     * @param inIds input file path for each channel
+     * @param inSeries series index
+     * @param outId output file path
+     * @param options compression, target pixel size and processing of the conversion
+     */
+    static void convert(HashMap<HTplusFluo.Channel, String> inIds, int inSeries, String outId,
+                        ConversionOptions options)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        String compression = options.getCompression();
+        double pixelSize = options.getPixelSize();
+        ShadingCorrection.Settings shading = options.getShading();
+        StainSeparation stains = options.getStains();
+        HTplusFluo.Channel focus = options.getFocus();
+        BackgroundSubtraction background = options.getBackground();
+        SpectralUnmixing unmixing = options.getUnmixing();
+        boolean register = options.isRegistering();
+
+        int sizeC = inIds.keySet().size();
+        String firstId = inIds.values().iterator().next();
+        HTplusFluo.Channel inType = inIds.keySet().iterator().next();
+
+        if (focus != null && !inIds.containsKey(focus)) {
+            throw new FormatException("The focus channel " + focus.getName() + " is not converted");
+        }
+
+        if (compression.equals(NdpiJpegPassthrough.COMPRESSION)) {
+            if (sizeC != 1 || !inType.equals(HTplusFluo.Channel.RGB)) {
+                throw new FormatException("JPEG passthrough is only available for bright-field (RGB) files");
+            }
+            if (pixelSize > 0) {
+                throw new FormatException("JPEG passthrough cannot resample to a target pixel size");
+            }
+            if (shading != null) {
+                throw new FormatException("JPEG passthrough cannot apply a shading correction");
+            }
+            if (stains != null) {
+                throw new FormatException("JPEG passthrough cannot separate stains");
+            }
+            if (background != null) {
+                throw new FormatException("JPEG passthrough cannot subtract the background");
+            }
+            if (unmixing != null) {
+                throw new FormatException("JPEG passthrough cannot unmix channels");
+            }
+            if (register) {
+                throw new FormatException("JPEG passthrough cannot register channels");
+            }
+            if (focus != null) {
+                throw new FormatException("JPEG passthrough does not decode the tiles and cannot rate the focus");
+            }
+            convertPassthrough(firstId, inSeries, outId);
+            return;
+        }
+
+        // Serve the input files from memory mappings
+        for (String id : inIds.values()) {
+            MappedFileHandle.register(id);
+        }
+
+        try {
+            if (background != null && inIds.containsKey(HTplusFluo.Channel.RGB)) {
+                throw new FormatException("Background subtraction is only available for fluorescence channels");
+            }
+            if (unmixing != null && (inIds.containsKey(HTplusFluo.Channel.RGB) || unmixing.getChannelCount() != sizeC)) {
+                throw new FormatException("The mixing matrix needs one row and column per fluorescence channel, " +
+                        "there are " + sizeC + " channels");
+            }
+            if (register && inIds.containsKey(HTplusFluo.Channel.RGB)) {
+                throw new FormatException("Channel registration is only available for fluorescence channels");
+            }
+            if (stains != null) {
+                if (sizeC != 1 || !inType.equals(HTplusFluo.Channel.RGB)) {
+                    throw new FormatException("Stain separation is only available for bright-field (RGB) files");
+                }
+                convertStains(firstId, inSeries, outId, compression, pixelSize, shading, stains, focus != null);
+            } else {
+                convertPlanes(inIds, inSeries, outId, options);
+            }
+        } finally {
+            for (String id : inIds.values()) {
+                MappedFileHandle.release(id);
+            }
+        }
+    }
+
+    private static void convertPlanes(HashMap<HTplusFluo.Channel, String> inIds, int inSeries, String outId,
+                                      ConversionOptions options)
             throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        String compression = options.getCompression();
+        double pixelSize = options.getPixelSize();
+        ShadingCorrection.Settings shading = options.getShading();
+        HTplusFluo.Channel focus = options.getFocus();
 
         int sizeC = inIds.keySet().size();
         String firstId = inIds.values().iterator().next();
         HTplusFluo.Channel inType = inIds.keySet().iterator().next();
 
         // Record metadata to OME-XML format
-        ServiceFactory factory = new ServiceFactory();
-        OMEXMLService service = factory.getInstance(OMEXMLService.class);
-        OMEXMLMetadata inMeta = service.createOMEXMLMetadata();
+        OMEXMLMetadata inMeta = OmeMetadataBuilder.createStore();
+
+        // Open one reader per channel file, the first one records the metadata
+        List<HTplusFluo.Channel> channels = new ArrayList<>(inIds.keySet());
+        List<String> ids = new ArrayList<>();
+        for (HTplusFluo.Channel channel : channels) {
+            ids.add(inIds.get(channel));
+        }
 
-        // Initialize a file reader wrapped in a channel separator
-        ChannelSeparator channelSeparator = new ChannelSeparator();
-        channelSeparator.setMetadataStore(inMeta);
-        channelSeparator.setId(firstId);
-        channelSeparator.setSeries(inSeries);
+        try (ChannelMerger merger = new ChannelMerger(ids, inSeries, inMeta)) {
+            ChannelSeparator channelSeparator = merger.getReader(0).getReader();
 
-        // Deduce the output image dimensions
-        int numCol = 3;//(channelSeparator.isRGB()) ? 3 : 1;
-        int inPlanes = channelSeparator.getImageCount();
-        int planeIncrement = (channelSeparator.isRGB()) ? 1 : 3;
-        int pixelSizeC = (channelSeparator.isRGB()) ? 3 : sizeC;
-        int pixelSizeZ = inPlanes / numCol;
+            // Deduce the output image dimensions
+            int numCol = 3;//(channelSeparator.isRGB()) ? 3 : 1;
+            int inPlanes = channelSeparator.getImageCount();
+            int pixelSizeC = (channelSeparator.isRGB()) ? 3 : sizeC;
+            int pixelSizeZ = inPlanes / numCol;
+
+            // Overwrite dimensions if input is Brightfield type
+            if (inType.equals(HTplusFluo.Channel.RGB)) {
+                pixelSizeC = 3;
+            }
 
-        // Overwrite dimensions if input is Brightfield type
-        if (inType.equals(HTplusFluo.Channel.RGB)) {
-            pixelSizeC = 3;
-            planeIncrement = 1;
+            // Build the metadata of the series we process
+            String[] channelNames = new String[pixelSizeC];
+            for (int c = 0; c < channelNames.length && c < channels.size(); c++) {
+                if (!channels.get(c).equals(HTplusFluo.Channel.RGB)) {
+                    channelNames[c] = channels.get(c).getName();
+                }
+            }
+            OMEXMLMetadata outMeta = OmeMetadataBuilder.PLANAR.build(inMeta, inSeries,
+                    new File(firstId).getName().replace(".ome.tif", ""), pixelSizeZ, channelNames);
+
+            // Resample to the target pixel size
+            AreaResampler resampler = createResampler(inMeta, inSeries, pixelSize);
+            if (resampler != null) {
+                setResampledSize(outMeta, resampler, channelSeparator.getSizeX(), channelSeparator.getSizeY(),
+                        pixelSize);
+            }
+
+            // Input planes of each channel, in output order
+            List<int[]> planes = getChannelPlanes(channels, channelSeparator);
+
+            // Shading correction of each channel
+            List<ShadingCorrection> corrections = new ArrayList<>();
+            for (int c = 0; c < channels.size(); c++) {
+                corrections.add((shading == null) ? null :
+                        shading.get(channels.get(c), merger.getReader(c), planes.get(c)[0]));
+            }
+
+            // Offsets of the channels, estimated on a low resolution level
+            ChannelRegistration registration = null;
+            if (options.isRegistering() && channels.size() > 1) {
+                registration = ChannelRegistration.estimate(ids, channels, inSeries, planes,
+                        outMeta.getPixelsSizeX(0).getValue(), outMeta.getPixelsSizeY(0).getValue());
+                registration.writeJson(new File(getSidecarPath(outId, ".registration.json")));
+            }
+
+            // Tiles of all planes of all channels are held at once
+            int planeCount = 0;
+            for (int[] channelPlanes : planes) {
+                planeCount += channelPlanes.length;
+            }
+            int[] tileSize = TileGeometry.choose(merger.getReader(0), resampler, planeCount);
+
+            ChannelStatistics statistics = new ChannelStatistics(channelNames,
+                    ChannelStatistics.getMergedPlaneChannels(channels, planes));
+            int focusPlane = (focus == null) ? -1 : FocusMap.getPlane(channels, planes, focus);
+            FocusMap focusMap = (focusPlane < 0) ? null : new FocusMap(focusPlane,
+                    outMeta.getPixelsSizeX(0).getValue(), outMeta.getPixelsSizeY(0).getValue(), tileSize[0], tileSize[1]);
+
+            // Read the channels concurrently and write them tile by tile
+            ImageWriter writer = createWriter(outMeta, outId, compression, tileSize);
+            try {
+                merger.write(writer, planes, resampler, corrections, options.getBackground(), options.getUnmixing(),
+                        (registration == null) ? null : registration.getOffsets(), statistics, focusMap);
+                statistics.store(outMeta);
+            } finally {
+                writer.close();
+            }
+            statistics.writeJson(new File(getSidecarPath(outId, ".stats.json")));
+            if (focusMap != null) {
+                focusMap.save(outId);
+            }
+        }
+    }
+
+    /**
+     * Get the input planes of the channels of a slide
+     *
+     * @param channels channels, in output order
+     * @param reader reader of the first channel file
+     * @return input plane indices (channel separated) of each channel
+     */
+    static List<int[]> getChannelPlanes(List<HTplusFluo.Channel> channels, ChannelSeparator reader) {
+        int inPlanes = reader.getImageCount();
+        int planeIncrement = (reader.isRGB() || channels.get(0).equals(HTplusFluo.Channel.RGB)) ? 1 : 3;
+
+        List<int[]> planes = new ArrayList<>();
+        for (HTplusFluo.Channel channel : channels) {
+            List<Integer> channelPlanes = new ArrayList<>();
+            for (int inPlaneInd = channel.getColorIndex(); inPlaneInd < inPlanes; inPlaneInd += planeIncrement) {
+                channelPlanes.add(inPlaneInd);
+            }
+            int[] indices = new int[channelPlanes.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = channelPlanes.get(i);
+            }
+            planes.add(indices);
+        }
+
+        return planes;
+    }
+
+    /**
+     * Convert a bright-field series to one channel per stain. The color components of each tile
+     * are read together, separated and written to the stain planes, so the RGB planes are never
+     * materialized.
+     *
+     * @param inId input file path
+     * @param inSeries series index
+     * @param outId output file path
+     * @param compression compression name
+     * @param pixelSize target pixel size in micrometer, 0 to keep the resolution of the series
+     * @param shading source of the shading correction or null
+     * @param stains stain separation
+     * @param focus whether to rate the focus of the first stain
+     */
+    static void convertStains(String inId, int inSeries, String outId, String compression, double pixelSize,
+                              ShadingCorrection.Settings shading, StainSeparation stains, boolean focus)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+
+        OMEXMLMetadata inMeta = OmeMetadataBuilder.createStore();
+        try (NdpiRegionReader reader = new NdpiRegionReader(inId, inSeries, inMeta)) {
+            int rgb = reader.getReader().getRGBChannelCount();
+            if (rgb != 3) {
+                throw new FormatException("Stain separation needs RGB planes, " + inId + " has " + rgb + " components");
+            }
+            int sizeZ = reader.getImageCount() / rgb;
+            int sizeS = stains.getStainCount();
+
+            OMEXMLMetadata outMeta = OmeMetadataBuilder.PLANAR.build(inMeta, inSeries,
+                    new File(inId).getName().replace(".ome.tif", ""), sizeZ, stains.getStainNames());
+
+            AreaResampler resampler = createResampler(inMeta, inSeries, pixelSize);
+            if (resampler != null) {
+                setResampledSize(outMeta, resampler, reader.getSizeX(), reader.getSizeY(), pixelSize);
+            }
+
+            // One correction for all color components, as for the conversion of the color planes
+            ShadingCorrection correction = (shading == null) ? null :
+                    shading.get(HTplusFluo.Channel.RGB, reader, 0);
+
+            ChannelStatistics statistics = new ChannelStatistics(stains.getStainNames(),
+                    ChannelStatistics.getPlaneChannels(sizeS, sizeZ));
+            int[] tileSize = TileGeometry.choose(reader, resampler, rgb + sizeS);
+            int tileWidth = tileSize[0];
+            int tileHeight = tileSize[1];
+            int outSizeX = (resampler == null) ? reader.getSizeX() : resampler.getOutputSize(reader.getSizeX());
+            int outSizeY = (resampler == null) ? reader.getSizeY() : resampler.getOutputSize(reader.getSizeY());
+            FocusMap focusMap = focus ? new FocusMap(0, outSizeX, outSizeY, tileWidth, tileHeight) : null;
+
+            ImageWriter writer = createWriter(outMeta, outId, compression, tileSize);
+            try {
+
+                // Buffers are reused for all tiles of the same size
+                byte[][] colors = new byte[rgb][0];
+                byte[][] stainTiles = new byte[sizeS][0];
+                for (int y = 0; y < outSizeY; y += tileHeight) {
+                    int h = Math.min(tileHeight, outSizeY - y);
+                    for (int x = 0; x < outSizeX; x += tileWidth) {
+                        int w = Math.min(tileWidth, outSizeX - x);
+                        if (stainTiles[0].length != w * h) {
+                            for (int s = 0; s < sizeS; s++) {
+                                stainTiles[s] = new byte[w * h];
+                            }
+                        }
+
+                        for (int z = 0; z < sizeZ; z++) {
+                            readTiles(reader, z, x, y, w, h, resampler, correction, colors);
+                            stains.separate(colors[0], colors[1], colors[2], stainTiles, w * h);
+                            for (int s = 0; s < sizeS; s++) {
+                                statistics.add(s * sizeZ + z, stainTiles[s], w * h);
+                                if (focusMap != null) {
+                                    focusMap.add(s * sizeZ + z, stainTiles[s], x, y, w, h);
+                                }
+                                writer.saveBytes(s * sizeZ + z, stainTiles[s], x, y, w, h);
+                            }
+                        }
+                    }
+                }
+                statistics.store(outMeta);
+            } finally {
+                writer.close();
+            }
+            statistics.writeJson(new File(getSidecarPath(outId, ".stats.json")));
+            if (focusMap != null) {
+                focusMap.save(outId);
+            }
         }
+    }
 
-        // Clone the metadata and remove all the series in the metadata except the one we process
-        OMEXMLMetadata outMeta = service.createOMEXMLMetadata(inMeta.dumpXML());
-        OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) outMeta.getRoot();
-        List<Image> images = root.copyImageList();
-        for (int i = 0; i < images.size(); i++) {
-            if (i != inSeries) {
-                root.removeImage(images.get(i));
+    /**
+     * Read an output tile of all color components of a z-plane
+     *
+     * @param reader input region reader
+     * @param z z-plane index
+     * @param x tile origin x in output coordinates
+     * @param y tile origin y in output coordinates
+     * @param w tile width
+     * @param h tile height
+     * @param resampler resampler or null to read the region as is
+     * @param correction shading correction of all components or null
+     * @param bufs tile buffer of each component, replaced if smaller than w * h
+     * @return the tile buffers
+     */
+    static byte[][] readTiles(NdpiRegionReader reader, int z, int x, int y, int w, int h, AreaResampler resampler,
+                              ShadingCorrection correction, byte[][] bufs) throws FormatException, IOException {
+        for (int c = 0; c < bufs.length; c++) {
+            if (bufs[c].length < w * h) {
+                bufs[c] = new byte[w * h];
             }
         }
-        outMeta.setRoot(root);
 
-        // Adjust the metadata attributes affected during this process.
-        outMeta.setImageName(new File(firstId).getName().replace(".ome.tif", ""), 0);
+        if (resampler == null) {
+            reader.openRegions(z, bufs, x, y, w, h);
+            for (int c = 0; correction != null && c < bufs.length; c++) {
+                correction.apply(bufs[c], x, y, w, h);
+            }
+            return bufs;
+        }
 
-        int chIdx = 0;
-        for (HTplusFluo.Channel channel: inIds.keySet()) {
-            outMeta.setChannelID(channel.getName(), 0, chIdx);
-            outMeta.setChannelSamplesPerPixel(new PositiveInteger(1), 0, chIdx++);
+        int sizeX = reader.getSizeX();
+        int sizeY = reader.getSizeY();
+        int sx = resampler.getSourceStart(x);
+        int sy = resampler.getSourceStart(y);
+        int sw = resampler.getSourceEnd(x + w, sizeX) - sx;
+        int sh = resampler.getSourceEnd(y + h, sizeY) - sy;
+
+        byte[][] src = new byte[bufs.length][sw * sh];
+        reader.openRegions(z, src, sx, sy, sw, sh);
+        for (int c = 0; c < bufs.length; c++) {
+            if (correction != null) {
+                correction.apply(src[c], sx, sy, sw, sh);
+            }
+            resampler.resample(src[c], sx, sy, sw, sh, bufs[c], x, y, w, h, sizeX, sizeY);
         }
 
-        outMeta.setPixelsSizeC(new PositiveInteger(pixelSizeC), 0);
-        outMeta.setPixelsSizeZ(new PositiveInteger(pixelSizeZ), 0);
-        outMeta.setPixelsSizeT(new PositiveInteger(1), 0);
-        outMeta.setPixelsBinDataBigEndian(Boolean.FALSE, 0, 0);
-        outMeta.setPixelsDimensionOrder(DimensionOrder.fromString("XYZCT"), 0);
-        outMeta.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(FormatTools.UINT8)), 0);
+        return bufs;
+    }
 
-        // Setup the writer
+    /**
+     * Path of a file that accompanies an output file
+     *
+     * @param outId output file path
+     * @param suffix suffix that replaces the .ome.tif extension
+     * @return sidecar file path
+     */
+    static String getSidecarPath(String outId, String suffix) {
+        String base = outId.endsWith(".ome.tif") ? outId.substring(0, outId.length() - ".ome.tif".length()) : outId;
+        return base + suffix;
+    }
+
+    /**
+     * Create a tiled writer
+     *
+     * @param meta output metadata
+     * @param outId output file path
+     * @param compression compression name or "None"
+     * @return writer ready for tile-wise writing
+     */
+    static ImageWriter createWriter(MetadataRetrieve meta, String outId, String compression)
+            throws FormatException, IOException {
+        return createWriter(meta, outId, compression, new int[]{TILE_SIZE, TILE_SIZE});
+    }
+
+    /**
+     * Create a tiled writer with a given tile size
+     *
+     * @param tileSize tile width and height, see {@link TileGeometry}
+     * @see #createWriter(MetadataRetrieve, String, String)
+     */
+    static ImageWriter createWriter(MetadataRetrieve meta, String outId, String compression, int[] tileSize)
+            throws FormatException, IOException {
         ImageWriter writer = new ImageWriter();
 
         if (!compression.equals("None")) {
             writer.setCompression(compression);
         }
 
-        writer.setMetadataRetrieve(outMeta);
+        writer.setMetadataRetrieve(meta);
+        IFormatWriter formatWriter = writer.getWriter(outId);
+        formatWriter.setTileSizeX(tileSize[0]);
+        formatWriter.setTileSizeY(tileSize[1]);
         writer.setId(outId);
 
-        // Copy the planes
-        int outPlaneInd = 0;
-        byte[] img = new byte[channelSeparator.getSizeX() * channelSeparator.getSizeY()];
-        for (HTplusFluo.Channel channel: inIds.keySet()) {
-            channelSeparator.setId(inIds.get(channel));
-            channelSeparator.setSeries(inSeries);
+        return writer;
+    }
 
-            for (int inPlaneInd = channel.getColorIndex(); inPlaneInd < inPlanes; inPlaneInd += planeIncrement) {
-//            logger.info("        writing plane: " + outPlaneInd);
-                channelSeparator.openBytes(inPlaneInd, img);
-                writer.saveBytes(outPlaneInd++, img);
+    /**
+     * Copy a plane tile by tile, so that only one tile is held in memory.
+     *
+     * @param reader input region reader
+     * @param inPlane input plane index (channel separated)
+     * @param writer output writer
+     * @param outPlane output plane index
+     */
+    static void copyPlane(NdpiRegionReader reader, int inPlane, ImageWriter writer, int outPlane)
+            throws FormatException, IOException {
+        copyPlane(reader, inPlane, writer, outPlane, null);
+    }
+
+    /**
+     * Copy a plane tile by tile, optionally resampled. The source region of each output tile is
+     * read separately, so the full-resolution plane never has to be materialized.
+     *
+     * @param reader input region reader
+     * @param inPlane input plane index (channel separated)
+     * @param writer output writer
+     * @param outPlane output plane index
+     * @param resampler resampler or null to copy the plane as is
+     */
+    static void copyPlane(NdpiRegionReader reader, int inPlane, ImageWriter writer, int outPlane,
+                          AreaResampler resampler) throws FormatException, IOException {
+        copyPlane(reader, inPlane, writer, outPlane, resampler, null, null);
+    }
+
+    /**
+     * Copy a plane tile by tile, accumulate the statistics and rate the focus of the written tiles
+     *
+     * @param statistics statistics of the output channels or null
+     * @param focusMap focus map or null
+     * @see #copyPlane(NdpiRegionReader, int, ImageWriter, int, AreaResampler)
+     */
+    static void copyPlane(NdpiRegionReader reader, int inPlane, ImageWriter writer, int outPlane,
+                          AreaResampler resampler, ChannelStatistics statistics, FocusMap focusMap)
+            throws FormatException, IOException {
+        int tileWidth = writer.getTileSizeX();
+        int tileHeight = writer.getTileSizeY();
+        int outSizeX = (resampler == null) ? reader.getSizeX() : resampler.getOutputSize(reader.getSizeX());
+        int outSizeY = (resampler == null) ? reader.getSizeY() : resampler.getOutputSize(reader.getSizeY());
+
+        for (int y = 0; y < outSizeY; y += tileHeight) {
+            int h = Math.min(tileHeight, outSizeY - y);
+            for (int x = 0; x < outSizeX; x += tileWidth) {
+                int w = Math.min(tileWidth, outSizeX - x);
+                byte[] tile = readTile(reader, inPlane, x, y, w, h, resampler);
+                if (statistics != null) {
+                    statistics.add(outPlane, tile, w * h);
+                }
+                if (focusMap != null) {
+                    focusMap.add(outPlane, tile, x, y, w, h);
+                }
+                writer.saveBytes(outPlane, tile, x, y, w, h);
             }
         }
+    }
+
+    /**
+     * Read an output tile of a plane
+     *
+     * @param reader input region reader
+     * @param inPlane input plane index (channel separated)
+     * @param x tile origin x in output coordinates
+     * @param y tile origin y in output coordinates
+     * @param w tile width
+     * @param h tile height
+     * @param resampler resampler or null to read the region as is
+     * @return tile of w * h bytes
+     */
+    static byte[] readTile(NdpiRegionReader reader, int inPlane, int x, int y, int w, int h,
+                           AreaResampler resampler) throws FormatException, IOException {
+        return readTile(reader, inPlane, x, y, w, h, resampler, null);
+    }
+
+    /**
+     * Read an output tile of a plane with shading correction. The correction is applied to the
+     * source region, before resampling.
+     *
+     * @param correction shading correction or null
+     * @see #readTile(NdpiRegionReader, int, int, int, int, int, AreaResampler)
+     */
+    static byte[] readTile(NdpiRegionReader reader, int inPlane, int x, int y, int w, int h,
+                           AreaResampler resampler, ShadingCorrection correction)
+            throws FormatException, IOException {
+        if (resampler == null) {
+            byte[] buf = reader.openRegion(inPlane, new byte[w * h], x, y, w, h);
+            if (correction != null) {
+                correction.apply(buf, x, y, w, h);
+            }
+            return buf;
+        }
+
+        int sizeX = reader.getSizeX();
+        int sizeY = reader.getSizeY();
+        int sx = resampler.getSourceStart(x);
+        int sy = resampler.getSourceStart(y);
+        int sw = resampler.getSourceEnd(x + w, sizeX) - sx;
+        int sh = resampler.getSourceEnd(y + h, sizeY) - sy;
+
+        byte[] src = reader.openRegion(inPlane, new byte[sw * sh], sx, sy, sw, sh);
+        if (correction != null) {
+            correction.apply(src, sx, sy, sw, sh);
+        }
+        byte[] buf = new byte[w * h];
+        resampler.resample(src, sx, sy, sw, sh, buf, x, y, w, h, sizeX, sizeY);
+
+        return buf;
+    }
+
+    /**
+     * Copy the JPEG data of a bright-field NDPI series to a JPEG compressed OME-TIFF without
+     * decoding it. See {@link NdpiJpegPassthrough}.
+     *
+     * @param inId input file path
+     * @param inSeries series index
+     * @param outId output file path
+     * @throws FormatException if the series is not eligible for the passthrough
+     */
+    static void convertPassthrough(String inId, int inSeries, String outId)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+
+        NdpiJpegPassthrough passthrough = NdpiJpegPassthrough.open(new File(inId), inSeries);
+
+        // Record metadata to OME-XML format
+        OMEXMLMetadata inMeta = OmeMetadataBuilder.createStore();
+
+        ImageReader reader = new ImageReader();
+        reader.setMetadataStore(inMeta);
+        reader.setId(inId);
+        reader.setSeries(inSeries);
+        boolean consistent = reader.getSizeX() == passthrough.getWidth() &&
+                reader.getSizeY() == passthrough.getHeight() &&
+                reader.getRGBChannelCount() == passthrough.getSamplesPerPixel();
+        reader.close();
+
+        if (!consistent) {
+            throw new FormatException("The NDPI directories do not match series " + inSeries + " of " + inId);
+        }
+
+        OMEXMLMetadata outMeta = OmeMetadataBuilder.INTERLEAVED.build(inMeta, inSeries,
+                new File(inId).getName().replace("." + HTplusFluo.FILE_EXTENSION, ""),
+                passthrough.getPlaneCount(), new String[passthrough.getSamplesPerPixel()]);
+
+        // One directory per focal plane
+        for (int z = 0; z < passthrough.getPlaneCount(); z++) {
+            outMeta.setTiffDataIFD(new NonNegativeInteger(z), 0, z);
+            outMeta.setTiffDataFirstZ(new NonNegativeInteger(z), 0, z);
+            outMeta.setTiffDataFirstC(new NonNegativeInteger(0), 0, z);
+            outMeta.setTiffDataFirstT(new NonNegativeInteger(0), 0, z);
+            outMeta.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, z);
+        }
 
-        // Cleanup
-        channelSeparator.close();
-        writer.close();
+        passthrough.write(outId, OmeMetadataBuilder.getService().getOMEXML(outMeta));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,150 @@
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.MetadataRetrieve;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.units.quantity.Length;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.EnumerationException;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+
+
+/**
+ * Build the single-image OME-XML metadata of a converted file.
+ *
+ * The attributes that are the same for every file of a batch (dimension order, pixel type, byte
+ * order) form the template of a builder. Only the per-file fields are copied from the input
+ * metadata of the converted series, instead of cloning all the series of the input through an
+ * XML round trip. The OME-XML service is created once and shared.
+ */
+class OmeMetadataBuilder {
+
+    /** Channels stored as separate planes, one plane per channel and focal plane */
+    static final OmeMetadataBuilder PLANAR = new OmeMetadataBuilder("XYZCT", false);
+
+    /** Interleaved RGB planes, one plane per focal plane */
+    static final OmeMetadataBuilder INTERLEAVED = new OmeMetadataBuilder("XYCZT", true);
+
+    private static OMEXMLService service;
+
+    private final String dimensionOrder;
+    private final boolean interleaved;
+
+
+    private OmeMetadataBuilder(String dimensionOrder, boolean interleaved) {
+        this.dimensionOrder = dimensionOrder;
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * @return the shared OME-XML service
+     * @throws DependencyException if the service is not available
+     */
+    static synchronized OMEXMLService getService() throws DependencyException {
+        if (service == null) {
+            service = new ServiceFactory().getInstance(OMEXMLService.class);
+        }
+
+        return service;
+    }
+
+    /**
+     * @return empty metadata store to record the input metadata into
+     */
+    static OMEXMLMetadata createStore() throws DependencyException, ServiceException {
+        return getService().createOMEXMLMetadata();
+    }
+
+    /**
+     * Build the metadata of one output image
+     *
+     * @param inMeta metadata of the input file
+     * @param series input series
+     * @param name image name
+     * @param sizeZ number of focal planes
+     * @param channels channel names, one per output channel (null entries are left unnamed)
+     * @return metadata with a single image
+     */
+    OMEXMLMetadata build(MetadataRetrieve inMeta, int series, String name, int sizeZ, String[] channels)
+            throws DependencyException, ServiceException, EnumerationException {
+        OMEXMLMetadata meta = createStore();
+        int samplesPerPixel = interleaved ? channels.length : 1;
+
+        meta.setImageID(MetadataTools.createLSID("Image", 0), 0);
+        meta.setImageName(name, 0);
+        if (inMeta.getImageAcquisitionDate(series) != null) {
+            meta.setImageAcquisitionDate(inMeta.getImageAcquisitionDate(series), 0);
+        }
+        if (inMeta.getImageDescription(series) != null) {
+            meta.setImageDescription(inMeta.getImageDescription(series), 0);
+        }
+
+        // Template
+        meta.setPixelsID(MetadataTools.createLSID("Pixels", 0), 0);
+        meta.setPixelsDimensionOrder(DimensionOrder.fromString(dimensionOrder), 0);
+        meta.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(FormatTools.UINT8)), 0);
+        meta.setPixelsInterleaved(interleaved, 0);
+        meta.setPixelsBinDataBigEndian(Boolean.FALSE, 0, 0);
+        meta.setPixelsSizeT(new PositiveInteger(1), 0);
+
+        // Per file
+        meta.setPixelsSizeX(inMeta.getPixelsSizeX(series), 0);
+        meta.setPixelsSizeY(inMeta.getPixelsSizeY(series), 0);
+        meta.setPixelsSizeZ(new PositiveInteger(sizeZ), 0);
+        meta.setPixelsSizeC(new PositiveInteger(channels.length), 0);
+        setPhysicalSizes(meta, inMeta, series);
+        copyObjective(meta, inMeta, series);
+
+        int channelCount = interleaved ? 1 : channels.length;
+        for (int c = 0; c < channelCount; c++) {
+            meta.setChannelID(MetadataTools.createLSID("Channel", 0, c), 0, c);
+            meta.setChannelSamplesPerPixel(new PositiveInteger(samplesPerPixel), 0, c);
+            if (!interleaved && channels[c] != null) {
+                meta.setChannelName(channels[c], 0, c);
+            }
+        }
+
+        return meta;
+    }
+
+    private static void setPhysicalSizes(OMEXMLMetadata meta, MetadataRetrieve inMeta, int series) {
+        Length sizeX = inMeta.getPixelsPhysicalSizeX(series);
+        Length sizeY = inMeta.getPixelsPhysicalSizeY(series);
+        Length sizeZ = inMeta.getPixelsPhysicalSizeZ(series);
+
+        if (sizeX != null) {
+            meta.setPixelsPhysicalSizeX(sizeX, 0);
+        }
+        if (sizeY != null) {
+            meta.setPixelsPhysicalSizeY(sizeY, 0);
+        }
+        if (sizeZ != null) {
+            meta.setPixelsPhysicalSizeZ(sizeZ, 0);
+        }
+    }
+
+    /**
+     * Keep the objective of the series, it is how the NDPI reader records the magnification
+     */
+    private static void copyObjective(OMEXMLMetadata meta, MetadataRetrieve inMeta, int series) {
+        String instrument = inMeta.getImageInstrumentRef(series);
+        for (int i = 0; instrument != null && i < inMeta.getInstrumentCount(); i++) {
+            if (!instrument.equals(inMeta.getInstrumentID(i)) || inMeta.getObjectiveCount(i) == 0) {
+                continue;
+            }
+
+            String instrumentId = MetadataTools.createLSID("Instrument", 0);
+            String objectiveId = MetadataTools.createLSID("Objective", 0, 0);
+            meta.setInstrumentID(instrumentId, 0);
+            meta.setObjectiveID(objectiveId, 0, 0);
+            meta.setObjectiveNominalMagnification(inMeta.getObjectiveNominalMagnification(i, 0), 0, 0);
+            meta.setImageInstrumentRef(instrumentId, 0);
+            meta.setObjectiveSettingsID(objectiveId, 0);
+            return;
+        }
+    }
+}
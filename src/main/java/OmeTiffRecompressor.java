@@ -0,0 +1,138 @@
+import loci.formats.FormatException;
+import net.imagej.ImageJ;
+import org.scijava.ItemVisibility;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import org.scijava.widget.NumberWidget;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Recompress the OME-TIFF files of a directory in place (see {@link TiffRecompression}).
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > Recompress OME-TIFF")
+public class OmeTiffRecompressor implements Command {
+
+    // Dialog
+    @Parameter(label = "Directory", style = FileWidget.DIRECTORY_STYLE)
+    private File directory;
+
+    @Parameter(label = "Include sub-directories")
+    private boolean recursive = false;
+
+    @Parameter(label = "Compression", choices = {"LZW", "Deflate", "None"})
+    private String compression = "LZW";
+
+    @Parameter(label = "Files in parallel", style = NumberWidget.SPINNER_STYLE, min = "1", max = "64")
+    private int parallelFiles = 2;
+
+    @Parameter(visibility = ItemVisibility.MESSAGE)
+    private final String note = "<html>" +
+            "<p>Every file is rewritten next to the original, compared with it pixel by pixel and then " +
+            "renamed over it.<br>The OME-XML, resolution, software and date tags are kept as is, classic " +
+            "TIFFs stay classic unless uncompressed planes<br>exceed 4 GB. Files that already have the " +
+            "compression are skipped.</p>" +
+            "</html>";
+
+
+    // Services
+    @Parameter
+    private LogService logger;
+
+    @Parameter
+    private StatusService status;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        List<File> files = new ArrayList<>();
+        collect(directory, files);
+        files.sort(null);
+
+        if (files.isEmpty()) {
+            logger.error("Did not find any ome.tif files in " + directory.getAbsolutePath());
+            return;
+        }
+        logger.info("Recompressing " + files.size() + " files to " + compression);
+
+        // The processors are shared by the files that are recompressed at the same time
+        int processors = Runtime.getRuntime().availableProcessors();
+        final int threads = Math.max(1, processors / parallelFiles);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelFiles, files.size()));
+        List<Future<long[]>> tasks = new ArrayList<>(files.size());
+        for (final File file : files) {
+            tasks.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws IOException, FormatException {
+                    long before = file.length();
+                    return new long[]{before, new TiffRecompression(file, compression, threads).run()};
+                }
+            }));
+        }
+        executor.shutdown();
+
+        long saved = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            File file = files.get(i);
+            try {
+                long[] sizes = tasks.get(i).get();
+                if (sizes[1] < 0) {
+                    logger.info("\tskipped " + file.getName() + " (already " + compression + ")");
+                } else {
+                    saved += sizes[0] - sizes[1];
+                    logger.info("\t" + file.getName() + ": " + (sizes[0] >> 20) + " MiB -> " + (sizes[1] >> 20) + " MiB");
+                }
+            } catch (ExecutionException e) {
+                logger.error("Could not recompress " + file.getAbsolutePath() + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                logger.error("Interrupted");
+                return;
+            }
+            status.showStatus(i + 1, files.size(), "Recompressing files...");
+        }
+
+        logger.info("Done, saved " + (saved >> 20) + " MiB.");
+    }
+
+    private void collect(File dir, List<File> files) {
+        File[] content = dir.listFiles();
+        for (int i = 0; content != null && i < content.length; i++) {
+            if (content[i].isDirectory()) {
+                if (recursive) {
+                    collect(content[i], files);
+                }
+            } else if (content[i].getName().endsWith(".ome.tif")) {
+                files.add(content[i]);
+            }
+        }
+    }
+
+    /**
+     * Run
+     *
+     * @param args input arguments
+     */
+    public static void main(final String... args) {
+        final ImageJ ij = new net.imagej.ImageJ();
+        ij.ui().showUI();
+        ij.command().run(OmeTiffRecompressor.class, true);
+    }
+}
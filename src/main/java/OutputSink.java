@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * One output of a multi-output conversion (see {@link SinkFanOut}): which channels are written,
+ * at which pixel size, with which compression and in which file format.
+ *
+ * A sink is declared on one line: {@code name, compression, pixel size, channels[, extension]},
+ * e.g. {@code analysis, LZW, 2.0, all} or {@code dapi, None, 0, DAPI, tif}. The channels are
+ * separated by spaces or {@code +}, "all" selects all channels of the slide.
+ */
+class OutputSink {
+
+    /** Default file extension, the writer chooses the format by the extension */
+    static final String DEFAULT_EXTENSION = "ome.tif";
+
+    /** Extensions of the formats that can be written tile by tile */
+    private static final List<String> TILED_EXTENSIONS = Arrays.asList("ome.tif", "ome.tiff", "ome.tf2", "ome.tf8",
+            "ome.btf", "tif", "tiff", "tf2", "tf8", "btf");
+
+    /** Compressions the tiled writers support for decoded tiles */
+    private static final List<String> COMPRESSIONS = Arrays.asList("None", "LZW");
+
+    private final String name;
+    private final String compression;
+    private final double pixelSize;
+    private final List<HTplusFluo.Channel> channels;
+    private final String extension;
+
+
+    /**
+     * @param name name appended to the output file name
+     * @param compression compression name
+     * @param pixelSize target pixel size in micrometer, 0 to keep the resolution of the series
+     * @param channels written channels in output order, null for all
+     * @param extension output file extension
+     */
+    OutputSink(String name, String compression, double pixelSize, List<HTplusFluo.Channel> channels,
+               String extension) {
+        this.name = name;
+        this.compression = compression;
+        this.pixelSize = pixelSize;
+        this.channels = (channels == null) ? null : Collections.unmodifiableList(new ArrayList<>(channels));
+        this.extension = extension;
+    }
+
+    /**
+     * Parse a sink declaration
+     *
+     * @param line declaration
+     * @return sink
+     * @throws IllegalArgumentException if the declaration is invalid
+     */
+    static OutputSink parse(String line) {
+        String[] fields = line.split(",");
+        if (fields.length < 4 || fields.length > 5) {
+            throw new IllegalArgumentException("Expected 'name, compression, pixel size, channels[, extension]': "
+                    + line);
+        }
+
+        String name = fields[0].trim();
+        if (name.isEmpty() || !name.matches("[\\w.-]+")) {
+            throw new IllegalArgumentException("Invalid output name: " + fields[0]);
+        }
+
+        String compression = fields[1].trim();
+        if (compression.equals(NdpiJpegPassthrough.COMPRESSION)) {
+            throw new IllegalArgumentException("JPEG passthrough does not decode the tiles and cannot be combined");
+        }
+        if (!COMPRESSIONS.contains(compression)) {
+            throw new IllegalArgumentException("Unsupported compression '" + compression + "', expected one of " +
+                    COMPRESSIONS);
+        }
+
+        double pixelSize;
+        try {
+            pixelSize = Double.parseDouble(fields[2].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid pixel size: " + fields[2]);
+        }
+
+        List<HTplusFluo.Channel> channels = null;
+        String channelList = fields[3].trim();
+        if (!channelList.equalsIgnoreCase("all")) {
+            channels = new ArrayList<>();
+            for (String channel : channelList.split("[\\s+]+")) {
+                try {
+                    channels.add(HTplusFluo.Channel.get(channel));
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Unknown channel: " + channel);
+                }
+            }
+        }
+
+        String extension = (fields.length > 4) ? fields[4].trim().replaceFirst("^\\.", "") : DEFAULT_EXTENSION;
+        if (!TILED_EXTENSIONS.contains(extension.toLowerCase(Locale.US))) {
+            throw new IllegalArgumentException("The extension '" + extension + "' is no tiled TIFF format, expected " +
+                    "one of " + TILED_EXTENSIONS);
+        }
+
+        return new OutputSink(name, compression, pixelSize, channels, extension);
+    }
+
+    /**
+     * Parse the sink declarations of a text, one per line. Empty lines and lines starting with #
+     * are skipped.
+     */
+    static List<OutputSink> parseAll(String text) {
+        List<OutputSink> sinks = new ArrayList<>();
+        for (String line : text.split("\\r?\\n|;")) {
+            if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                sinks.add(parse(line));
+            }
+        }
+
+        if (sinks.isEmpty()) {
+            throw new IllegalArgumentException("No outputs declared");
+        }
+        return sinks;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getCompression() {
+        return compression;
+    }
+
+    double getPixelSize() {
+        return pixelSize;
+    }
+
+    /**
+     * @param available channels of the slide, in file order
+     * @return the written channels that the slide has, in output order
+     */
+    List<HTplusFluo.Channel> getChannels(List<HTplusFluo.Channel> available) {
+        if (channels == null) {
+            return available;
+        }
+
+        List<HTplusFluo.Channel> selected = new ArrayList<>();
+        for (HTplusFluo.Channel channel : channels) {
+            if (available.contains(channel)) {
+                selected.add(channel);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @param inIds input file path for each channel
+     * @param series series index
+     * @return output file path, next to the input files
+     */
+    String getOutputPath(HashMap<HTplusFluo.Channel, String> inIds, int series) {
+        String path = BatchConverter.generateOutputPath(inIds, series, pixelSize);
+        return path.substring(0, path.length() - ".ome.tif".length()) + "_" + name + "." + extension;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s, %s, %.3f, %s, %s", name, compression, pixelSize,
+                (channels == null) ? "all" : channels.toString(), extension);
+    }
+}
@@ -0,0 +1,92 @@
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+
+/**
+ * Output file that is written in a temporary directory next to its final path.
+ *
+ * The converters write the output and its sidecar files (statistics, focus map, ...) to
+ * {@link #getPath()}, which has the same file name as the output, so the names recorded in the
+ * files stay valid. Once complete, {@link #commit()} renames the sidecar files and then the output
+ * to the output directory; a failed or abandoned conversion only leaves the temporary directory,
+ * which {@link #discard(LogService)} removes.
+ */
+class PartialOutput {
+
+    private static final String PREFIX = ".partial-";
+
+    private final File target;
+    private final File directory;
+
+
+    /**
+     * @param outId final output file path
+     * @throws IOException if the temporary directory cannot be created
+     */
+    PartialOutput(String outId) throws IOException {
+        target = new File(outId).getAbsoluteFile();
+        directory = Files.createTempDirectory(target.getParentFile().toPath(), PREFIX).toFile();
+    }
+
+    /**
+     * @return path to write the output to
+     */
+    String getPath() {
+        return new File(directory, target.getName()).getPath();
+    }
+
+    /**
+     * Move the output and its sidecar files to the output directory, replacing existing files
+     *
+     * @throws IOException if a file cannot be moved
+     */
+    void commit() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list the partial output " + directory.getAbsolutePath());
+        }
+
+        // The output last, its presence means the conversion is complete
+        File output = new File(directory, target.getName());
+        for (File file : files) {
+            if (!file.equals(output)) {
+                move(file, new File(target.getParentFile(), file.getName()));
+            }
+        }
+        move(output, target);
+
+        Files.delete(directory.toPath());
+    }
+
+    private static void move(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete whatever is left of the output, nothing after a commit
+     *
+     * @param log logger the files that cannot be deleted are reported to
+     * @return false if a file could not be deleted
+     */
+    boolean discard(LogService log) {
+        boolean deleted = true;
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (!files[i].delete()) {
+                log.warn("Cannot delete " + files[i].getAbsolutePath());
+                deleted = false;
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            log.warn("Cannot delete " + directory.getAbsolutePath());
+            deleted = false;
+        }
+
+        return deleted;
+    }
+}
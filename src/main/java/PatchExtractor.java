@@ -0,0 +1,416 @@
+import loci.formats.FormatException;
+import net.imagej.ImageJ;
+import org.scijava.ItemVisibility;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import org.scijava.widget.NumberWidget;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Extract fixed-size patches of every NDPI file of a directory for machine learning.
+ *
+ * The patch grid of each series is cut into rows of a few patches, which workers read with the
+ * region reader. Every worker appends its patches to its own shard ({@link PatchShard}), so the
+ * output is a few large files with an index instead of one file per patch.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > Patch Extraction")
+public class PatchExtractor implements Command {
+
+    /** Width of the source region a worker reads at once */
+    private static final int REGION_WIDTH = 4096;
+
+    /** Bright-field pixels with a smaller color range and a higher minimum are background */
+    private static final int BRIGHTFIELD_RANGE = 20;
+    private static final int BRIGHTFIELD_MINIMUM = 200;
+
+    /** Fluorescence pixels up to this value are background */
+    private static final int FLUORESCENCE_BACKGROUND = 20;
+
+
+    // Dialog
+    @Parameter(label = "Input directory", style = FileWidget.DIRECTORY_STYLE)
+    private File inputDir;
+
+    @Parameter(label = "Output directory", style = FileWidget.DIRECTORY_STYLE)
+    private File outputDir;
+
+    @Parameter(label = "Series", description = "Series to extract from, e.g. '1, 2, 3'")
+    private String seriesList = "1";
+
+    @Parameter(label = "Patch size [px]", style = NumberWidget.SPINNER_STYLE, min = "8", max = "4096")
+    private int patchSize = 256;
+
+    @Parameter(label = "Stride [px]", style = NumberWidget.SPINNER_STYLE, min = "1", max = "4096")
+    private int stride = 256;
+
+    @Parameter(label = "Minimal tissue fraction", style = NumberWidget.SPINNER_STYLE, min = "0", max = "1",
+            stepSize = "0.05")
+    private double minTissue = 0.5;
+
+    @Parameter(label = "Shards", style = NumberWidget.SPINNER_STYLE, min = "1", max = "64")
+    private int shardCount = Math.min(8, Runtime.getRuntime().availableProcessors());
+
+    @Parameter(visibility = ItemVisibility.MESSAGE)
+    private final String note = "<html>" +
+            "<p>Each shard is written by one worker. Bright-field patches hold interleaved RGB bytes, " +
+            "fluorescence<br>patches the bytes of their channel. A minimal tissue fraction of 0 keeps " +
+            "all patches.</p>" +
+            "</html>";
+
+
+    // Services
+    @Parameter
+    private LogService logger;
+
+    @Parameter
+    private StatusService status;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        File[] content = inputDir.listFiles();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; content != null && i < content.length; i++) {
+            if (content[i].getName().endsWith("." + HTplusFluo.FILE_EXTENSION)) {
+                files.add(content[i]);
+            }
+        }
+        files.sort(null);
+
+        if (files.isEmpty()) {
+            logger.error("Did not find any ndpi files in " + inputDir.getAbsolutePath());
+            return;
+        }
+
+        List<Integer> series = new ArrayList<>();
+        try {
+            for (String item : seriesList.trim().split("[\\s,;]+")) {
+                series.add(Integer.parseInt(item) - 1);
+            }
+        } catch (NumberFormatException e) {
+            logger.error("Invalid series list: " + seriesList);
+            return;
+        }
+
+        // Cut the patch grids into tasks, from the file headers
+        final List<Task> tasks = new ArrayList<>();
+        for (File file : files) {
+            for (int s : series) {
+                try {
+                    addTasks(tasks, file, s);
+                } catch (IOException e) {
+                    logger.error("Could not read " + file.getAbsolutePath() + ": " + e.getMessage());
+                }
+            }
+        }
+        logger.info("Extracting patches from " + files.size() + " files in " + tasks.size() + " regions");
+
+        // One worker per shard
+        final List<PatchShard> shards = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(shardCount);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong skipped = new AtomicLong();
+        final Set<String> failed = ConcurrentHashMap.newKeySet();
+        List<Future<?>> workers = new ArrayList<>();
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new PatchShard(outputDir, i));
+            }
+            for (final PatchShard shard : shards) {
+                workers.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        work(tasks, next, shard, skipped, failed);
+                    }
+                }));
+            }
+
+            for (Future<?> worker : workers) {
+                while (true) {
+                    try {
+                        worker.get(1, TimeUnit.SECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        status.showStatus(Math.min(next.get(), tasks.size()), tasks.size(), "Extracting patches...");
+                    }
+                }
+            }
+        } catch (IOException | ExecutionException e) {
+            logger.error(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted");
+        } finally {
+            executor.shutdownNow();
+            for (PatchShard shard : shards) {
+                try {
+                    shard.close();
+                } catch (IOException e) {
+                    logger.error(e);
+                }
+            }
+        }
+
+        long patches = 0;
+        for (PatchShard shard : shards) {
+            patches += shard.getCount();
+        }
+        try {
+            writeManifest(new File(outputDir, "patches.json"), shards);
+        } catch (IOException e) {
+            logger.error(e);
+        }
+
+        status.showStatus(tasks.size(), tasks.size(), "Patch extraction done.");
+        logger.info("Wrote " + patches + " patches to " + shards.size() + " shards, skipped " + skipped.get() +
+                " patches below the tissue fraction");
+    }
+
+    /**
+     * Add a task for every row of patches and region of a series
+     */
+    private void addTasks(List<Task> tasks, File file, int series) throws IOException {
+        List<NdpiHeader.Directory> level = NdpiHeader.read(file).getLevel(series);
+        if (level.isEmpty()) {
+            throw new IOException("There is no series " + (series + 1));
+        }
+
+        long width = level.get(0).getWidth();
+        long height = level.get(0).getHeight();
+        if (width < patchSize || height < patchSize) {
+            return;
+        }
+
+        int columns = (int) ((width - patchSize) / stride + 1);
+        int rows = (int) ((height - patchSize) / stride + 1);
+        int perTask = Math.max(1, (REGION_WIDTH - patchSize) / stride + 1);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col += perTask) {
+                tasks.add(new Task(file, series, row, col, Math.min(columns, col + perTask)));
+            }
+        }
+    }
+
+    /**
+     * Extract the patches of tasks until there are no more, into one shard
+     */
+    private void work(List<Task> tasks, AtomicInteger next, PatchShard shard, AtomicLong skipped, Set<String> failed) {
+        NdpiRegionReader reader = null;
+        String key = null;
+        int z = 0;
+        double pixelSize = 0;
+        byte[][] bufs = new byte[0][];
+
+        try {
+            for (int t = next.getAndIncrement(); t < tasks.size(); t = next.getAndIncrement()) {
+                Task task = tasks.get(t);
+                String taskKey = task.file.getAbsolutePath() + "#" + task.series;
+                if (failed.contains(taskKey)) {
+                    continue;
+                }
+
+                try {
+                    // Open the series of the task
+                    if (!taskKey.equals(key)) {
+                        if (reader != null) {
+                            reader.close();
+                            reader = null;
+                        }
+                        key = taskKey;
+                        reader = new NdpiRegionReader(task.file.getAbsolutePath(), task.series, null);
+                        z = NdpiHeader.getFocalPlane(task.file, task.series);
+                        pixelSize = NdpiUtils.getSeriesPixelSizeValues(task.file)[task.series];
+                    }
+
+                    int rgb = reader.getReader().getRGBChannelCount();
+                    int x = task.colStart * stride;
+                    int y = task.row * stride;
+                    int w = (task.colEnd - 1 - task.colStart) * stride + patchSize;
+                    if (bufs.length != rgb || bufs[0].length < w * patchSize) {
+                        bufs = new byte[rgb][w * patchSize];
+                    }
+                    if (rgb == 1) {
+                        reader.openRegion(z, bufs[0], x, y, w, patchSize);
+                    } else {
+                        reader.openRegions(z, bufs, x, y, w, patchSize);
+                    }
+
+                    HTplusFluo.Channel channel = HTplusFluo.Channel.match(task.file);
+                    boolean brightfield = channel.equals(HTplusFluo.Channel.RGB) || rgb < 3;
+                    for (int col = task.colStart; col < task.colEnd; col++) {
+                        int offset = (col - task.colStart) * stride;
+                        byte[] patch = brightfield ? interleave(bufs, w, offset) :
+                                crop(bufs[channel.getColorIndex()], w, offset);
+                        double tissue = brightfield ? getTissueFraction(patch, rgb) : getTissueFraction(patch);
+                        if (minTissue > 0 && tissue < minTissue) {
+                            skipped.incrementAndGet();
+                            continue;
+                        }
+
+                        shard.append(patch, brightfield ? rgb : 1, task.file.getName(), task.series + 1, z,
+                                x + offset, y, pixelSize, tissue);
+                    }
+                } catch (IOException | FormatException e) {
+                    if (failed.add(taskKey)) {
+                        logger.error("Could not extract patches of " + task.file.getAbsolutePath() +
+                                ", series " + (task.series + 1) + ": " + e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.warn(e);
+                }
+            }
+        }
+    }
+
+    private byte[] interleave(byte[][] bufs, int regionWidth, int offset) {
+        int channels = bufs.length;
+        byte[] patch = new byte[patchSize * patchSize * channels];
+        for (int j = 0, k = 0; j < patchSize; j++) {
+            int line = j * regionWidth + offset;
+            for (int i = 0; i < patchSize; i++) {
+                for (int c = 0; c < channels; c++) {
+                    patch[k++] = bufs[c][line + i];
+                }
+            }
+        }
+
+        return patch;
+    }
+
+    private byte[] crop(byte[] buf, int regionWidth, int offset) {
+        byte[] patch = new byte[patchSize * patchSize];
+        for (int j = 0; j < patchSize; j++) {
+            System.arraycopy(buf, j * regionWidth + offset, patch, j * patchSize, patchSize);
+        }
+
+        return patch;
+    }
+
+    /**
+     * Bright-field tissue is colored or dark, the background is bright and grey
+     */
+    private static double getTissueFraction(byte[] patch, int channels) {
+        int tissue = 0;
+        int n = patch.length / channels;
+        for (int i = 0; i < patch.length; i += channels) {
+            int min = 255;
+            int max = 0;
+            for (int c = 0; c < channels; c++) {
+                int v = patch[i + c] & 0xFF;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > BRIGHTFIELD_RANGE || min < BRIGHTFIELD_MINIMUM) {
+                tissue++;
+            }
+        }
+
+        return tissue / (double) n;
+    }
+
+    /**
+     * Fluorescent tissue is brighter than the background
+     */
+    private static double getTissueFraction(byte[] patch) {
+        int tissue = 0;
+        for (byte v : patch) {
+            if ((v & 0xFF) > FLUORESCENCE_BACKGROUND) {
+                tissue++;
+            }
+        }
+
+        return tissue / (double) patch.length;
+    }
+
+    /**
+     * Describe the layout of the shards
+     */
+    private void writeManifest(File file, List<PatchShard> shards) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"patchSize\": ").append(patchSize).append(",\n");
+        json.append("  \"stride\": ").append(stride).append(",\n");
+        json.append("  \"minTissueFraction\": ").append(String.format(Locale.US, "%.3f", minTissue)).append(",\n");
+        json.append("  \"dtype\": \"uint8\",\n");
+        json.append("  \"layout\": \"row-major, channels interleaved, patch bytes = patchSize^2 * channels\",\n");
+        json.append("  \"indexColumns\": \"").append(PatchShard.INDEX_HEADER).append("\",\n");
+        json.append("  \"shards\": [");
+        for (int i = 0; i < shards.size(); i++) {
+            PatchShard shard = shards.get(i);
+            json.append((i > 0) ? ",\n" : "\n");
+            json.append(String.format(Locale.US, "    {\"data\": \"%s\", \"index\": \"%s\", \"patches\": %d, \"bytes\": %d}",
+                    shard.getData().getName(), shard.getIndex().getName(), shard.getCount(), shard.getSize()));
+        }
+        json.append("\n  ]\n}\n");
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+
+
+    /**
+     * A range of patches of one row of the grid of a series
+     */
+    private static class Task {
+
+        private final File file;
+        private final int series;
+        private final int row;
+        private final int colStart;
+        private final int colEnd;
+
+
+        Task(File file, int series, int row, int colStart, int colEnd) {
+            this.file = file;
+            this.series = series;
+            this.row = row;
+            this.colStart = colStart;
+            this.colEnd = colEnd;
+        }
+    }
+
+    /**
+     * Run
+     *
+     * @param args input arguments
+     */
+    public static void main(final String... args) {
+        final ImageJ ij = new net.imagej.ImageJ();
+        ij.ui().showUI();
+        ij.command().run(PatchExtractor.class, true);
+    }
+}
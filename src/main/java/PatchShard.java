@@ -0,0 +1,110 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+
+/**
+ * One shard of extracted patches: a binary file the patches are appended to and a CSV index
+ * with the offset and origin of every patch.
+ *
+ * A shard is written by a single thread, so both files are plain sequential appends.
+ */
+class PatchShard implements Closeable {
+
+    /** Columns of the index */
+    static final String INDEX_HEADER = "offset,channels,file,series,z,x,y,pixel_size_um,tissue_fraction";
+
+    /** Write buffer size */
+    private static final int BUFFER_SIZE = 4 << 20;
+
+    private final File data;
+    private final File index;
+    private final OutputStream dataStream;
+    private final Writer indexWriter;
+    private long offset;
+    private long count;
+
+
+    /**
+     * Create the files of a shard
+     *
+     * @param directory output directory
+     * @param number shard number
+     * @throws IOException if a file exists already or cannot be created
+     */
+    PatchShard(File directory, int number) throws IOException {
+        String name = String.format(Locale.US, "shard-%03d", number);
+        data = new File(directory, name + ".bin");
+        index = new File(directory, name + ".csv");
+        if (data.exists() || index.exists()) {
+            throw new IOException("Shard exists already: " + data.getAbsolutePath());
+        }
+
+        dataStream = new BufferedOutputStream(new FileOutputStream(data), BUFFER_SIZE);
+        indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(index), StandardCharsets.UTF_8));
+        indexWriter.write(INDEX_HEADER + "\n");
+    }
+
+    /**
+     * Append a patch
+     *
+     * @param patch interleaved patch data
+     * @param channels number of interleaved channels
+     * @param file source file name
+     * @param series source series
+     * @param z source z-plane
+     * @param x patch origin x in the series
+     * @param y patch origin y in the series
+     * @param pixelSize pixel size of the series in micrometer
+     * @param tissue fraction of tissue pixels
+     * @throws IOException if the shard cannot be written
+     */
+    void append(byte[] patch, int channels, String file, int series, int z, int x, int y, double pixelSize,
+                double tissue) throws IOException {
+        dataStream.write(patch);
+        indexWriter.write(String.format(Locale.US, "%d,%d,%s,%d,%d,%d,%d,%.4f,%.3f\n",
+                offset, channels, quote(file), series, z, x, y, pixelSize, tissue));
+        offset += patch.length;
+        count++;
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    File getData() {
+        return data;
+    }
+
+    File getIndex() {
+        return index;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getSize() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            dataStream.close();
+        } finally {
+            indexWriter.close();
+        }
+    }
+}
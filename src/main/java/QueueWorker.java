@@ -0,0 +1,239 @@
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import ome.xml.model.enums.EnumerationException;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Worker of a batch conversion distributed over a {@link ConversionQueue}.
+ *
+ * Any number of workers, in this or other JVMs on hosts sharing the queue directory, claim jobs
+ * until the queue is drained. The jobs are queued from the command line:
+ * <pre>
+ * QueueWorker enqueue &lt;queue dir&gt; &lt;input dir&gt; &lt;series&gt; &lt;compression&gt; &lt;pixel size&gt; &lt;channel&gt;...
+ * QueueWorker work &lt;queue dir&gt; [processes]
+ * </pre>
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > NDPI Converter > Batch Queue Worker")
+public class QueueWorker implements Command {
+
+    /** Time between two looks at the queue while other workers still hold claims */
+    private static final long POLL_INTERVAL = 10 * 1000;
+
+    @Parameter(label = "Queue directory", style = FileWidget.DIRECTORY_STYLE)
+    private File queueDir;
+
+    @Parameter
+    LogService log;
+
+    @Parameter
+    StatusService status;
+
+
+    @Override
+    public void run() {
+        try {
+            int jobs = work(new ConversionQueue(queueDir, ConversionQueue.LEASE_TIMEOUT), getWorkerId(), log);
+            status.showStatus("Converted " + jobs + " queued files");
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    /**
+     * @return identifier of this JVM, unique across the hosts sharing a queue
+     */
+    static String getWorkerId() {
+        return ManagementFactory.getRuntimeMXBean().getName() + "-" + Thread.currentThread().getId();
+    }
+
+    /**
+     * Process jobs until the queue is drained
+     *
+     * @param queue conversion queue
+     * @param worker worker identifier
+     * @param log logger
+     * @return number of jobs processed by this worker
+     * @throws IOException if the queue directory cannot be accessed
+     */
+    static int work(final ConversionQueue queue, String worker, final LogService log) throws IOException {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        long period = queue.getLeaseTimeout() / 4;
+        int count = 0;
+
+        try {
+            while (true) {
+                final ConversionQueue.Job job = queue.claim(worker);
+                if (job == null) {
+                    if (queue.isDrained()) {
+                        return count;
+                    }
+                    sleep(POLL_INTERVAL);
+                    continue;
+                }
+
+                ScheduledFuture<?> lease = heartbeat.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!queue.heartbeat(job)) {
+                                log.warn("Lost the claim on " + job.getName());
+                            }
+                        } catch (IOException e) {
+                            log.warn("Heartbeat failed for " + job.getName(), e);
+                        }
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+
+                try {
+                    if (process(queue, job, log)) {
+                        if (!queue.complete(job)) {
+                            log.warn("The claim on " + job.getName() + " expired before it was completed");
+                        }
+                        count++;
+                    }
+                } catch (IOException |
+                        FormatException |
+                        DependencyException |
+                        ServiceException |
+                        EnumerationException |
+                        RuntimeException e) {
+                    log.error("Conversion failed: " + job.getName(), e);
+                    queue.fail(job, e);
+                } finally {
+                    lease.cancel(false);
+                }
+            }
+        } finally {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    /**
+     * Convert a job to a partial output that is only published while the claim is held. An
+     * existing output is complete, either from before the job was queued or from a worker that
+     * lost the claim after publishing it.
+     *
+     * @return false if the claim has been lost and the output was discarded
+     */
+    private static boolean process(ConversionQueue queue, ConversionQueue.Job job, LogService log)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        File output = new File(job.getOutputPath());
+        if (output.exists()) {
+            log.warn("File already exists: " + output.getAbsolutePath());
+            log.warn("... Skipping conversion");
+            return true;
+        }
+
+        log.info("Converting: ");
+        for (HTplusFluo.Channel channel : job.getInputs().keySet()) {
+            log.info("\t    " + job.getInputs().get(channel));
+        }
+        log.info("\tto: " + output.getAbsolutePath());
+
+        PartialOutput partial = new PartialOutput(job.getOutputPath());
+        try {
+            BatchConverter.convert(job.getInputs(), job.getSeries(), partial.getPath(),
+                    ConversionOptions.of(job.getCompression(), job.getPixelSize()), log);
+
+            if (!queue.heartbeat(job)) {
+                log.warn("Lost the claim on " + job.getName() + ", discarding the output");
+                return false;
+            }
+            partial.commit();
+            return true;
+        } finally {
+            partial.discard(log);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for queued jobs", e);
+        }
+    }
+
+    /**
+     * Start the given number of worker processes on this host and wait for them
+     */
+    private static void spawn(File queueDir, int processes) throws IOException, InterruptedException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        List<Process> children = new ArrayList<>();
+        for (int p = 0; p < processes; p++) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    QueueWorker.class.getName(), "work", queueDir.getAbsolutePath());
+            children.add(builder.inheritIO().start());
+        }
+
+        for (Process child : children) {
+            child.waitFor();
+        }
+    }
+
+    /**
+     * Command line entry point, see the class documentation
+     *
+     * @param args input arguments
+     */
+    public static void main(String... args) throws Exception {
+        LogService log = new StderrLogService();
+
+        if (args.length >= 6 && args[0].equals("enqueue")) {
+            File directory = new File(args[2]);
+            int series = Integer.parseInt(args[3]) - 1;
+            double pixelSize = Double.parseDouble(args[5]);
+
+            HashMap<HTplusFluo.Channel, List<File>> allFiles = NdpiUtils.getFiles(directory);
+            HashMap<HTplusFluo.Channel, List<File>> files = new HashMap<>();
+            List<HTplusFluo.Channel> channels = new ArrayList<>();
+            for (int a = 6; a < args.length; a++) {
+                HTplusFluo.Channel channel = HTplusFluo.Channel.get(args[a]);
+                if (allFiles.get(channel) == null) {
+                    log.error("No " + channel.getName() + " files in " + directory.getAbsolutePath());
+                    return;
+                }
+                channels.add(channel);
+                files.put(channel, allFiles.get(channel));
+                Collections.sort(files.get(channel));
+            }
+
+            ConversionQueue queue = new ConversionQueue(new File(args[1]), ConversionQueue.LEASE_TIMEOUT);
+            log.info("Queued " + queue.enqueue(files, channels, series, args[4], pixelSize) + " jobs");
+        } else if (args.length >= 2 && args[0].equals("work")) {
+            File queueDir = new File(args[1]);
+            int processes = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+            if (processes > 1) {
+                spawn(queueDir, processes);
+            } else {
+                int jobs = work(new ConversionQueue(queueDir, ConversionQueue.LEASE_TIMEOUT), getWorkerId(), log);
+                log.info("Converted " + jobs + " queued files");
+            }
+        } else {
+            System.err.println("Usage: QueueWorker enqueue <queue dir> <input dir> <series> <compression> " +
+                    "<pixel size> <channel>...");
+            System.err.println("       QueueWorker work <queue dir> [processes]");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import loci.formats.FormatException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Open region readers, shared by all the threads of the process.
+ *
+ * Opening a NDPI file with Bio-Formats is expensive and a reader can only be used by one thread
+ * at a time, so the readers of a series are kept open and lent to the threads that need them.
+ * At most a fixed number of readers is opened per series and in total; when the total is reached,
+ * the least recently used idle reader is closed to make room, otherwise further threads wait.
+ */
+class ReaderPool implements Closeable {
+
+    private final int maxPerSeries;
+    private final int maxOpen;
+    private final HashMap<String, Deque<NdpiRegionReader>> idle = new HashMap<>();
+    private final HashMap<String, Integer> open = new HashMap<>();
+
+    /** Idle readers of all series, the least recently used last */
+    private final Deque<NdpiRegionReader> recent = new ArrayDeque<>();
+    private int total = 0;
+    private boolean closed = false;
+
+
+    /**
+     * @param maxPerSeries maximal number of readers of one series
+     * @param maxOpen maximal number of readers of all series
+     */
+    ReaderPool(int maxPerSeries, int maxOpen) {
+        this.maxPerSeries = Math.max(1, maxPerSeries);
+        this.maxOpen = Math.max(this.maxPerSeries, maxOpen);
+    }
+
+    private static String getKey(String id, int series) {
+        return id + "#" + series;
+    }
+
+    /**
+     * Borrow a reader, opening one if all readers of the series are in use and the limit is not reached
+     *
+     * @param id file path
+     * @param series series index
+     * @return reader that has to be given back with {@link #release(NdpiRegionReader)}
+     * @throws IOException if the file cannot be read or the pool is closed
+     * @throws FormatException if the file format is not supported
+     */
+    NdpiRegionReader borrow(String id, int series) throws IOException, FormatException {
+        String key = getKey(id, series);
+        NdpiRegionReader evicted = null;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("The reader pool is closed");
+                }
+
+                Deque<NdpiRegionReader> readers = idle.get(key);
+                if (readers != null && !readers.isEmpty()) {
+                    NdpiRegionReader reader = readers.pop();
+                    recent.remove(reader);
+                    return reader;
+                }
+
+                int count = open.containsKey(key) ? open.get(key) : 0;
+                if (count < maxPerSeries && total >= maxOpen && !recent.isEmpty()) {
+                    evicted = recent.removeLast();
+                    String evictedKey = getKey(evicted.getId(), evicted.getSeries());
+                    idle.get(evictedKey).remove(evicted);
+                    remove(evictedKey);
+                }
+                if (count < maxPerSeries && total < maxOpen) {
+                    open.put(key, count + 1);
+                    total++;
+                    break;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a reader of " + id);
+                }
+            }
+        }
+
+        // Close and open outside of the lock, the other series stay available meanwhile
+        if (evicted != null) {
+            closeQuietly(evicted);
+        }
+        try {
+            return new NdpiRegionReader(id, series, null);
+        } catch (IOException | FormatException | RuntimeException e) {
+            synchronized (this) {
+                remove(key);
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Count a reader of a series as closed
+     */
+    private void remove(String key) {
+        int count = open.get(key) - 1;
+        if (count == 0) {
+            open.remove(key);
+            idle.remove(key);
+        } else {
+            open.put(key, count);
+        }
+        total--;
+    }
+
+    private static void closeQuietly(NdpiRegionReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // Nothing to recover
+        }
+    }
+
+    /**
+     * Give a reader back
+     *
+     * @param reader borrowed reader
+     */
+    void release(NdpiRegionReader reader) {
+        String key = getKey(reader.getId(), reader.getSeries());
+        synchronized (this) {
+            if (!closed) {
+                Deque<NdpiRegionReader> readers = idle.get(key);
+                if (readers == null) {
+                    readers = new ArrayDeque<>();
+                    idle.put(key, readers);
+                }
+                readers.push(reader);
+                recent.addFirst(reader);
+                notifyAll();
+                return;
+            }
+        }
+
+        closeQuietly(reader);
+    }
+
+    /**
+     * Close the idle readers, the borrowed ones are closed when they are released
+     */
+    @Override
+    public void close() throws IOException {
+        List<NdpiRegionReader> readers = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Deque<NdpiRegionReader> deque : idle.values()) {
+                readers.addAll(deque);
+            }
+            idle.clear();
+            recent.clear();
+            notifyAll();
+        }
+
+        for (NdpiRegionReader reader : readers) {
+            reader.close();
+        }
+    }
+}
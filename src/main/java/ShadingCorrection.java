@@ -0,0 +1,339 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import loci.formats.FormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Flat-field and dark-frame correction of 8-bit planes, applied tile by tile while streaming.
+ *
+ * The shading is described by a profile that repeats with the camera field (or scan lane) of the
+ * scanner: the flat and dark values of a pixel are those of the profile at the pixel coordinates
+ * modulo the profile size. The per-pixel gains are quantized to a small number of levels, and a
+ * lookup table per level maps the dark-subtracted value to the corrected one, so correcting a
+ * tile costs two array lookups per pixel and no allocation.
+ */
+class ShadingCorrection {
+
+    /** Number of quantized gain levels */
+    private static final int GAIN_LEVELS = 256;
+
+    /** Maximal number of sample regions along each axis for the estimation */
+    private static final int ESTIMATION_SAMPLES = 8;
+
+    /** Minimal height of an estimation sample region */
+    private static final int ESTIMATION_REGION_HEIGHT = 256;
+
+    private final int profileWidth;
+    private final int profileHeight;
+    private final byte[] dark;
+    private final byte[] gainLevels;
+    private final byte[][] lut;
+
+
+    /**
+     * @param flat flat-field profile
+     * @param darkFrame dark-frame profile of the same size or null
+     * @param width profile width
+     * @param height profile height
+     */
+    ShadingCorrection(float[] flat, float[] darkFrame, int width, int height) {
+        this.profileWidth = width;
+        this.profileHeight = height;
+        int n = width * height;
+
+        // Gains that bring every pixel to the mean of the dark-subtracted flat field
+        float[] gains = new float[n];
+        double mean = 0;
+        for (int i = 0; i < n; i++) {
+            gains[i] = Math.max(1, flat[i] - ((darkFrame == null) ? 0 : darkFrame[i]));
+            mean += gains[i];
+        }
+        mean /= n;
+
+        float minGain = Float.MAX_VALUE;
+        float maxGain = 0;
+        for (int i = 0; i < n; i++) {
+            gains[i] = (float) (mean / gains[i]);
+            minGain = Math.min(minGain, gains[i]);
+            maxGain = Math.max(maxGain, gains[i]);
+        }
+
+        // Logarithmic quantization of the gains
+        double logMin = Math.log(minGain);
+        double step = (maxGain > minGain) ? (Math.log(maxGain) - logMin) / (GAIN_LEVELS - 1) : 1;
+
+        dark = new byte[n];
+        gainLevels = new byte[n];
+        for (int i = 0; i < n; i++) {
+            dark[i] = (byte) Math.min(255, Math.max(0, Math.round((darkFrame == null) ? 0 : darkFrame[i])));
+            gainLevels[i] = (byte) Math.round((Math.log(gains[i]) - logMin) / step);
+        }
+
+        lut = new byte[GAIN_LEVELS][256];
+        for (int level = 0; level < GAIN_LEVELS; level++) {
+            double gain = Math.exp(logMin + level * step);
+            for (int value = 0; value < 256; value++) {
+                lut[level][value] = (byte) Math.min(255, Math.round(value * gain));
+            }
+        }
+    }
+
+    /**
+     * Load the reference images of a channel
+     *
+     * @param flatFile flat-field image
+     * @param darkFile dark-frame image of the same size or null
+     * @return correction
+     * @throws IOException if an image cannot be opened or the sizes do not match
+     */
+    static ShadingCorrection fromImages(File flatFile, File darkFile) throws IOException {
+        FloatProcessor flat = openFloat(flatFile);
+        FloatProcessor dark = (darkFile == null) ? null : openFloat(darkFile);
+
+        if (dark != null && (dark.getWidth() != flat.getWidth() || dark.getHeight() != flat.getHeight())) {
+            throw new IOException("The dark frame " + darkFile.getName() + " does not match the size of the flat field");
+        }
+
+        return new ShadingCorrection((float[]) flat.getPixels(), (dark == null) ? null : (float[]) dark.getPixels(),
+                flat.getWidth(), flat.getHeight());
+    }
+
+    private static FloatProcessor openFloat(File file) throws IOException {
+        ImagePlus image = IJ.openImage(file.getAbsolutePath());
+        if (image == null) {
+            throw new IOException("Cannot open the reference image " + file.getAbsolutePath());
+        }
+
+        return image.getProcessor().convertToFloatProcessor();
+    }
+
+    /**
+     * Estimate the flat-field profile from the plane itself, as the smoothed mean of sample regions
+     * spread over the plane.
+     *
+     * @param reader region reader
+     * @param plane plane index (channel separated)
+     * @param width profile width
+     * @param height profile height
+     * @param dark constant dark level
+     * @return correction
+     * @throws IOException if the plane cannot be read
+     * @throws FormatException if the plane cannot be decoded
+     */
+    static ShadingCorrection estimate(NdpiRegionReader reader, int plane, int width, int height, float dark)
+            throws IOException, FormatException {
+        int sizeX = reader.getSizeX();
+        int sizeY = reader.getSizeY();
+        int regionWidth = Math.min(width, sizeX);
+        int regionHeight = Math.min(sizeY, height * Math.max(1, ESTIMATION_REGION_HEIGHT / height));
+
+        // Regions aligned to the profile, evenly spread over the plane
+        int periodsX = Math.max(1, (sizeX - regionWidth) / width + 1);
+        int periodsY = Math.max(1, (sizeY - regionHeight) / height + 1);
+        int samplesX = Math.min(ESTIMATION_SAMPLES, periodsX);
+        int samplesY = Math.min(ESTIMATION_SAMPLES, periodsY);
+
+        double[] sum = new double[width * height];
+        int[] count = new int[width * height];
+        byte[] buf = new byte[regionWidth * regionHeight];
+        for (int sy = 0; sy < samplesY; sy++) {
+            int y = (int) ((long) sy * periodsY / samplesY) * height;
+            for (int sx = 0; sx < samplesX; sx++) {
+                int x = (int) ((long) sx * periodsX / samplesX) * width;
+                reader.openRegion(plane, buf, x, y, regionWidth, regionHeight);
+
+                for (int j = 0; j < regionHeight; j++) {
+                    int row = (j % height) * width;
+                    for (int i = 0; i < regionWidth; i++) {
+                        sum[row + i] += buf[j * regionWidth + i] & 0xFF;
+                        count[row + i]++;
+                    }
+                }
+            }
+        }
+
+        float[] flat = new float[width * height];
+        for (int i = 0; i < flat.length; i++) {
+            flat[i] = (count[i] > 0) ? (float) (sum[i] / count[i]) : Float.NaN;
+        }
+        fillMissing(flat);
+        smooth(flat, width, height, Math.max(1, width / 32), Math.max(0, height / 32));
+
+        float[] darkFrame = null;
+        if (dark > 0) {
+            darkFrame = new float[flat.length];
+            Arrays.fill(darkFrame, dark);
+        }
+
+        return new ShadingCorrection(flat, darkFrame, width, height);
+    }
+
+    /**
+     * Profile pixels that no sample covered (the profile is wider than the plane) get the mean
+     */
+    private static void fillMissing(float[] profile) {
+        double mean = 0;
+        int n = 0;
+        for (float value : profile) {
+            if (!Float.isNaN(value)) {
+                mean += value;
+                n++;
+            }
+        }
+        mean = (n > 0) ? mean / n : 1;
+
+        for (int i = 0; i < profile.length; i++) {
+            if (Float.isNaN(profile[i])) {
+                profile[i] = (float) mean;
+            }
+        }
+    }
+
+    /**
+     * Periodic box filter, the profile wraps around at its borders
+     */
+    private static void smooth(float[] profile, int width, int height, int radiusX, int radiusY) {
+        float[] tmp = new float[profile.length];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int k = -radiusX; k <= radiusX; k++) {
+                    sum += profile[y * width + Math.floorMod(x + k, width)];
+                }
+                tmp[y * width + x] = (float) (sum / (2 * radiusX + 1));
+            }
+        }
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int k = -radiusY; k <= radiusY; k++) {
+                    sum += tmp[Math.floorMod(y + k, height) * width + x];
+                }
+                profile[y * width + x] = (float) (sum / (2 * radiusY + 1));
+            }
+        }
+    }
+
+    /**
+     * Correct a region in place
+     *
+     * @param buf region of w * h bytes
+     * @param x region origin x in plane coordinates
+     * @param y region origin y in plane coordinates
+     * @param w region width
+     * @param h region height
+     */
+    void apply(byte[] buf, int x, int y, int w, int h) {
+        for (int j = 0; j < h; j++) {
+            int row = ((y + j) % profileHeight) * profileWidth;
+            int px = x % profileWidth;
+            int offset = j * w;
+            for (int i = 0; i < w; i++) {
+                int index = row + px;
+                int value = (buf[offset + i] & 0xFF) - (dark[index] & 0xFF);
+                buf[offset + i] = lut[gainLevels[index] & 0xFF][Math.max(0, value)];
+                if (++px == profileWidth) {
+                    px = 0;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Where the corrections of the channels of a conversion come from: reference images in a
+     * directory ({@code <channel>_flat.tif} and optionally {@code <channel>_dark.tif}), or an
+     * estimation from each converted plane with a given profile size.
+     */
+    static class Settings {
+        private final File referenceDirectory;
+        private final int profileWidth;
+        private final int profileHeight;
+        private final float dark;
+
+        /** Reference corrections by channel, loaded once per batch */
+        private final ConcurrentHashMap<HTplusFluo.Channel, ShadingCorrection> references = new ConcurrentHashMap<>();
+
+        private Settings(File referenceDirectory, int profileWidth, int profileHeight, float dark) {
+            this.referenceDirectory = referenceDirectory;
+            this.profileWidth = profileWidth;
+            this.profileHeight = profileHeight;
+            this.dark = dark;
+        }
+
+        /**
+         * @param directory directory with the reference images, at the resolution of the converted series
+         */
+        static Settings fromReferences(File directory) {
+            return new Settings(directory, 0, 0, 0);
+        }
+
+        /**
+         * @param width profile width in pixels of the converted series
+         * @param height profile height (1 for a profile that only varies across the scan lanes)
+         * @param dark constant dark level
+         */
+        static Settings estimated(int width, int height, float dark) {
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("Invalid shading profile size " + width + "x" + height);
+            }
+            return new Settings(null, width, height, dark);
+        }
+
+        /**
+         * Get the correction of a channel, or null if the channel has no reference image
+         *
+         * @param channel channel
+         * @param reader region reader of the channel file
+         * @param plane plane used for the estimation
+         */
+        ShadingCorrection get(HTplusFluo.Channel channel, NdpiRegionReader reader, int plane)
+                throws IOException, FormatException {
+            if (referenceDirectory == null) {
+                return estimate(reader, plane, profileWidth, profileHeight, dark);
+            }
+
+            ShadingCorrection correction = references.get(channel);
+            if (correction == null) {
+                File flat = new File(referenceDirectory, channel.getName() + "_flat.tif");
+                File darkFrame = new File(referenceDirectory, channel.getName() + "_dark.tif");
+                if (!flat.exists()) {
+                    return null;
+                }
+                correction = fromImages(flat, darkFrame.exists() ? darkFrame : null);
+                references.putIfAbsent(channel, correction);
+            }
+
+            return correction;
+        }
+
+        @Override
+        public String toString() {
+            if (referenceDirectory != null) {
+                // The reference images themselves, so replacing one changes the description
+                StringBuilder text = new StringBuilder("references:" + referenceDirectory.getAbsolutePath());
+                File[] images = referenceDirectory.listFiles();
+                if (images != null) {
+                    Arrays.sort(images);
+                    for (File image : images) {
+                        if (image.getName().endsWith("_flat.tif") || image.getName().endsWith("_dark.tif")) {
+                            text.append(',').append(image.getName()).append('|').append(image.length())
+                                    .append('|').append(image.lastModified());
+                        }
+                    }
+                }
+                return text.toString();
+            }
+            return String.format(Locale.US, "estimated:%dx%d,dark=%.1f", profileWidth, profileHeight, dark);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.ImageWriter;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.enums.EnumerationException;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Write several outputs of a slide in one read pass.
+ *
+ * The source planes are decoded in blocks that are kept in a cache bounded by the tile memory
+ * budget. The output tiles of all sinks are processed in the order of the source areas they cover,
+ * so the tiles of the different sinks that need the same blocks are written one after the other
+ * and every block is decoded once, as long as the blocks of a row of areas fit the budget.
+ *
+ * All sinks are checked against the slide before the first writer is opened, and the outputs are
+ * written as {@link PartialOutput}s that are only moved into place once all of them are complete.
+ */
+class SinkFanOut {
+
+    /** Edge length of the cached source blocks */
+    private static final int BLOCK_SIZE = 1024;
+
+    /** Edge length of the source areas of which the tiles of all sinks are written together */
+    private static final int AREA_SIZE = 4 * BLOCK_SIZE;
+
+
+    private SinkFanOut() {
+    }
+
+    /**
+     * Convert a series of the channel files of a slide to several outputs
+     *
+     * @param inIds input file path for each channel
+     * @param inSeries series index
+     * @param sinks outputs
+     * @param outIds output file path of each sink
+     * @param log logger
+     * @return number of decoded source blocks
+     */
+    static long convert(HashMap<HTplusFluo.Channel, String> inIds, int inSeries, List<OutputSink> sinks,
+                        List<String> outIds, LogService log)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        for (String id : inIds.values()) {
+            MappedFileHandle.register(id);
+        }
+
+        try {
+            return convertMapped(inIds, inSeries, sinks, outIds, log);
+        } finally {
+            for (String id : inIds.values()) {
+                MappedFileHandle.release(id);
+            }
+        }
+    }
+
+    private static long convertMapped(HashMap<HTplusFluo.Channel, String> inIds, int inSeries,
+                                      List<OutputSink> sinks, List<String> outIds, LogService log)
+            throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+        OMEXMLMetadata inMeta = OmeMetadataBuilder.createStore();
+
+        List<HTplusFluo.Channel> channels = new ArrayList<>(inIds.keySet());
+        List<String> ids = new ArrayList<>();
+        for (HTplusFluo.Channel channel : channels) {
+            ids.add(inIds.get(channel));
+        }
+        String name = new File(ids.get(0)).getName().replace(".ome.tif", "");
+
+        try (ChannelMerger merger = new ChannelMerger(ids, inSeries, inMeta)) {
+            NdpiRegionReader first = merger.getReader(0);
+            List<int[]> planes = NdpiUtils.getChannelPlanes(channels, first.getReader());
+            int sizeZ = (first.getImageCount() >= 3) ? first.getImageCount() / 3 : 1;
+
+            BlockCache cache = new BlockCache(merger, planes, TileGeometry.getMemoryBudget());
+            List<Target> targets = new ArrayList<>();
+            for (int s = 0; s < sinks.size(); s++) {
+                targets.add(new Target(s, sinks.get(s), inMeta, inSeries, name, channels, planes, sizeZ, first));
+            }
+
+            List<PartialOutput> outputs = new ArrayList<>();
+            try {
+                for (int s = 0; s < targets.size(); s++) {
+                    PartialOutput output = new PartialOutput(outIds.get(s));
+                    outputs.add(output);
+                    targets.get(s).open(output.getPath());
+                }
+
+                // Output tiles of all sinks, in the order of the source areas they start in
+                List<Tile> tiles = new ArrayList<>();
+                for (Target target : targets) {
+                    target.addTiles(tiles);
+                }
+                Collections.sort(tiles, new Comparator<Tile>() {
+                    @Override
+                    public int compare(Tile a, Tile b) {
+                        if (a.areaY != b.areaY) {
+                            return Integer.compare(a.areaY, b.areaY);
+                        }
+                        if (a.areaX != b.areaX) {
+                            return Integer.compare(a.areaX, b.areaX);
+                        }
+                        return Integer.compare(a.order, b.order);
+                    }
+                });
+
+                for (Tile tile : tiles) {
+                    tile.target.write(tile, cache);
+                }
+
+                for (Target target : targets) {
+                    target.finish();
+                }
+                for (PartialOutput output : outputs) {
+                    output.commit();
+                }
+            } finally {
+                try {
+                    for (Target target : targets) {
+                        target.close();
+                    }
+                } finally {
+                    for (PartialOutput output : outputs) {
+                        output.discard(log);
+                    }
+                }
+            }
+
+            return cache.getDecodedBlocks();
+        }
+    }
+
+
+    /**
+     * Output tile of a sink with the source area it starts in
+     */
+    private static class Tile {
+        final Target target;
+        final int x, y, w, h;
+        final int areaX, areaY;
+        final int order;
+
+        Tile(Target target, int x, int y, int w, int h, int sourceX, int sourceY, int order) {
+            this.target = target;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.areaX = sourceX / AREA_SIZE;
+            this.areaY = sourceY / AREA_SIZE;
+            this.order = order;
+        }
+    }
+
+
+    /**
+     * Writer, metadata and channel selection of a sink
+     */
+    private static class Target {
+        private final OMEXMLMetadata meta;
+        private final OutputSink sink;
+        private final AreaResampler resampler;
+        private String outId;
+        private ImageWriter writer;
+        private final ChannelStatistics statistics;
+        private final List<Integer> channelIndices = new ArrayList<>();
+        private final List<int[]> planes;
+        private final int sizeX;
+        private final int sizeY;
+        private final int order;
+        private final int[] tileSize;
+        private boolean closed = false;
+
+        /**
+         * Check the sink against the slide and build its metadata, without opening the writer
+         */
+        Target(int order, OutputSink sink, OMEXMLMetadata inMeta, int inSeries, String name,
+               List<HTplusFluo.Channel> channels, List<int[]> planes, int sizeZ, NdpiRegionReader reader)
+                throws IOException, FormatException, DependencyException, ServiceException, EnumerationException {
+            this.sink = sink;
+            this.planes = planes;
+            this.sizeX = reader.getSizeX();
+            this.sizeY = reader.getSizeY();
+            this.order = order;
+
+            List<String> names = new ArrayList<>();
+            int planeCount = 0;
+            for (HTplusFluo.Channel channel : sink.getChannels(channels)) {
+                int c = channels.indexOf(channel);
+                channelIndices.add(c);
+                planeCount += planes.get(c).length;
+                if (channel.equals(HTplusFluo.Channel.RGB)) {
+                    names.addAll(Collections.nCopies(3, (String) null));
+                } else {
+                    names.add(channel.getName());
+                }
+            }
+            if (channelIndices.isEmpty()) {
+                throw new FormatException("The output " + sink.getName() + " has none of the channels " + channels);
+            }
+            String[] channelNames = names.toArray(new String[0]);
+
+            meta = OmeMetadataBuilder.PLANAR.build(inMeta, inSeries, name, sizeZ, channelNames);
+            resampler = NdpiUtils.createResampler(inMeta, inSeries, sink.getPixelSize());
+            if (resampler != null) {
+                NdpiUtils.setResampledSize(meta, resampler, sizeX, sizeY, sink.getPixelSize());
+            }
+
+            List<int[]> selected = new ArrayList<>();
+            for (int c : channelIndices) {
+                selected.add(planes.get(c));
+            }
+            statistics = new ChannelStatistics(channelNames,
+                    ChannelStatistics.getMergedPlaneChannels(sink.getChannels(channels), selected));
+            tileSize = TileGeometry.choose(reader, resampler, planeCount);
+        }
+
+        /**
+         * @param outId path to write the output to
+         */
+        void open(String outId) throws IOException, FormatException {
+            this.outId = outId;
+            writer = NdpiUtils.createWriter(meta, outId, sink.getCompression(), tileSize);
+        }
+
+        void addTiles(List<Tile> tiles) {
+            int tileWidth = tileSize[0];
+            int tileHeight = tileSize[1];
+            int outSizeX = (resampler == null) ? sizeX : resampler.getOutputSize(sizeX);
+            int outSizeY = (resampler == null) ? sizeY : resampler.getOutputSize(sizeY);
+
+            for (int y = 0; y < outSizeY; y += tileHeight) {
+                int sourceY = (resampler == null) ? y : resampler.getSourceStart(y);
+                for (int x = 0; x < outSizeX; x += tileWidth) {
+                    int sourceX = (resampler == null) ? x : resampler.getSourceStart(x);
+                    tiles.add(new Tile(this, x, y, Math.min(tileWidth, outSizeX - x), Math.min(tileHeight, outSizeY - y),
+                            sourceX, sourceY, order));
+                }
+            }
+        }
+
+        void write(Tile tile, BlockCache cache) throws IOException, FormatException {
+            int outPlane = 0;
+            for (int c : channelIndices) {
+                for (int plane : planes.get(c)) {
+                    byte[] data;
+                    if (resampler == null) {
+                        data = cache.read(c, plane, tile.x, tile.y, tile.w, tile.h);
+                    } else {
+                        int sx = resampler.getSourceStart(tile.x);
+                        int sy = resampler.getSourceStart(tile.y);
+                        int sw = resampler.getSourceEnd(tile.x + tile.w, sizeX) - sx;
+                        int sh = resampler.getSourceEnd(tile.y + tile.h, sizeY) - sy;
+                        byte[] src = cache.read(c, plane, sx, sy, sw, sh);
+                        data = new byte[tile.w * tile.h];
+                        resampler.resample(src, sx, sy, sw, sh, data, tile.x, tile.y, tile.w, tile.h, sizeX, sizeY);
+                    }
+
+                    statistics.add(outPlane, data, tile.w * tile.h);
+                    writer.saveBytes(outPlane++, data, tile.x, tile.y, tile.w, tile.h);
+                }
+            }
+        }
+
+        /**
+         * Store the statistics and close the writer after all tiles were written
+         */
+        void finish() throws IOException {
+            statistics.store(meta);
+            close();
+            statistics.writeJson(new File(NdpiUtils.getSidecarPath(outId, ".stats.json")));
+        }
+
+        void close() throws IOException {
+            if (!closed && writer != null) {
+                closed = true;
+                writer.close();
+            }
+        }
+    }
+
+
+    /**
+     * Decoded source blocks of all channel files, least recently used blocks are dropped when the
+     * budget is exceeded
+     */
+    private static class BlockCache {
+        private final ChannelMerger merger;
+        private final boolean[][] bands;
+        private final long budget;
+        private final LinkedHashMap<String, byte[][]> blocks = new LinkedHashMap<>(64, 0.75f, true);
+        private long size = 0;
+        private long decoded = 0;
+
+        BlockCache(ChannelMerger merger, List<int[]> planes, long budget) {
+            this.merger = merger;
+            this.budget = budget;
+
+            // Color components that are read of each file
+            bands = new boolean[merger.getChannelCount()][];
+            for (int c = 0; c < bands.length; c++) {
+                int rgb = merger.getReader(c).getReader().getRGBChannelCount();
+                bands[c] = new boolean[rgb];
+                for (int plane : planes.get(c)) {
+                    bands[c][plane % rgb] = true;
+                }
+            }
+        }
+
+        long getDecodedBlocks() {
+            return decoded;
+        }
+
+        /**
+         * Read a region of a plane
+         *
+         * @param c channel (file) index
+         * @param plane plane index (channel separated)
+         * @return region of w * h bytes
+         */
+        byte[] read(int c, int plane, int x, int y, int w, int h) throws IOException, FormatException {
+            NdpiRegionReader reader = merger.getReader(c);
+            int rgb = bands[c].length;
+            int z = plane / rgb;
+            int band = plane % rgb;
+
+            byte[] region = new byte[w * h];
+            for (int by = y / BLOCK_SIZE; by <= (y + h - 1) / BLOCK_SIZE; by++) {
+                for (int bx = x / BLOCK_SIZE; bx <= (x + w - 1) / BLOCK_SIZE; bx++) {
+                    byte[] block = get(c, reader, z, bx, by)[band];
+                    int blockX = bx * BLOCK_SIZE;
+                    int blockY = by * BLOCK_SIZE;
+                    int blockWidth = Math.min(BLOCK_SIZE, reader.getSizeX() - blockX);
+
+                    // Overlap of the block and the region
+                    int x0 = Math.max(x, blockX);
+                    int x1 = Math.min(x + w, blockX + blockWidth);
+                    int y0 = Math.max(y, blockY);
+                    int y1 = Math.min(y + h, blockY + BLOCK_SIZE);
+                    for (int row = y0; row < y1; row++) {
+                        System.arraycopy(block, (row - blockY) * blockWidth + (x0 - blockX),
+                                region, (row - y) * w + (x0 - x), x1 - x0);
+                    }
+                }
+            }
+
+            return region;
+        }
+
+        private byte[][] get(int c, NdpiRegionReader reader, int z, int bx, int by)
+                throws IOException, FormatException {
+            String key = c + "/" + z + "/" + bx + "/" + by;
+            byte[][] block = blocks.get(key);
+            if (block != null) {
+                return block;
+            }
+
+            int x = bx * BLOCK_SIZE;
+            int y = by * BLOCK_SIZE;
+            int w = Math.min(BLOCK_SIZE, reader.getSizeX() - x);
+            int h = Math.min(BLOCK_SIZE, reader.getSizeY() - y);
+
+            block = new byte[bands[c].length][];
+            for (int band = 0; band < block.length; band++) {
+                if (bands[c][band]) {
+                    block[band] = new byte[w * h];
+                    size += w * h;
+                }
+            }
+            reader.openRegions(z, block, x, y, w, h);
+            decoded++;
+            blocks.put(key, block);
+
+            // Drop the least recently used blocks, but never the one just read
+            Iterator<Map.Entry<String, byte[][]>> eldest = blocks.entrySet().iterator();
+            while (size > budget && blocks.size() > 1) {
+                for (byte[] data : eldest.next().getValue()) {
+                    size -= (data == null) ? 0 : data.length;
+                }
+                eldest.remove();
+            }
+
+            return block;
+        }
+    }
+}
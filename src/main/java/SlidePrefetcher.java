@@ -0,0 +1,133 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Read-ahead of the next channel set of a batch.
+ *
+ * On network storage a conversion starts with a phase of cold reads: the NDPI directories, the
+ * JPEG restart index of the series and the first tile rows, while the processors are idle. While
+ * a channel set converts, a background thread reads all of that for the next set: the directories,
+ * the restart index (kept in the cache of {@link JpegRestartDecoder}, so the readers of the next
+ * conversion do not build it again) and the beginning of the image data of every plane, up to a
+ * byte budget. The next conversion then finds its first reads in the page cache.
+ */
+class SlidePrefetcher implements Closeable {
+
+    /** Size of the buffer the image data is read into and discarded */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final long budget;
+    private final ExecutorService executor;
+    private final AtomicInteger generation = new AtomicInteger();
+
+
+    /**
+     * @param budget maximal number of image data bytes read ahead per channel set
+     */
+    SlidePrefetcher(long budget) {
+        this.budget = budget;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ndpi-prefetch");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start reading ahead a channel set, abandoning the read-ahead of the previous one
+     *
+     * @param ids file paths of the channel set
+     * @param series series index that will be converted
+     */
+    void prefetch(Collection<String> ids, final int series) {
+        final List<File> files = new ArrayList<>();
+        for (String id : ids) {
+            files.add(new File(id));
+        }
+
+        // Not interrupted, an interrupted read would leave an empty restart index in the cache
+        final int current = generation.incrementAndGet();
+        executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return read(files, series, current);
+            }
+        });
+    }
+
+    private long read(List<File> files, int series, int current) throws IOException {
+        // Directories and restart indices first, they are needed to open the readers
+        List<NdpiHeader> headers = new ArrayList<>();
+        int planes = 0;
+        for (File file : files) {
+            if (generation.get() != current) {
+                return 0;
+            }
+            NdpiHeader header = NdpiHeader.read(file);
+            headers.add(header);
+            planes += header.getLevel(series).size();
+            JpegRestartDecoder.getIndex(file, series);
+        }
+
+        // The beginning of the image data of every plane, the budget shared equally
+        long perPlane = (planes == 0) ? 0 : budget / planes;
+        long total = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (int f = 0; f < files.size() && perPlane > 0; f++) {
+            try (RandomAccessFile raf = new RandomAccessFile(files.get(f), "r")) {
+                FileChannel channel = raf.getChannel();
+                for (NdpiHeader.Directory directory : headers.get(f).getLevel(series)) {
+                    long[] offsets = directory.get(NdpiHeader.STRIP_OFFSETS);
+                    long[] counts = directory.get(NdpiHeader.STRIP_BYTE_COUNTS);
+                    if (offsets == null || counts == null || offsets.length == 0) {
+                        continue;
+                    }
+
+                    long position = offsets[0];
+                    long end = position + Math.min(counts[0], perPlane);
+                    while (position < end) {
+                        if (generation.get() != current) {
+                            return total;
+                        }
+                        buffer.clear();
+                        buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+                        int n = channel.read(buffer, position);
+                        if (n <= 0) {
+                            break;
+                        }
+                        position += n;
+                        total += n;
+                    }
+                }
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Stop reading ahead
+     */
+    @Override
+    public void close() {
+        generation.incrementAndGet();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Linear unmixing of the bleed-through between fluorescence channels.
+ *
+ * The mixing matrix holds in row i and column j the fraction of dye j that is measured in channel
+ * i, with the dyes in the order of the channels (so the diagonal is usually 1). The measured tiles
+ * of a region are converted to floats once and multiplied by the inverse matrix with one
+ * multiply-add loop over the pixels per matrix entry, which the JIT compiles to vector code.
+ * Unmixed values are rounded and clamped to 8 bits.
+ */
+class SpectralUnmixing {
+
+    private final double[][] mixing;
+
+    /** Rows of the inverse of the mixing matrix */
+    private final float[][] unmixing;
+
+
+    /**
+     * @param mixing square mixing matrix, one row per measured channel and one column per dye
+     * @throws IllegalArgumentException if the matrix is not square or singular
+     */
+    SpectralUnmixing(double[][] mixing) {
+        int n = mixing.length;
+        for (double[] row : mixing) {
+            if (row.length != n) {
+                throw new IllegalArgumentException("The mixing matrix has to be square, a row of " + n +
+                        " rows has " + row.length + " values");
+            }
+        }
+        this.mixing = new double[n][];
+        for (int i = 0; i < n; i++) {
+            this.mixing[i] = mixing[i].clone();
+        }
+
+        double[][] inverse = invert(this.mixing);
+        unmixing = new float[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                unmixing[i][j] = (float) inverse[i][j];
+            }
+        }
+    }
+
+    /**
+     * Create the unmixing of a matrix given as text or as file
+     *
+     * @param text rows "m11 m12; m21 m22" or the path of a file with one row per line (comma or
+     *             space separated, lines starting with # are ignored), e.g. from control slides
+     *             with a single dye each; empty or "None" for no unmixing
+     * @return unmixing or null
+     * @throws IllegalArgumentException if the matrix cannot be parsed or read
+     */
+    static SpectralUnmixing parse(String text) {
+        text = text.trim();
+        if (text.isEmpty() || text.equalsIgnoreCase("None")) {
+            return null;
+        }
+
+        List<String> rows = new ArrayList<>();
+        File file = new File(text);
+        if (file.isFile()) {
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                        rows.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read the mixing matrix " + text + ": " + e.getMessage());
+            }
+        } else {
+            for (String row : text.split(";")) {
+                rows.add(row);
+            }
+        }
+
+        double[][] matrix = new double[rows.size()][];
+        try {
+            for (int i = 0; i < matrix.length; i++) {
+                String[] values = rows.get(i).trim().split("[\\s,]+");
+                matrix[i] = new double[values.length];
+                for (int j = 0; j < values.length; j++) {
+                    matrix[i][j] = Double.parseDouble(values[j]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid mixing matrix: " + text);
+        }
+
+        return new SpectralUnmixing(matrix);
+    }
+
+    int getChannelCount() {
+        return mixing.length;
+    }
+
+    /**
+     * Unmix the tiles of a region
+     *
+     * @param measured tile of each measured channel
+     * @param unmixed output tile of each dye, may be the measured tiles
+     * @param n number of pixels
+     */
+    void unmix(byte[][] measured, byte[][] unmixed, int n) {
+        int channels = unmixing.length;
+        float[][] values = new float[channels][n];
+        for (int c = 0; c < channels; c++) {
+            byte[] in = measured[c];
+            float[] v = values[c];
+            for (int i = 0; i < n; i++) {
+                v[i] = in[i] & 0xFF;
+            }
+        }
+
+        float[] sum = new float[n];
+        for (int d = 0; d < channels; d++) {
+            float[] row = unmixing[d];
+            Arrays.fill(sum, 0.5f);
+            for (int c = 0; c < channels; c++) {
+                float m = row[c];
+                float[] v = values[c];
+                for (int i = 0; i < n; i++) {
+                    sum[i] += m * v[i];
+                }
+            }
+
+            byte[] out = unmixed[d];
+            for (int i = 0; i < n; i++) {
+                float s = sum[i];
+                out[i] = (byte) ((s < 0) ? 0 : (s > 255) ? 255 : (int) s);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < mixing.length; i++) {
+            if (i > 0) {
+                text.append("; ");
+            }
+            for (int j = 0; j < mixing.length; j++) {
+                text.append((j > 0) ? " " : "").append(String.format(Locale.US, "%g", mixing[i][j]));
+            }
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Inverse by Gauss-Jordan elimination with partial pivoting
+     */
+    private static double[][] invert(double[][] m) {
+        int n = m.length;
+        double[][] a = new double[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(m[i], 0, a[i], 0, n);
+            a[i][n + i] = 1;
+        }
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(a[pivot][col]) < 1e-9) {
+                throw new IllegalArgumentException("The mixing matrix is singular");
+            }
+            double[] swap = a[col];
+            a[col] = a[pivot];
+            a[pivot] = swap;
+
+            double scale = a[col][col];
+            for (int j = 0; j < 2 * n; j++) {
+                a[col][j] /= scale;
+            }
+            for (int row = 0; row < n; row++) {
+                double factor = a[row][col];
+                if (row != col && factor != 0) {
+                    for (int j = 0; j < 2 * n; j++) {
+                        a[row][j] -= factor * a[col][j];
+                    }
+                }
+            }
+        }
+
+        double[][] inverse = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(a[i], n, inverse[i], 0, n);
+        }
+
+        return inverse;
+    }
+}
@@ -0,0 +1,210 @@
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+
+/**
+ * Color deconvolution of bright-field RGB into stain channels (Ruifrok and Johnston).
+ *
+ * The RGB values are converted to optical densities with a lookup table and unmixed with the
+ * inverse of the stain matrix. Each stain channel is written as the transmitted intensity of that
+ * stain alone (0: opaque, 255: no stain), again through a lookup table, so the per-pixel kernel
+ * is a few multiply-adds without allocation or transcendental functions.
+ */
+class StainSeparation {
+
+    /** Stain vector presets, in optical density of red, green and blue */
+    static final LinkedHashMap<String, double[][]> PRESETS = new LinkedHashMap<>();
+
+    /** Stain names of the presets */
+    private static final LinkedHashMap<String, String[]> PRESET_NAMES = new LinkedHashMap<>();
+
+    static {
+        double[] hematoxylin = {0.650, 0.704, 0.286};
+        double[] eosin = {0.072, 0.990, 0.105};
+        double[] dab = {0.268, 0.570, 0.776};
+
+        PRESETS.put("H&E", new double[][]{hematoxylin, eosin});
+        PRESET_NAMES.put("H&E", new String[]{"Hematoxylin", "Eosin"});
+        PRESETS.put("H-DAB", new double[][]{hematoxylin, dab});
+        PRESET_NAMES.put("H-DAB", new String[]{"Hematoxylin", "DAB"});
+        PRESETS.put("H&E-DAB", new double[][]{hematoxylin, eosin, dab});
+        PRESET_NAMES.put("H&E-DAB", new String[]{"Hematoxylin", "Eosin", "DAB"});
+    }
+
+    /** Resolution of the concentration to intensity lookup table (entries per unit optical density) */
+    private static final int OD_STEPS = 1024;
+
+    /** Largest optical density of the lookup table */
+    private static final int OD_MAX = 4;
+
+    /** Optical density of the 8-bit intensities */
+    private static final float[] OD = new float[256];
+
+    /** Transmitted intensity of the quantized optical densities */
+    private static final byte[] INTENSITY = new byte[OD_STEPS * OD_MAX + 1];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            OD[v] = (float) -Math.log10((v + 1) / 256.0);
+        }
+        for (int i = 0; i < INTENSITY.length; i++) {
+            INTENSITY[i] = (byte) Math.round(255 * Math.pow(10, -i / (double) OD_STEPS));
+        }
+    }
+
+    private final String description;
+    private final String[] names;
+
+    /** Rows of the inverse stain matrix, scaled to lookup table steps */
+    private final float[][] unmixing;
+
+
+    /**
+     * @param vectors two or three stain vectors (optical density of red, green and blue)
+     * @param names stain names
+     * @param description text identifying the configuration
+     */
+    StainSeparation(double[][] vectors, String[] names, String description) {
+        if (vectors.length < 2 || vectors.length > 3 || names.length != vectors.length) {
+            throw new IllegalArgumentException("Two or three stain vectors are required");
+        }
+        this.names = names.clone();
+        this.description = description;
+
+        // Normalized stain matrix, completed with the orthogonal residual for two stains
+        double[][] m = new double[3][];
+        for (int k = 0; k < vectors.length; k++) {
+            m[k] = normalize(vectors[k]);
+        }
+        if (vectors.length == 2) {
+            m[2] = normalize(cross(m[0], m[1]));
+        }
+
+        double[][] inverse = invert(m);
+        unmixing = new float[vectors.length][3];
+        for (int k = 0; k < vectors.length; k++) {
+            for (int c = 0; c < 3; c++) {
+                unmixing[k][c] = (float) (inverse[c][k] * OD_STEPS);
+            }
+        }
+    }
+
+    /**
+     * Create the separation of a preset name or of explicit vectors
+     *
+     * @param text preset name (see {@link #PRESETS}) or vectors "r g b; r g b[; r g b]"
+     * @return stain separation
+     * @throws IllegalArgumentException if the text cannot be parsed
+     */
+    static StainSeparation parse(String text) {
+        text = text.trim();
+        if (PRESETS.containsKey(text)) {
+            return new StainSeparation(PRESETS.get(text), PRESET_NAMES.get(text), text);
+        }
+
+        String[] rows = text.split(";");
+        double[][] vectors = new double[rows.length][];
+        String[] names = new String[rows.length];
+        try {
+            for (int k = 0; k < rows.length; k++) {
+                String[] values = rows[k].trim().split("[\\s,]+");
+                if (values.length != 3) {
+                    throw new IllegalArgumentException("A stain vector needs three values: " + rows[k]);
+                }
+                vectors[k] = new double[]{Double.parseDouble(values[0]), Double.parseDouble(values[1]),
+                        Double.parseDouble(values[2])};
+                names[k] = "Stain " + (k + 1);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid stain vectors: " + text);
+        }
+
+        return new StainSeparation(vectors, names, text);
+    }
+
+    int getStainCount() {
+        return names.length;
+    }
+
+    String[] getStainNames() {
+        return names.clone();
+    }
+
+    /**
+     * Separate the stains of a tile
+     *
+     * @param red red values
+     * @param green green values
+     * @param blue blue values
+     * @param stains output tile of each stain
+     * @param n number of pixels
+     */
+    void separate(byte[] red, byte[] green, byte[] blue, byte[][] stains, int n) {
+        int max = INTENSITY.length - 1;
+        for (int k = 0; k < unmixing.length; k++) {
+            float mr = unmixing[k][0];
+            float mg = unmixing[k][1];
+            float mb = unmixing[k][2];
+            byte[] out = stains[k];
+
+            for (int i = 0; i < n; i++) {
+                float c = mr * OD[red[i] & 0xFF] + mg * OD[green[i] & 0xFF] + mb * OD[blue[i] & 0xFF];
+                int index = (int) c;
+                out[i] = INTENSITY[(index < 0) ? 0 : (index > max) ? max : index];
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    private static double[] normalize(double[] v) {
+        double length = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        if (length == 0) {
+            throw new IllegalArgumentException("Stain vectors must not be zero");
+        }
+
+        return new double[]{v[0] / length, v[1] / length, v[2] / length};
+    }
+
+    private static double[] cross(double[] a, double[] b) {
+        return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    /**
+     * Inverse of a 3x3 matrix by its adjugate
+     */
+    private static double[][] invert(double[][] m) {
+        double det = m[0][0] * (m[1][1] * m[2][2] - m[1][2] * m[2][1])
+                - m[0][1] * (m[1][0] * m[2][2] - m[1][2] * m[2][0])
+                + m[0][2] * (m[1][0] * m[2][1] - m[1][1] * m[2][0]);
+        if (Math.abs(det) < 1e-9) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "The stain vectors are linearly dependent (determinant %.3g)", det));
+        }
+
+        double[][] inverse = new double[3][3];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double[][] minor = new double[2][2];
+                for (int r = 0, mr = 0; r < 3; r++) {
+                    if (r == j) {
+                        continue;
+                    }
+                    for (int c = 0, mc = 0; c < 3; c++) {
+                        if (c != i) {
+                            minor[mr][mc++] = m[r][c];
+                        }
+                    }
+                    mr++;
+                }
+                double cofactor = minor[0][0] * minor[1][1] - minor[0][1] * minor[1][0];
+                inverse[i][j] = (((i + j) % 2 == 0) ? 1 : -1) * cofactor / det;
+            }
+        }
+
+        return inverse;
+    }
+}
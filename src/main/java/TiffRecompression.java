@@ -0,0 +1,386 @@
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+import loci.formats.in.TiffReader;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffRational;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Re-encode an existing OME-TIFF with another compression.
+ *
+ * The planes are copied tile by tile, the tiles of a plane are read and encoded in parallel and
+ * written with the {@link TiledTiffWriter}. The image description (OME-XML) of the first directory
+ * is copied byte for byte and the resolution, software and date tags of every directory are kept,
+ * so the metadata of the file does not change. Classic TIFFs stay classic TIFFs unless the
+ * uncompressed planes exceed 4 GB. The new file is written next to the original,
+ * read back and compared with checksums of the original tiles, and only then renamed over the
+ * original. All target codecs are lossless, so every file is verified.
+ */
+class TiffRecompression {
+
+    /** Suffix of the file that is written before it replaces the original */
+    private static final String TEMP_SUFFIX = ".recompress.tmp";
+
+    /** Default tile edge length for files that are not tiled */
+    private static final int TILE_SIZE = 512;
+
+    /** Tags that describe the image rather than its layout, copied from every directory */
+    private static final int[] RATIONAL_TAGS = {IFD.X_RESOLUTION, IFD.Y_RESOLUTION};
+    private static final int[] TEXT_TAGS = {IFD.SOFTWARE, IFD.DATE_TIME};
+
+    private final File file;
+    private final int compression;
+    private final int threads;
+
+
+    /**
+     * @param file OME-TIFF file
+     * @param compression LZW, Deflate or None
+     * @param threads number of threads for the tiles
+     */
+    TiffRecompression(File file, String compression, int threads) {
+        this.file = file;
+        this.compression = getCode(compression);
+        this.threads = Math.max(1, threads);
+    }
+
+    private static int getCode(String compression) {
+        switch (compression) {
+            case "LZW":
+                return TiledTiffWriter.COMPRESSION_LZW;
+            case "Deflate":
+                return TiledTiffWriter.COMPRESSION_DEFLATE;
+            case "None":
+                return TiledTiffWriter.COMPRESSION_NONE;
+            default:
+                throw new IllegalArgumentException("Unsupported compression " + compression);
+        }
+    }
+
+    /**
+     * Recompress the file and replace the original
+     *
+     * @return size of the new file or -1 if the file already has the target compression
+     * @throws IOException if the file cannot be read or written
+     * @throws FormatException if the layout of the file is not supported or the verification fails
+     */
+    long run() throws IOException, FormatException {
+        // Metadata and layout of the original
+        String xml;
+        List<long[]> sizes = new ArrayList<>();
+        IFDList ifds;
+        int tileWidth;
+        int tileHeight;
+        long bytes = 0;
+        TiffParser parser = new TiffParser(file.getAbsolutePath());
+        try {
+            ifds = parser.getIFDs();
+            IFD first = ifds.get(0);
+            if (first.getCompression().getCode() == compression) {
+                return -1;
+            }
+            xml = getText(first, IFD.IMAGE_DESCRIPTION);
+
+            for (IFD ifd : ifds) {
+                if (ifd.getSamplesPerPixel() != 1 || ifd.getBitsPerSample()[0] != 8) {
+                    throw new FormatException("Only 8-bit single channel planes are supported: " + file.getName());
+                }
+                sizes.add(new long[]{ifd.getImageWidth(), ifd.getImageLength()});
+                bytes += ifd.getImageWidth() * ifd.getImageLength();
+            }
+
+            boolean tiled = first.isTiled() && first.getTileWidth() % 16 == 0 && first.getTileLength() % 16 == 0;
+            tileWidth = tiled ? (int) first.getTileWidth() : TILE_SIZE;
+            tileHeight = tiled ? (int) first.getTileLength() : TILE_SIZE;
+        } finally {
+            parser.getStream().close();
+        }
+
+        // Compressed planes of a classic TIFF fit a classic TIFF again, uncompressed ones may not
+        boolean bigTiff = isBigTiff(file) || (compression == TiledTiffWriter.COMPRESSION_NONE && bytes > 0xF0000000L);
+
+        File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long[][] checksums = write(temp, bigTiff, xml, ifds, sizes, tileWidth, tileHeight, executor);
+            verify(temp, sizes, tileWidth, tileHeight, checksums, executor);
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        return file.length();
+    }
+
+    private static boolean isBigTiff(File tiff) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(tiff, "r")) {
+            byte[] header = new byte[4];
+            raf.readFully(header);
+            int version = (header[0] == 'I') ? (header[2] & 0xFF) | (header[3] & 0xFF) << 8
+                    : (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
+            return version == 43;
+        }
+    }
+
+    /**
+     * @return value of a text tag, null if the directory does not have it
+     */
+    private static String getText(IFD ifd, int tag) {
+        Object value = ifd.getIFDValue(tag);
+        if (value instanceof String[]) {
+            String[] parts = (String[]) value;
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                text.append((i > 0) ? "\0" : "").append(parts[i]);
+            }
+            return text.toString();
+        }
+
+        return (value instanceof String) ? (String) value : null;
+    }
+
+    /**
+     * Copy the tags of an original directory that describe the image to the current plane
+     */
+    private static void copyTags(IFD ifd, TiledTiffWriter writer) {
+        for (int tag : RATIONAL_TAGS) {
+            Object value = ifd.getIFDValue(tag);
+            if (value instanceof TiffRational) {
+                TiffRational rational = (TiffRational) value;
+                writer.putRational(tag, rational.getNumerator(), rational.getDenominator());
+            }
+        }
+
+        Object unit = ifd.getIFDValue(IFD.RESOLUTION_UNIT);
+        if (unit instanceof Number) {
+            writer.putShort(IFD.RESOLUTION_UNIT, ((Number) unit).intValue());
+        }
+
+        for (int tag : TEXT_TAGS) {
+            String text = getText(ifd, tag);
+            if (text != null) {
+                writer.putAscii(tag, text);
+            }
+        }
+    }
+
+    /**
+     * Write all planes to the new file
+     *
+     * @return checksum of every tile of every plane
+     */
+    private long[][] write(File temp, boolean bigTiff, String xml, IFDList ifds, List<long[]> sizes,
+                           final int tileWidth, final int tileHeight, ExecutorService executor)
+            throws IOException, FormatException {
+        final BlockingQueue<IFormatReader> readers = openReaders(file, sizes.size());
+        long[][] checksums = new long[sizes.size()][];
+
+        try (final TiledTiffWriter writer = new TiledTiffWriter(temp, bigTiff)) {
+            for (int p = 0; p < sizes.size(); p++) {
+                final int plane = p;
+                final int width = (int) sizes.get(p)[0];
+                final int height = (int) sizes.get(p)[1];
+                writer.startPlane(width, height, tileWidth, tileHeight, 1, compression,
+                        TiledTiffWriter.PHOTOMETRIC_MINISBLACK, null, (p == 0) ? xml : null);
+                copyTags(ifds.get(p), writer);
+
+                final int columns = (width + tileWidth - 1) / tileWidth;
+                final long[] planeChecksums = new long[writer.getTileCount()];
+                List<Callable<Void>> tasks = new ArrayList<>(planeChecksums.length);
+                for (int t = 0; t < planeChecksums.length; t++) {
+                    final int tile = t;
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException, FormatException, InterruptedException {
+                            int col = tile % columns;
+                            int row = tile / columns;
+                            int x = col * tileWidth;
+                            int y = row * tileHeight;
+                            int w = Math.min(tileWidth, width - x);
+                            int h = Math.min(tileHeight, height - y);
+
+                            byte[] region = readRegion(readers, plane, x, y, w, h);
+                            planeChecksums[tile] = checksum(region);
+                            writer.writeTile(col, row, encode(pad(region, w, h, tileWidth, tileHeight)));
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(executor, tasks);
+                checksums[p] = planeChecksums;
+            }
+        } finally {
+            closeReaders(readers);
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Read the new file back and compare the checksums of its tiles with the original ones
+     */
+    private void verify(File temp, List<long[]> sizes, final int tileWidth, final int tileHeight,
+                        final long[][] checksums, ExecutorService executor) throws IOException, FormatException {
+        final BlockingQueue<IFormatReader> readers = openReaders(temp, sizes.size());
+        try {
+            for (int p = 0; p < sizes.size(); p++) {
+                final int plane = p;
+                final int width = (int) sizes.get(p)[0];
+                final int height = (int) sizes.get(p)[1];
+                final int columns = (width + tileWidth - 1) / tileWidth;
+
+                List<Callable<Void>> tasks = new ArrayList<>(checksums[p].length);
+                for (int t = 0; t < checksums[p].length; t++) {
+                    final int tile = t;
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException, FormatException, InterruptedException {
+                            int x = (tile % columns) * tileWidth;
+                            int y = (tile / columns) * tileHeight;
+                            int w = Math.min(tileWidth, width - x);
+                            int h = Math.min(tileHeight, height - y);
+
+                            if (checksum(readRegion(readers, plane, x, y, w, h)) != checksums[plane][tile]) {
+                                throw new FormatException("Verification failed for plane " + plane + ", tile " +
+                                        tile + " of " + file.getName());
+                            }
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(executor, tasks);
+            }
+        } finally {
+            closeReaders(readers);
+        }
+    }
+
+    /**
+     * Open one reader per thread. The planes are read as TIFF directories, in file order, which
+     * is the order they are written in.
+     */
+    private BlockingQueue<IFormatReader> openReaders(File tiff, int planes) throws IOException, FormatException {
+        BlockingQueue<IFormatReader> readers = new ArrayBlockingQueue<>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                IFormatReader reader = new TiffReader();
+                readers.add(reader);
+                reader.setId(tiff.getAbsolutePath());
+                if (reader.getSeriesCount() != 1 || reader.getImageCount() != planes ||
+                        reader.getRGBChannelCount() != 1 || reader.getPixelType() != FormatTools.UINT8) {
+                    throw new FormatException("Unsupported layout of " + tiff.getName());
+                }
+            }
+        } catch (IOException | FormatException e) {
+            closeReaders(readers);
+            throw e;
+        }
+
+        return readers;
+    }
+
+    private static void closeReaders(BlockingQueue<IFormatReader> readers) throws IOException {
+        for (IFormatReader reader : readers) {
+            reader.close();
+        }
+    }
+
+    private static byte[] readRegion(BlockingQueue<IFormatReader> readers, int plane, int x, int y, int w, int h)
+            throws IOException, FormatException, InterruptedException {
+        IFormatReader reader = readers.take();
+        try {
+            return reader.openBytes(plane, new byte[w * h], x, y, w, h);
+        } finally {
+            readers.put(reader);
+        }
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * TIFF tiles always have the full tile size, the edge tiles are padded
+     */
+    private static byte[] pad(byte[] region, int w, int h, int tileWidth, int tileHeight) {
+        if (w == tileWidth && h == tileHeight) {
+            return region;
+        }
+
+        byte[] tile = new byte[tileWidth * tileHeight];
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(region, y * w, tile, y * tileWidth, w);
+        }
+
+        return tile;
+    }
+
+    private byte[] encode(byte[] tile) throws FormatException {
+        switch (compression) {
+            case TiledTiffWriter.COMPRESSION_LZW:
+                return new LZWCodec().compress(tile, CodecOptions.getDefaultOptions());
+            case TiledTiffWriter.COMPRESSION_DEFLATE:
+                Deflater deflater = new Deflater();
+                deflater.setInput(tile);
+                deflater.finish();
+                ByteArrayOutputStream output = new ByteArrayOutputStream(tile.length / 2);
+                byte[] buffer = new byte[65536];
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+                deflater.end();
+                return output.toByteArray();
+            default:
+                return tile;
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks)
+            throws IOException, FormatException {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof FormatException) {
+                throw (FormatException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import loci.formats.FormatException;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Decoded blocks of NDPI series, shared by all the threads of the process.
+ *
+ * The blocks are fixed squares of all color components of a z-plane. The least recently used
+ * blocks are dropped when the decoded data exceeds a byte budget. Threads that ask for a block
+ * that is being decoded wait for that decoding instead of decoding the block again.
+ */
+class TileCache {
+
+    /** Edge length of the cached blocks */
+    static final int BLOCK_SIZE = 512;
+
+    private final ReaderPool readers;
+    private final long budget;
+    private final LinkedHashMap<String, Block> blocks = new LinkedHashMap<>(256, 0.75f, true);
+    private final ConcurrentHashMap<String, FutureTask<Block>> loading = new ConcurrentHashMap<>();
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+
+    /**
+     * @param readers readers the blocks are decoded with
+     * @param budget maximal number of bytes of decoded blocks
+     */
+    TileCache(ReaderPool readers, long budget) {
+        this.readers = readers;
+        this.budget = budget;
+    }
+
+    /**
+     * Read a region of all color components of a z-plane
+     *
+     * @param id file path
+     * @param series series index
+     * @param z z-plane index
+     * @param x region origin x
+     * @param y region origin y
+     * @param w region width
+     * @param h region height
+     * @return region of w * h bytes per color component
+     * @throws IOException if the file cannot be read
+     * @throws FormatException if the data cannot be decoded
+     */
+    byte[][] read(String id, int series, int z, int x, int y, int w, int h) throws IOException, FormatException {
+        byte[][] region = null;
+        for (int by = y / BLOCK_SIZE; by <= (y + h - 1) / BLOCK_SIZE; by++) {
+            for (int bx = x / BLOCK_SIZE; bx <= (x + w - 1) / BLOCK_SIZE; bx++) {
+                Block block = getBlock(id, series, z, bx, by);
+                if (region == null) {
+                    region = new byte[block.data.length][w * h];
+                }
+
+                // Overlap of the block and the region
+                int blockX = bx * BLOCK_SIZE;
+                int blockY = by * BLOCK_SIZE;
+                int x0 = Math.max(x, blockX);
+                int x1 = Math.min(x + w, blockX + block.width);
+                int y0 = Math.max(y, blockY);
+                int y1 = Math.min(y + h, blockY + block.height);
+                for (int c = 0; c < region.length; c++) {
+                    for (int row = y0; row < y1; row++) {
+                        System.arraycopy(block.data[c], (row - blockY) * block.width + (x0 - blockX),
+                                region[c], (row - y) * w + (x0 - x), x1 - x0);
+                    }
+                }
+            }
+        }
+
+        return region;
+    }
+
+    private Block getBlock(final String id, final int series, final int z, final int bx, final int by)
+            throws IOException, FormatException {
+        final String key = id + "#" + series + "#" + z + "#" + bx + "#" + by;
+        synchronized (blocks) {
+            Block block = blocks.get(key);
+            if (block != null) {
+                hits++;
+                return block;
+            }
+            misses++;
+        }
+
+        // Decode the block once, concurrent requests for it wait for the result
+        FutureTask<Block> task = new FutureTask<>(new Callable<Block>() {
+            @Override
+            public Block call() throws IOException, FormatException {
+                // Another thread may have decoded the block since the lookup above
+                synchronized (blocks) {
+                    Block block = blocks.get(key);
+                    if (block != null) {
+                        return block;
+                    }
+                }
+                return decode(id, series, z, bx, by);
+            }
+        });
+        FutureTask<Block> running = loading.putIfAbsent(key, task);
+        try {
+            if (running == null) {
+                task.run();
+                Block block = task.get();
+                put(key, block);
+                return block;
+            }
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof FormatException) {
+                throw (FormatException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (running == null) {
+                loading.remove(key);
+            }
+        }
+    }
+
+    private Block decode(String id, int series, int z, int bx, int by) throws IOException, FormatException {
+        NdpiRegionReader reader = readers.borrow(id, series);
+        try {
+            int x = bx * BLOCK_SIZE;
+            int y = by * BLOCK_SIZE;
+            int w = Math.min(BLOCK_SIZE, reader.getSizeX() - x);
+            int h = Math.min(BLOCK_SIZE, reader.getSizeY() - y);
+            if (w <= 0 || h <= 0) {
+                throw new FormatException("Block " + bx + "," + by + " is outside of series " + series);
+            }
+
+            int rgb = reader.getReader().getRGBChannelCount();
+            byte[][] data = new byte[rgb][w * h];
+            if (rgb == 1) {
+                reader.openRegion(z, data[0], x, y, w, h);
+            } else {
+                reader.openRegions(z, data, x, y, w, h);
+            }
+
+            return new Block(data, w, h);
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    private void put(String key, Block block) {
+        synchronized (blocks) {
+            if (blocks.put(key, block) == null) {
+                size += block.getSize();
+            }
+
+            Iterator<Map.Entry<String, Block>> iterator = blocks.entrySet().iterator();
+            while (size > budget && blocks.size() > 1 && iterator.hasNext()) {
+                size -= iterator.next().getValue().getSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return cache statistics for the server status
+     */
+    String getStatus() {
+        synchronized (blocks) {
+            return blocks.size() + " blocks, " + (size >> 20) + " MiB of " + (budget >> 20) + " MiB, " +
+                    hits + " hits, " + misses + " misses";
+        }
+    }
+
+
+    /**
+     * Decoded color components of a block and its dimensions
+     */
+    private static class Block {
+        final byte[][] data;
+        final int width;
+        final int height;
+
+        Block(byte[][] data, int width, int height) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+
+        long getSize() {
+            return (long) data.length * width * height;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.prefs.Preferences;
+
+
+/**
+ * Choice of the output tile size of a conversion.
+ *
+ * The tile size starts from the optimal tile size of the reader and is aligned to the restart
+ * intervals of the level, because the {@link JpegRestartDecoder} decodes whole intervals (plus a
+ * margin of one interval) for every region. It is then reduced until the tiles held in memory at
+ * once fit the memory budget. A calibration run times a few candidate sizes on a sample of a file
+ * and remembers the fastest one for all files of the same scanner format.
+ */
+class TileGeometry {
+
+    /** Smallest and largest tile edge */
+    private static final int MIN_TILE_SIZE = 256;
+    private static final int MAX_TILE_SIZE = 2048;
+
+    /** TIFF tile dimensions have to be multiples of 16 */
+    private static final int TILE_ALIGNMENT = 16;
+
+    /** System property with the memory budget of the tiles in MiB */
+    static final String BUDGET_PROPERTY = "ndpi.tileBudgetMB";
+
+    /** Edge length of the sample area decoded by the calibration */
+    private static final int CALIBRATION_AREA = 4096;
+
+    /** Calibrated tile sizes by scanner format */
+    private static final Preferences preferences = Preferences.userRoot().node("ndpi-converter/tile-geometry");
+
+
+    private TileGeometry() {
+    }
+
+    /**
+     * Choose the output tile size for a conversion
+     *
+     * @param reader input region reader
+     * @param resampler resampler or null
+     * @param planes number of planes of which a tile is held in memory at the same time
+     * @return tile width and height in output pixels
+     */
+    static int[] choose(NdpiRegionReader reader, AreaResampler resampler, int planes) {
+        int[] size = getCalibrated(reader);
+        if (size == null) {
+            size = align(reader, reader.getReader().getOptimalTileWidth(), reader.getReader().getOptimalTileHeight());
+        }
+
+        // Without resampling the width stays aligned to the restart intervals
+        JpegRestartIndex index = reader.getRestartIndex();
+        int step = (resampler == null && index != null) ? getWidthStep(index) : TILE_ALIGNMENT;
+
+        // Source regions are larger than the output tiles when resampling
+        double scale = (resampler == null) ? 1 : resampler.getScale();
+        int width = clamp((int) (size[0] / scale), step);
+        int height = clamp((int) (size[1] / scale), TILE_ALIGNMENT);
+
+        // Source and output tile of every plane, twice for the read-ahead. The larger edge is
+        // halved first, the other one once the larger cannot get smaller.
+        long budget = getMemoryBudget();
+        int bytesPerPixel = FormatTools.getBytesPerPixel(reader.getReader().getPixelType());
+        while (2L * planes * bytesPerPixel * width * height * (1 + scale * scale) > budget) {
+            int smallerWidth = clamp(width / 2, step);
+            int smallerHeight = clamp(height / 2, TILE_ALIGNMENT);
+            if (smallerWidth != width && (width >= height || smallerHeight == height)) {
+                width = smallerWidth;
+            } else if (smallerHeight != height) {
+                height = smallerHeight;
+            } else {
+                break;
+            }
+        }
+
+        return new int[]{width, height};
+    }
+
+    /**
+     * Align a source tile size to the restart intervals: whole intervals across and whole MCU
+     * rows down, at least a few intervals so the decoding margins are small in comparison, but
+     * not more intervals than fit the largest tile.
+     */
+    private static int[] align(NdpiRegionReader reader, int width, int height) {
+        width = Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, width));
+        height = Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, height));
+
+        JpegRestartIndex index = reader.getRestartIndex();
+        if (index == null) {
+            return new int[]{width, height};
+        }
+
+        int intervalWidth = getWidthStep(index);
+        int mcuHeight = index.getMcuHeight();
+        int intervals = Math.max(4, (width + intervalWidth - 1) / intervalWidth);
+        int maxIntervals = Math.max(1, MAX_TILE_SIZE / intervalWidth);
+        width = Math.min(maxIntervals, intervals) * intervalWidth;
+        height = Math.max(mcuHeight, (height / mcuHeight) * mcuHeight);
+
+        return new int[]{width, height};
+    }
+
+    /**
+     * Smallest width that is made of whole restart intervals and a valid TIFF tile width
+     */
+    private static int getWidthStep(JpegRestartIndex index) {
+        int intervalWidth = index.getIntervalWidth();
+        int step = intervalWidth;
+        while (step % TILE_ALIGNMENT != 0) {
+            step += intervalWidth;
+        }
+        return step;
+    }
+
+    /**
+     * Round a tile edge down to a multiple of the step within the tile size limits. A step larger
+     * than the largest tile is the only size of that edge.
+     */
+    private static int clamp(int size, int step) {
+        int max = Math.max(step, MAX_TILE_SIZE / step * step);
+        int min = Math.min(max, (MIN_TILE_SIZE + step - 1) / step * step);
+        return Math.max(min, Math.min(max, size / step * step));
+    }
+
+    /**
+     * @return memory budget of the tiles in bytes, by default an eighth of the maximal heap
+     */
+    static long getMemoryBudget() {
+        long megabytes = Long.getLong(BUDGET_PROPERTY, 0);
+        return (megabytes > 0) ? megabytes << 20 : Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    /**
+     * Key of the scanner format: reader format and JPEG layout of the level
+     */
+    static String getFormatKey(NdpiRegionReader reader) {
+        JpegRestartIndex index = reader.getRestartIndex();
+        if (index == null) {
+            return reader.getReader().getFormat() + "/no-intervals";
+        }
+
+        int[] subsampling = index.getChromaSubsampling();
+        return String.format(Locale.US, "%s/interval=%dx%d/subsampling=%dx%d", reader.getReader().getFormat(),
+                index.getIntervalWidth(), index.getMcuHeight(), subsampling[0], subsampling[1]);
+    }
+
+    /**
+     * @return the calibrated source tile size of the scanner format or null if there is none
+     */
+    static int[] getCalibrated(NdpiRegionReader reader) {
+        String value = preferences.get(getFormatKey(reader), null);
+        if (value == null) {
+            return null;
+        }
+
+        String[] size = value.split("x");
+        try {
+            return new int[]{Integer.parseInt(size[0]), Integer.parseInt(size[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Time the decoding of a sample area with a few candidate tile sizes and remember the fastest
+     * one for the scanner format of the reader
+     *
+     * @param reader input region reader
+     * @return fastest source tile width and height
+     * @throws IOException if the file cannot be read
+     * @throws FormatException if the data cannot be decoded
+     */
+    static int[] calibrate(NdpiRegionReader reader) throws IOException, FormatException {
+        int areaWidth = Math.min(CALIBRATION_AREA, reader.getSizeX());
+        int areaHeight = Math.min(CALIBRATION_AREA, reader.getSizeY());
+        int x0 = (reader.getSizeX() - areaWidth) / 2;
+        int y0 = (reader.getSizeY() - areaHeight) / 2;
+
+        List<int[]> candidates = getCandidates(reader);
+
+        // Warm up the decoder and the file cache
+        time(reader, candidates.get(0), x0, y0, areaWidth, areaHeight);
+
+        int[] best = null;
+        long bestTime = Long.MAX_VALUE;
+        for (int[] candidate : candidates) {
+            long time = time(reader, candidate, x0, y0, areaWidth, areaHeight);
+            if (time < bestTime) {
+                bestTime = time;
+                best = candidate;
+            }
+        }
+
+        preferences.put(getFormatKey(reader), best[0] + "x" + best[1]);
+        return best;
+    }
+
+    private static List<int[]> getCandidates(NdpiRegionReader reader) {
+        LinkedHashSet<String> sizes = new LinkedHashSet<>();
+        int[] optimal = align(reader, reader.getReader().getOptimalTileWidth(), reader.getReader().getOptimalTileHeight());
+        sizes.add(optimal[0] + "x" + optimal[1]);
+        for (int edge = 512; edge <= 2048; edge *= 2) {
+            int[] square = align(reader, edge, edge);
+            sizes.add(square[0] + "x" + square[1]);
+            int[] strip = align(reader, 2 * edge, edge / 2);
+            sizes.add(strip[0] + "x" + strip[1]);
+        }
+
+        List<int[]> candidates = new ArrayList<>();
+        for (String size : sizes) {
+            String[] values = size.split("x");
+            candidates.add(new int[]{Integer.parseInt(values[0]), Integer.parseInt(values[1])});
+        }
+
+        return candidates;
+    }
+
+    private static long time(NdpiRegionReader reader, int[] tile, int x0, int y0, int areaWidth, int areaHeight)
+            throws IOException, FormatException {
+        byte[] buf = new byte[tile[0] * tile[1]];
+        long start = System.nanoTime();
+        for (int y = y0; y < y0 + areaHeight; y += tile[1]) {
+            int h = Math.min(tile[1], y0 + areaHeight - y);
+            for (int x = x0; x < x0 + areaWidth; x += tile[0]) {
+                int w = Math.min(tile[0], x0 + areaWidth - x);
+                reader.openRegion(0, buf, x, y, w, h);
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+
+/**
+ * Writer for tiled (Big)TIFF files with tiles that are already compressed.
+ *
+ * Bio-Formats' writers always encode the pixel data themselves. This writer only lays out
+ * the bit-streams it gets and writes the directories, which allows to store JPEG data taken
+ * straight from the NDPI file. The tiles of a plane may be written in any order. Classic TIFFs
+ * are limited to 4 GB, writing beyond fails.
+ */
+class TiledTiffWriter implements Closeable {
+
+    /** TIFF compression codes */
+    static final int COMPRESSION_NONE = 1;
+    static final int COMPRESSION_LZW = 5;
+    static final int COMPRESSION_JPEG = 7;
+    static final int COMPRESSION_DEFLATE = 8;
+
+    /** TIFF photometric interpretations */
+    static final int PHOTOMETRIC_MINISBLACK = 1;
+    static final int PHOTOMETRIC_RGB = 2;
+    static final int PHOTOMETRIC_YCBCR = 6;
+
+    /** TIFF field types */
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int RATIONAL = 5;
+    private static final int LONG8 = 16;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final boolean bigTiff;
+
+    /** Offset of the pointer that has to receive the offset of the next directory */
+    private long nextPointer;
+
+    private Plane plane;
+
+
+    /**
+     * Create a BigTIFF file
+     */
+    TiledTiffWriter(File file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * @param file output file, truncated
+     * @param bigTiff whether to write a BigTIFF or a classic TIFF
+     */
+    TiledTiffWriter(File file, boolean bigTiff) throws IOException {
+        this.bigTiff = bigTiff;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(bigTiff ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort((short) 0x4949);
+        if (bigTiff) {
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(0);
+        } else {
+            header.putShort((short) 42).putInt(0);
+        }
+        header.flip();
+        channel.write(header, 0);
+        nextPointer = bigTiff ? 8 : 4;
+    }
+
+    /**
+     * Start a new plane. The previous plane is finished first.
+     *
+     * @param width image width
+     * @param height image height
+     * @param tileWidth tile width (multiple of 16)
+     * @param tileHeight tile height (multiple of 16)
+     * @param samples samples per pixel (interleaved)
+     * @param compression TIFF compression code
+     * @param photometric TIFF photometric interpretation
+     * @param subsampling YCbCr sub-sampling factors or null
+     * @param description image description (OME-XML) or null
+     * @throws IOException if the previous directory cannot be written
+     */
+    synchronized void startPlane(int width, int height, int tileWidth, int tileHeight, int samples,
+                                 int compression, int photometric, int[] subsampling, String description)
+            throws IOException {
+        endPlane();
+
+        if (tileWidth % 16 != 0 || tileHeight % 16 != 0) {
+            throw new IllegalArgumentException("Tile dimensions have to be multiples of 16");
+        }
+
+        plane = new Plane(width, height, tileWidth, tileHeight, samples, compression, photometric,
+                subsampling, description);
+    }
+
+    /**
+     * Add a text tag to the directory of the current plane, e.g. the software (305)
+     */
+    synchronized void putAscii(int tag, String value) {
+        plane.tags.put(tag, ascii(value));
+    }
+
+    /**
+     * Add a short tag to the directory of the current plane, e.g. the resolution unit (296)
+     */
+    synchronized void putShort(int tag, int value) {
+        plane.tags.put(tag, new Field(SHORT, 1, encode(SHORT, new long[]{value})));
+    }
+
+    /**
+     * Add a rational tag to the directory of the current plane, e.g. the resolution (282, 283)
+     */
+    synchronized void putRational(int tag, long numerator, long denominator) {
+        plane.tags.put(tag, new Field(RATIONAL, 1, encode(RATIONAL, new long[]{numerator, denominator})));
+    }
+
+    /**
+     * @return number of tiles of the current plane
+     */
+    synchronized int getTileCount() {
+        return plane.offsets.length;
+    }
+
+    /**
+     * Append a compressed tile to the current plane
+     *
+     * @param col tile column
+     * @param row tile row
+     * @param data compressed tile bit-stream
+     * @throws IOException if the data cannot be written
+     */
+    synchronized void writeTile(int col, int row, byte[] data) throws IOException {
+        int index = row * plane.tilesAcross + col;
+        long offset = append(data);
+
+        plane.offsets[index] = offset;
+        plane.counts[index] = data.length;
+    }
+
+    /**
+     * Write the directory of the current plane and link it into the chain
+     *
+     * @throws IOException if the directory cannot be written
+     */
+    synchronized void endPlane() throws IOException {
+        if (plane == null) {
+            return;
+        }
+
+        // Offsets and sizes are 8 bytes wide in BigTIFFs
+        int wide = bigTiff ? LONG8 : LONG;
+        TreeMap<Integer, Field> tags = new TreeMap<>();
+        tags.put(256, field(wide, plane.width));
+        tags.put(257, field(wide, plane.height));
+        long[] bits = new long[plane.samples];
+        Arrays.fill(bits, 8);
+        tags.put(258, field(SHORT, bits));
+        tags.put(259, field(SHORT, plane.compression));
+        tags.put(262, field(SHORT, plane.photometric));
+        if (plane.description != null) {
+            tags.put(270, ascii(plane.description));
+        }
+        tags.put(277, field(SHORT, plane.samples));
+        tags.put(284, field(SHORT, 1));
+        tags.put(305, ascii("NanoZoomer-J"));
+        tags.put(322, field(wide, plane.tileWidth));
+        tags.put(323, field(wide, plane.tileHeight));
+        tags.put(324, field(wide, plane.offsets));
+        tags.put(325, field(wide, plane.counts));
+        if (plane.subsampling != null) {
+            tags.put(530, field(SHORT, plane.subsampling[0], plane.subsampling[1]));
+        }
+        tags.putAll(plane.tags);
+
+        // Out of line values first, then the directory itself
+        int inline = bigTiff ? 8 : 4;
+        List<Long> valueOffsets = new ArrayList<>();
+        for (Field field : tags.values()) {
+            valueOffsets.add((field.bytes.length > inline) ? append(field.bytes) : null);
+        }
+
+        // Entry count, entries and next directory pointer
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        ByteBuffer ifd = ByteBuffer.allocate(countSize + tags.size() * entrySize + inline)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (bigTiff) {
+            ifd.putLong(tags.size());
+        } else {
+            ifd.putShort((short) tags.size());
+        }
+        int i = 0;
+        for (Integer tag : tags.keySet()) {
+            Field field = tags.get(tag);
+            ifd.putShort(tag.shortValue());
+            ifd.putShort((short) field.type);
+            putOffset(ifd, field.count);
+
+            Long valueOffset = valueOffsets.get(i++);
+            if (valueOffset == null) {
+                byte[] value = new byte[inline];
+                System.arraycopy(field.bytes, 0, value, 0, field.bytes.length);
+                ifd.put(value);
+            } else {
+                putOffset(ifd, valueOffset);
+            }
+        }
+        putOffset(ifd, 0);
+
+        long ifdOffset = append(ifd.array());
+        ByteBuffer pointer = ByteBuffer.allocate(inline).order(ByteOrder.LITTLE_ENDIAN);
+        putOffset(pointer, ifdOffset);
+        pointer.flip();
+        channel.write(pointer, nextPointer);
+        nextPointer = ifdOffset + countSize + tags.size() * entrySize;
+
+        plane = null;
+    }
+
+    /**
+     * Overwrite the description of the first directory, for instance with the final OME-XML.
+     * The new description is appended to the file and the directory entry is re-pointed.
+     *
+     * @param description new image description
+     * @throws IOException if the first directory has no description
+     */
+    synchronized void overwriteFirstDescription(String description) throws IOException {
+        endPlane();
+
+        int inline = bigTiff ? 8 : 4;
+        int entrySize = bigTiff ? 20 : 12;
+        long ifdOffset = readOffset(bigTiff ? 8 : 4);
+        long n = bigTiff ? readOffset(ifdOffset) : (readOffset(ifdOffset) & 0xFFFF);
+
+        for (long e = 0; e < n; e++) {
+            long entry = ifdOffset + (bigTiff ? 8 : 2) + e * entrySize;
+            ByteBuffer tag = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(tag, entry);
+            tag.flip();
+            if ((tag.getShort() & 0xFFFF) == 270) {
+                Field field = ascii(description);
+                long offset = append(field.bytes);
+
+                ByteBuffer value = ByteBuffer.allocate(2 * inline).order(ByteOrder.LITTLE_ENDIAN);
+                putOffset(value, field.count);
+                putOffset(value, offset);
+                value.flip();
+                channel.write(value, entry + 4);
+                return;
+            }
+        }
+
+        throw new IOException("First directory has no image description");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            endPlane();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Append data to the end of the file
+     *
+     * @return offset of the data
+     * @throws IOException if the data cannot be written or a classic TIFF would exceed 4 GB
+     */
+    private long append(byte[] data) throws IOException {
+        long offset = channel.size();
+        if (!bigTiff && offset + data.length > 0xFFFFFFFFL) {
+            throw new IOException("The file exceeds the 4 GB of a classic TIFF");
+        }
+        channel.write(ByteBuffer.wrap(data), offset);
+
+        return offset;
+    }
+
+    private void putOffset(ByteBuffer buffer, long value) {
+        if (bigTiff) {
+            buffer.putLong(value);
+        } else {
+            buffer.putInt((int) value);
+        }
+    }
+
+    private long readOffset(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bigTiff ? 8 : 4).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(buffer, position);
+        buffer.flip();
+
+        return bigTiff ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+    }
+
+    private static Field field(int type, long... values) {
+        return new Field(type, values.length, encode(type, values));
+    }
+
+    private static Field ascii(String value) {
+        byte[] chars = value.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[chars.length + 1];
+        System.arraycopy(chars, 0, bytes, 0, chars.length);
+
+        return new Field(ASCII, bytes.length, bytes);
+    }
+
+    private static byte[] encode(int type, long[] values) {
+        int size = (type == SHORT) ? 2 : (type == LONG8) ? 8 : 4;
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * size).order(ByteOrder.LITTLE_ENDIAN);
+        for (long v : values) {
+            if (type == SHORT) {
+                buffer.putShort((short) v);
+            } else if (type == LONG8) {
+                buffer.putLong(v);
+            } else {
+                buffer.putInt((int) v);
+            }
+        }
+
+        return buffer.array();
+    }
+
+
+    /**
+     * Encoded value of a directory entry
+     */
+    private static class Field {
+        final int type;
+        final long count;
+        final byte[] bytes;
+
+        Field(int type, long count, byte[] bytes) {
+            this.type = type;
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /**
+     * Layout of the plane that is currently written
+     */
+    private static class Plane {
+        final int width;
+        final int height;
+        final int tileWidth;
+        final int tileHeight;
+        final int samples;
+        final int compression;
+        final int photometric;
+        final int[] subsampling;
+        final String description;
+        final int tilesAcross;
+        final long[] offsets;
+        final long[] counts;
+        final TreeMap<Integer, Field> tags = new TreeMap<>();
+
+        Plane(int width, int height, int tileWidth, int tileHeight, int samples, int compression,
+              int photometric, int[] subsampling, String description) {
+            this.width = width;
+            this.height = height;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.samples = samples;
+            this.compression = compression;
+            this.photometric = photometric;
+            this.subsampling = subsampling;
+            this.description = description;
+            this.tilesAcross = (width + tileWidth - 1) / tileWidth;
+            int tilesDown = (height + tileHeight - 1) / tileHeight;
+            this.offsets = new long[tilesAcross * tilesDown];
+            this.counts = new long[tilesAcross * tilesDown];
+        }
+    }
+}